@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.content;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.commons.jackrabbit.authorization.AccessControlUtils;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates the access control model of an {@link AclSpec} over content
+ * generated from a {@link DatasetSpec}. The model is only generated once, if
+ * the first group already exists nothing is changed.
+ */
+public class AclGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(AclGenerator.class);
+
+    public static final String GROUP_PREFIX = "test-acl-group-";
+    public static final String LIMITED_ACCESS_USER = "test-limited-access-user";
+
+    private static final int COMMIT_SIZE = 500;
+
+    private final AclSpec spec;
+
+    /**
+     * @param spec the access control model to generate
+     */
+    public AclGenerator(AclSpec spec) {
+        spec.validate();
+        this.spec = spec;
+    }
+
+    /**
+     * Creates the groups and their memberships and then the access control
+     * entries.
+     * 
+     * @param admin   the resolver to generate the model with
+     * @param path    the path of the root of the content
+     * @param dataset the spec the content was generated with, used to place the
+     *                entries on nodes which exist
+     * @return the number of groups, memberships and entries created
+     * @throws RepositoryException  an exception occurs creating the groups or
+     *                              entries
+     * @throws PersistenceException an exception occurs committing the changes
+     */
+    public Map<String, Object> generate(ResourceResolver admin, String path, DatasetSpec dataset)
+            throws RepositoryException, PersistenceException {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        UserManager userManager = admin.adaptTo(UserManager.class);
+        if (userManager.getAuthorizable(GROUP_PREFIX + 1) != null) {
+            log.info("Access control model already generated");
+            return stats;
+        }
+        log.info("Generating {} groups and {} access control entries...", spec.getGroups(), spec.getEntries());
+        long start = System.nanoTime();
+        Random random = new Random(spec.getSeed());
+
+        Group[] groups = new Group[spec.getGroups()];
+        int[] depths = new int[groups.length];
+        long nested = 0;
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = userManager.createGroup(GROUP_PREFIX + (i + 1));
+            if (i > 0 && random.nextDouble() < spec.getNestedRatio()) {
+                int parent = random.nextInt(i);
+                if (depths[parent] < spec.getNestingDepth()) {
+                    groups[parent].addMember(groups[i]);
+                    depths[i] = depths[parent] + 1;
+                    nested++;
+                }
+            }
+        }
+        Authorizable user = userManager.getAuthorizable(LIMITED_ACCESS_USER);
+        long userMemberships = 0;
+        if (user != null) {
+            for (int i = 0; i < spec.getUserGroups(); i++) {
+                // already being a member does not count
+                if (groups[random.nextInt(groups.length)].addMember(user)) {
+                    userMemberships++;
+                }
+            }
+        }
+        admin.commit();
+
+        Session session = admin.adaptTo(Session.class);
+        long denies = 0;
+        for (int i = 1; i <= spec.getEntries(); i++) {
+            Group group = groups[random.nextInt(groups.length)];
+            boolean allow = random.nextDouble() >= spec.getDenyRatio();
+            AccessControlUtils.addAccessControlEntry(session, getRandomPath(path, dataset, random),
+                    group.getPrincipal(), new String[] { "jcr:read" }, allow);
+            if (!allow) {
+                denies++;
+            }
+            if (i % COMMIT_SIZE == 0) {
+                admin.commit();
+                log.info("Created {} access control entries...", i);
+            }
+        }
+        admin.commit();
+
+        stats.put("groups", groups.length);
+        stats.put("nestedMemberships", nested);
+        stats.put("userMemberships", userMemberships);
+        stats.put("entries", spec.getEntries());
+        stats.put("denies", denies);
+        stats.put("durationMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        log.info("Generated access control model: {}", stats);
+        return stats;
+    }
+
+    /**
+     * Picks an item or, if the content has more than one level, either an item
+     * or one of its children.
+     */
+    private static String getRandomPath(String path, DatasetSpec dataset, Random random) {
+        int iteration = random.nextInt(dataset.getIterations()) + 1;
+        StringBuilder nodePath = new StringBuilder(path).append("/it-").append(iteration);
+        int items = dataset.getCount(1, iteration);
+        if (items < 1) {
+            return nodePath.toString();
+        }
+        nodePath.append('/').append(ContentGenerator.getNodeName(1, random.nextInt(items) + 1));
+        int children = dataset.getEffectiveDepth() > 1 ? dataset.getCount(2, iteration) : 0;
+        if (children > 0 && random.nextBoolean()) {
+            nodePath.append('/').append(ContentGenerator.getNodeName(2, random.nextInt(children) + 1));
+        }
+        return nodePath.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.content;
+
+/**
+ * The shape of a generated access control model. Groups are created with
+ * nested memberships, the limited access test user is added to some of them
+ * and read access is allowed or denied to the groups on nodes spread across
+ * the test content, giving the permission evaluation of a query the kind of
+ * work a large authoring environment has.
+ */
+public class AclSpec {
+
+    private int groups = 200;
+    private double nestedRatio = 0.5;
+    private int nestingDepth = 3;
+    private int entries = 2000;
+    private double denyRatio = 0.25;
+    private int userGroups = 5;
+    private long seed = 0L;
+
+    /**
+     * @throws IllegalArgumentException the spec is invalid
+     */
+    public void validate() {
+        if (groups < 1) {
+            throw new IllegalArgumentException("groups must be at least 1");
+        }
+        if (nestedRatio < 0.0 || nestedRatio > 1.0) {
+            throw new IllegalArgumentException("nestedRatio must be from 0 to 1");
+        }
+        if (nestingDepth < 0) {
+            throw new IllegalArgumentException("nestingDepth must not be negative");
+        }
+        if (entries < 0) {
+            throw new IllegalArgumentException("entries must not be negative");
+        }
+        if (denyRatio < 0.0 || denyRatio > 1.0) {
+            throw new IllegalArgumentException("denyRatio must be from 0 to 1");
+        }
+        if (userGroups < 0 || userGroups > groups) {
+            throw new IllegalArgumentException("userGroups must be from 0 to the number of groups");
+        }
+    }
+
+    /**
+     * @return the number of groups to create
+     */
+    public int getGroups() {
+        return groups;
+    }
+
+    /**
+     * @param groups the number of groups to create
+     */
+    public void setGroups(int groups) {
+        this.groups = groups;
+    }
+
+    /**
+     * @return the share of groups which are a member of another group
+     */
+    public double getNestedRatio() {
+        return nestedRatio;
+    }
+
+    /**
+     * @param nestedRatio the share of groups which are a member of another group
+     */
+    public void setNestedRatio(double nestedRatio) {
+        this.nestedRatio = nestedRatio;
+    }
+
+    /**
+     * @return the maximum depth of the group memberships
+     */
+    public int getNestingDepth() {
+        return nestingDepth;
+    }
+
+    /**
+     * @param nestingDepth the maximum depth of the group memberships
+     */
+    public void setNestingDepth(int nestingDepth) {
+        this.nestingDepth = nestingDepth;
+    }
+
+    /**
+     * @return the number of access control entries to create
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param entries the number of access control entries to create
+     */
+    public void setEntries(int entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return the share of the entries which deny rather than allow read access
+     */
+    public double getDenyRatio() {
+        return denyRatio;
+    }
+
+    /**
+     * @param denyRatio the share of the entries which deny read access
+     */
+    public void setDenyRatio(double denyRatio) {
+        this.denyRatio = denyRatio;
+    }
+
+    /**
+     * @return the number of groups the limited access test user is a direct
+     *         member of
+     */
+    public int getUserGroups() {
+        return userGroups;
+    }
+
+    /**
+     * @param userGroups the number of groups the limited access test user is a
+     *                   direct member of
+     */
+    public void setUserGroups(int userGroups) {
+        this.userGroups = userGroups;
+    }
+
+    /**
+     * @return the seed for the memberships and the placement of the entries
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed the seed for the memberships and the placement of the entries
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.content;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.core.query.QueryStatsRecorder;
+
+/**
+ * Generates a write load of test content while queries run, measuring how long
+ * committed changes take to be visible in query results and how the latency of
+ * a query changes as the write rate rises. Each writer thread has its own
+ * resolver and owns the nodes it created, so updates and deletes never contend
+ * with the other writers.
+ * <p>
+ * A sample of the added and updated nodes are probed for, by the unique value
+ * written to their {@value #PN_TEST_CHURN} property, with a single query every
+ * probe interval. The property is indexed by the asynchronous
+ * {@value #CHURN_INDEX_PATH} index, which the run creates if it is missing, so
+ * the time from the commit to the first query which returns the node is the
+ * index lag. The run fails rather than report a lag if the probe query is not
+ * executed with that index, as a traversal would see the node as soon as it is
+ * committed. Between steps, the run waits for the outstanding probes so the
+ * lag of a step is not counted against the next one.
+ * </p>
+ */
+public class ChurnGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(ChurnGenerator.class);
+
+    public static final String CHURN_PATH = "/tests/churn";
+    public static final String PN_TEST_CHURN = "test:churn";
+    public static final String CHURN_NAME = "oak-search-churn";
+    public static final String CHURN_INDEX_PATH = "/oak:index/testChurnLucene";
+    public static final String CHURN_INDEX_LANE = "async";
+
+    /**
+     * The counters and samples of a single step
+     */
+    private static final class Step {
+        private final int rate;
+        private final LongAdder adds = new LongAdder();
+        private final LongAdder updates = new LongAdder();
+        private final LongAdder deletes = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder probes = new LongAdder();
+        private final LongAdder timedOut = new LongAdder();
+        private final LongAdder queryErrors = new LongAdder();
+        private volatile Exception lastQueryError;
+        private final List<Long> lagNanos = Collections.synchronizedList(new ArrayList<>());
+        private final List<Long> queryNanos = Collections.synchronizedList(new ArrayList<>());
+
+        private Step(int rate) {
+            this.rate = rate;
+        }
+    }
+
+    /**
+     * A written value which is waited for in the query results
+     */
+    private static final class Probe {
+        private final long token;
+        private final long committedNanos;
+        private final Step step;
+
+        private Probe(long token, long committedNanos, Step step) {
+            this.token = token;
+            this.committedNanos = committedNanos;
+            this.step = step;
+        }
+    }
+
+    private final ChurnSpec spec;
+    private final AtomicLong tokens = new AtomicLong();
+    private final Queue<Probe> newProbes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outstandingProbes = new AtomicInteger();
+    private final List<Map<String, Object>> steps = new CopyOnWriteArrayList<>();
+    private volatile Step current;
+    private volatile boolean stopped;
+    private volatile boolean stoppedEarly;
+
+    /**
+     * @param spec the write load to generate
+     */
+    public ChurnGenerator(ChurnSpec spec) {
+        spec.validate();
+        this.spec = spec;
+    }
+
+    /**
+     * @return the spec of the write load
+     */
+    public ChurnSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * @return the results of the completed steps
+     */
+    public List<Map<String, Object>> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the rate of the running step, or -1 if no step is running
+     */
+    public int getCurrentRate() {
+        Step step = current;
+        return step != null ? step.rate : -1;
+    }
+
+    /**
+     * Stops the run at the end of the current write, the completed steps are
+     * still reported.
+     */
+    public void stop() {
+        stopped = true;
+        stoppedEarly = true;
+    }
+
+    /**
+     * @return true if the run was stopped before completing all of its steps
+     */
+    public boolean isStopped() {
+        return stoppedEarly;
+    }
+
+    /**
+     * Runs each step of the spec in turn.
+     * 
+     * @param admin the resolver to write with, cloned for each thread
+     * @return the results of each step
+     * @throws PersistenceException an exception occurs creating or removing the
+     *                              churn container
+     * @throws LoginException       the resolver cannot be cloned
+     * @throws InterruptedException the run is interrupted
+     */
+    public Map<String, Object> run(ResourceResolver admin)
+            throws PersistenceException, LoginException, InterruptedException {
+        ensureIndex(admin);
+        ResourceUtil.getOrCreateResource(admin, CHURN_PATH,
+                Map.of(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED), null, true);
+        long start = System.nanoTime();
+
+        List<ResourceResolver> clones = new ArrayList<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool(
+                r -> new Thread(r, "oak-search-churn-" + threadCount.incrementAndGet()));
+        try {
+            List<Writer> writers = new ArrayList<>();
+            for (int i = 0; i < spec.getThreads(); i++) {
+                ResourceResolver clone = admin.clone(null);
+                clones.add(clone);
+                writers.add(new Writer(i, clone, new Random(spec.getSeed() * 31 + i)));
+            }
+            List<ResourceResolver> queryResolvers = new ArrayList<>();
+            for (int i = 0; i < spec.getQueryThreads(); i++) {
+                ResourceResolver clone = admin.clone(null);
+                clones.add(clone);
+                queryResolvers.add(clone);
+            }
+            ResourceResolver probeResolver = admin.clone(null);
+            clones.add(probeResolver);
+
+            log.info("Creating {} initial churn nodes...", spec.getInitialNodes());
+            for (Writer writer : writers) {
+                writer.createInitial(spec.getInitialNodes() / writers.size()
+                        + (writer.index < spec.getInitialNodes() % writers.size() ? 1 : 0));
+            }
+            awaitIndexed(probeResolver);
+
+            Future<Void> prober = executor.submit(() -> {
+                probe(probeResolver);
+                return null;
+            });
+            try {
+                for (int rate : spec.getRates()) {
+                    if (stopped) {
+                        break;
+                    }
+                    runStep(executor, writers, queryResolvers, rate);
+                }
+            } finally {
+                stopped = true;
+                prober.get();
+            }
+        } catch (ExecutionException e) {
+            throw new PersistenceException("Failed to generate churn: " + e.getMessage(), e.getCause());
+        } catch (RepositoryException e) {
+            throw new PersistenceException("Failed to probe the churn index", e);
+        } finally {
+            stopped = true;
+            executor.shutdownNow();
+            clones.forEach(ResourceResolver::close);
+            current = null;
+        }
+
+        if (spec.isCleanup()) {
+            Resource container = admin.getResource(CHURN_PATH);
+            if (container != null) {
+                admin.delete(container);
+                admin.commit();
+            }
+        }
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("durationMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        results.put("steps", steps);
+        return results;
+    }
+
+    private void runStep(ExecutorService executor, List<Writer> writers, List<ResourceResolver> queryResolvers,
+            int rate) throws InterruptedException, ExecutionException {
+        log.info("Running churn step at {} writes per second for {} seconds...", rate, spec.getStepSeconds());
+        Step step = new Step(rate);
+        current = step;
+        long stepStart = System.nanoTime();
+        long end = stepStart + TimeUnit.SECONDS.toNanos(spec.getStepSeconds());
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Writer writer : writers) {
+            futures.add(executor.submit(() -> {
+                writer.write(step, (double) rate / writers.size(), end);
+                return null;
+            }));
+        }
+        for (ResourceResolver resolver : queryResolvers) {
+            futures.add(executor.submit(() -> {
+                query(resolver, step, end);
+                return null;
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        long durationNanos = System.nanoTime() - stepStart;
+
+        // the prober times out probes after the max lag, so this always ends
+        while (outstandingProbes.get() > 0 && !stopped) {
+            TimeUnit.MILLISECONDS.sleep(spec.getProbeIntervalMs());
+        }
+        Map<String, Object> result = toMap(step, durationNanos);
+        steps.add(result);
+        log.info("Completed churn step: {}", result);
+        if (!queryResolvers.isEmpty() && step.queryNanos.isEmpty() && step.queryErrors.sum() > 0) {
+            throw new ExecutionException("Every execution of the churn query failed", step.lastQueryError);
+        }
+    }
+
+    /**
+     * Creates the index of the probed property, unless it already exists.
+     */
+    private static void ensureIndex(ResourceResolver admin) throws PersistenceException {
+        if (admin.getResource(CHURN_INDEX_PATH) != null) {
+            return;
+        }
+        log.info("Creating churn index {}...", CHURN_INDEX_PATH);
+        Map<String, Object> definition = new LinkedHashMap<>();
+        definition.put(JcrConstants.JCR_PRIMARYTYPE, "oak:QueryIndexDefinition");
+        definition.put("type", "lucene");
+        definition.put("compatVersion", 2L);
+        definition.put("async", new String[] { CHURN_INDEX_LANE });
+        definition.put("includedPaths", new String[] { CHURN_PATH });
+        definition.put("queryPaths", new String[] { CHURN_PATH });
+        definition.put("evaluatePathRestrictions", true);
+        Resource index = admin.create(admin.getResource("/oak:index"), ResourceUtil.getName(CHURN_INDEX_PATH),
+                definition);
+        Map<String, Object> unstructured = Map.of(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+        Resource properties = admin.create(admin.create(admin.create(index, "indexRules", unstructured),
+                ContentGenerator.NT_TEST_CONTENT, unstructured), "properties", unstructured);
+        admin.create(properties, "churn", Map.of(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED,
+                "name", PN_TEST_CHURN, "type", "Long", "propertyIndex", true));
+        admin.commit();
+    }
+
+    private static String getProbeQuery(Collection<Long> tokens) {
+        String condition = tokens.stream().map(t -> "s.[" + PN_TEST_CHURN + "]=" + t)
+                .collect(Collectors.joining(" OR "));
+        return "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE(s, [" + CHURN_PATH + "]) AND ("
+                + condition + ")";
+    }
+
+    /**
+     * Waits for the probe query to be executed with the churn index, which is
+     * only used once it has been built, and for the index to have caught up
+     * with the initial nodes, so the first probes don't include the time to
+     * build the index.
+     */
+    private void awaitIndexed(ResourceResolver resolver)
+            throws RepositoryException, PersistenceException, InterruptedException {
+        Session session = resolver.adaptTo(Session.class);
+        QueryManager queryManager = session.getWorkspace().getQueryManager();
+        long last = tokens.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(spec.getMaxLagMs());
+        while (true) {
+            session.refresh(false);
+            String plan = queryManager.createQuery("explain " + getProbeQuery(List.of(last)), Query.JCR_SQL2)
+                    .execute().getRows().nextRow().getValue("plan").getString();
+            boolean indexed = plan.contains(CHURN_INDEX_PATH);
+            if (indexed && (last == 0L || queryManager.createQuery(getProbeQuery(List.of(last)), Query.JCR_SQL2)
+                    .execute().getRows().hasNext())) {
+                return;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new PersistenceException(indexed
+                        ? "The initial churn nodes were not indexed within " + spec.getMaxLagMs() + "ms"
+                        : "The probe query is not executed with " + CHURN_INDEX_PATH
+                                + ", so it cannot measure the index lag: " + plan);
+            }
+            TimeUnit.MILLISECONDS.sleep(spec.getProbeIntervalMs());
+        }
+    }
+
+    /**
+     * Checks for the outstanding probes in a single query each interval until
+     * the run is stopped.
+     */
+    private void probe(ResourceResolver resolver) throws RepositoryException, InterruptedException {
+        Session session = resolver.adaptTo(Session.class);
+        QueryManager queryManager = session.getWorkspace().getQueryManager();
+        Map<Long, Probe> outstanding = new LinkedHashMap<>();
+        while (!stopped || !outstanding.isEmpty() || !newProbes.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(spec.getProbeIntervalMs());
+            Probe probe;
+            while ((probe = newProbes.poll()) != null) {
+                outstanding.put(probe.token, probe);
+            }
+            if (outstanding.isEmpty()) {
+                continue;
+            }
+            // the query is filtered by the session's view of the repository
+            session.refresh(false);
+            RowIterator rows = queryManager.createQuery(getProbeQuery(outstanding.keySet()), Query.JCR_SQL2)
+                    .execute().getRows();
+            long now = System.nanoTime();
+            while (rows.hasNext()) {
+                Row row = rows.nextRow();
+                Probe visible = outstanding.remove(row.getNode().getProperty(PN_TEST_CHURN).getLong());
+                if (visible != null) {
+                    visible.step.lagNanos.add(now - visible.committedNanos);
+                    outstandingProbes.decrementAndGet();
+                }
+            }
+            long maxLagNanos = TimeUnit.MILLISECONDS.toNanos(spec.getMaxLagMs());
+            for (Iterator<Probe> it = outstanding.values().iterator(); it.hasNext();) {
+                Probe waiting = it.next();
+                // also covers probed nodes which were updated or deleted again
+                if (now - waiting.committedNanos > maxLagNanos || stopped) {
+                    waiting.step.timedOut.increment();
+                    outstandingProbes.decrementAndGet();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void query(ResourceResolver resolver, Step step, long end) throws RepositoryException {
+        QueryManager queryManager = resolver.adaptTo(Session.class).getWorkspace().getQueryManager();
+        while (System.nanoTime() < end && !stopped) {
+            resolver.refresh();
+            long start = System.nanoTime();
+            try {
+                NodeIterator nodes = queryManager.createQuery(spec.getQuery(), Query.JCR_SQL2).execute()
+                        .getNodes();
+                while (nodes.hasNext()) {
+                    nodes.nextNode();
+                }
+                step.queryNanos.add(System.nanoTime() - start);
+            } catch (RepositoryException | RuntimeException e) {
+                log.debug("Failed to execute churn query", e);
+                step.lastQueryError = e;
+                step.queryErrors.increment();
+            }
+        }
+    }
+
+    private static Map<String, Object> toMap(Step step, long durationNanos) {
+        long writes = step.adds.sum() + step.updates.sum() + step.deletes.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rate", step.rate);
+        result.put("durationMs", TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        result.put("writes", writes);
+        result.put("writesPerSecond", writes * TimeUnit.SECONDS.toNanos(1) / Math.max(1L, durationNanos));
+        result.put("adds", step.adds.sum());
+        result.put("updates", step.updates.sum());
+        result.put("deletes", step.deletes.sum());
+        result.put("errors", step.errors.sum());
+
+        Map<String, Object> lag = new LinkedHashMap<>();
+        long[] lags = toSortedArray(step.lagNanos);
+        lag.put("probes", step.probes.sum());
+        lag.put("visible", lags.length);
+        lag.put("timedOut", step.timedOut.sum());
+        putPercentiles(lag, lags, TimeUnit.MILLISECONDS.toNanos(1), "Ms");
+        result.put("indexLag", lag);
+
+        Map<String, Object> query = new LinkedHashMap<>();
+        long[] latencies = toSortedArray(step.queryNanos);
+        query.put("executions", latencies.length);
+        query.put("errors", step.queryErrors.sum());
+        putPercentiles(query, latencies, 1L, "Nanos");
+        result.put("query", query);
+        return result;
+    }
+
+    private static long[] toSortedArray(List<Long> values) {
+        synchronized (values) {
+            return values.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+    }
+
+    private static void putPercentiles(Map<String, Object> map, long[] sorted, long divisor, String unit) {
+        if (sorted.length == 0) {
+            return;
+        }
+        map.put("p50" + unit, QueryStatsRecorder.percentile(sorted, 50) / divisor);
+        map.put("p95" + unit, QueryStatsRecorder.percentile(sorted, 95) / divisor);
+        map.put("p99" + unit, QueryStatsRecorder.percentile(sorted, 99) / divisor);
+        map.put("max" + unit, sorted[sorted.length - 1] / divisor);
+    }
+
+    /**
+     * Writes at a fixed rate with its own resolver, updating and deleting only
+     * the nodes it created.
+     */
+    private final class Writer {
+        private final int index;
+        private final ResourceResolver resolver;
+        private final Random random;
+        private final List<String> names = new ArrayList<>();
+        private long sequence;
+
+        private Writer(int index, ResourceResolver resolver, Random random) {
+            this.index = index;
+            this.resolver = resolver;
+            this.random = random;
+        }
+
+        private void createInitial(int count) throws PersistenceException {
+            Resource container = resolver.getResource(CHURN_PATH);
+            List<String> created = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                created.add(add(container, tokens.incrementAndGet()));
+            }
+            resolver.commit();
+            names.addAll(created);
+        }
+
+        private void write(Step step, double rate, long end) {
+            if (rate <= 0.0) {
+                // a step without writes measures the baseline query latency
+                while (System.nanoTime() < end && !stopped) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(spec.getProbeIntervalMs()));
+                }
+                return;
+            }
+            long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            long next = System.nanoTime();
+            Resource container = resolver.getResource(CHURN_PATH);
+            while (next < end && !stopped) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                writeOnce(step, container);
+                next += periodNanos;
+            }
+        }
+
+        private void writeOnce(Step step, Resource container) {
+            double operation = random.nextDouble();
+            long token = tokens.incrementAndGet();
+            try {
+                boolean probed;
+                String added = null;
+                if (names.isEmpty() || operation < spec.getAddRatio()) {
+                    added = add(container, token);
+                    step.adds.increment();
+                    probed = true;
+                } else if (operation < spec.getAddRatio() + spec.getUpdateRatio()) {
+                    Resource resource = resolver.getResource(container, names.get(random.nextInt(names.size())));
+                    resource.adaptTo(ModifiableValueMap.class).put(PN_TEST_CHURN, token);
+                    step.updates.increment();
+                    probed = true;
+                } else {
+                    int i = random.nextInt(names.size());
+                    resolver.delete(resolver.getResource(container, names.get(i)));
+                    names.set(i, names.get(names.size() - 1));
+                    names.remove(names.size() - 1);
+                    step.deletes.increment();
+                    probed = false;
+                }
+                resolver.commit();
+                if (added != null) {
+                    names.add(added);
+                }
+                if (probed && outstandingProbes.incrementAndGet() <= spec.getMaxProbes()) {
+                    step.probes.increment();
+                    newProbes.add(new Probe(token, System.nanoTime(), step));
+                } else if (probed) {
+                    outstandingProbes.decrementAndGet();
+                }
+            } catch (PersistenceException | RuntimeException e) {
+                log.debug("Failed to write churn", e);
+                resolver.revert();
+                step.errors.increment();
+            }
+        }
+
+        private String add(Resource container, long token) throws PersistenceException {
+            String name = String.format("churn-%d-%d", index, ++sequence);
+            resolver.create(container, name, Map.of(JcrConstants.JCR_PRIMARYTYPE, ContentGenerator.NT_TEST_CONTENT,
+                    ContentGenerator.PN_TEST_NAME, CHURN_NAME, PN_TEST_CHURN, token));
+            return name;
+        }
+    }
+}
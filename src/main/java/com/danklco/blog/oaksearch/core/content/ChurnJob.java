@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.content;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a churn write load in the background, one run at a time, retaining the
+ * results of the last run until the next one starts.
+ */
+@Component(service = ChurnJob.class)
+public class ChurnJob {
+
+    public static final String STATE_IDLE = "idle";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_COMPLETE = "complete";
+    public static final String STATE_STOPPED = "stopped";
+    public static final String STATE_FAILED = "failed";
+
+    private static final Logger log = LoggerFactory.getLogger(ChurnJob.class);
+
+    private ExecutorService executor;
+
+    private volatile ChurnGenerator generator;
+
+    private volatile Map<String, Object> lastStatus = Map.of("state", STATE_IDLE);
+
+    @Activate
+    protected void activate() {
+        executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "oak-search-churn"));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        ChurnGenerator running = generator;
+        if (running != null) {
+            running.stop();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts a churn run.
+     * 
+     * @param resolver the resolver to write with, owned by the job and closed
+     *                 once the run ends
+     * @param spec     the write load to generate
+     * @return true if the run was started, false if a run is already running
+     */
+    public synchronized boolean start(ResourceResolver resolver, ChurnSpec spec) {
+        if (generator != null) {
+            resolver.close();
+            return false;
+        }
+        ChurnGenerator started = new ChurnGenerator(spec);
+        generator = started;
+        executor.execute(() -> run(resolver, started));
+        return true;
+    }
+
+    /**
+     * Stops the running churn run, if any, once the current writes complete.
+     * 
+     * @return true if a run was stopped
+     */
+    public boolean stop() {
+        ChurnGenerator running = generator;
+        if (running != null) {
+            running.stop();
+            return true;
+        }
+        return false;
+    }
+
+    private void run(ResourceResolver resolver, ChurnGenerator churn) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        try {
+            Map<String, Object> results = churn.run(resolver);
+            status.put("state", churn.isStopped() ? STATE_STOPPED : STATE_COMPLETE);
+            status.putAll(results);
+            log.info("Churn run complete");
+        } catch (Exception e) {
+            log.error("Failed to run churn", e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            resolver.revert();
+            status.put("state", STATE_FAILED);
+            status.put("error", e.toString());
+            status.put("steps", churn.getSteps());
+        } finally {
+            synchronized (this) {
+                lastStatus = status;
+                generator = null;
+            }
+            resolver.close();
+        }
+    }
+
+    /**
+     * Reports the state of the churn run. While running, the rate of the current
+     * step and the results of the completed steps are reported, otherwise the
+     * outcome of the last run.
+     * 
+     * @return the status of the churn run
+     */
+    public Map<String, Object> getStatus() {
+        ChurnGenerator running = generator;
+        if (running == null) {
+            return lastStatus;
+        }
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", STATE_RUNNING);
+        status.put("currentRate", running.getCurrentRate());
+        status.put("spec", running.getSpec());
+        status.put("steps", running.getSteps());
+        return status;
+    }
+}
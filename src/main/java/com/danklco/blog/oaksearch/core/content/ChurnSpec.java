@@ -0,0 +1,264 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.content;
+
+import java.util.List;
+
+/**
+ * The write load of a churn run. The run has a step for each rate, in which the
+ * writer threads add, update and delete nodes under the churn container at the
+ * step's rate while the query threads execute the query repeatedly. A sample of
+ * the written nodes are probed for until they are visible in query results to
+ * measure the index lag.
+ */
+public class ChurnSpec {
+
+    private List<Integer> rates = List.of(10, 50, 100);
+    private int stepSeconds = 30;
+    private int threads = 4;
+    private int initialNodes = 100;
+    private double addRatio = 0.3;
+    private double updateRatio = 0.5;
+    // the churned nodes, through the churn index, so the default query doesn't
+    // depend on the definition loaded for the test content
+    private String query = "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests/churn]) AND [test:churn] > 0";
+    private int queryThreads = 1;
+    private long probeIntervalMs = 100L;
+    private long maxLagMs = 60000L;
+    private int maxProbes = 32;
+    private long seed = 0L;
+    private boolean cleanup = true;
+
+    /**
+     * @throws IllegalArgumentException the spec is invalid
+     */
+    public void validate() {
+        if (rates == null || rates.isEmpty() || rates.stream().anyMatch(r -> r == null || r < 0)) {
+            throw new IllegalArgumentException("rates must contain at least one value of 0 or more");
+        }
+        if (stepSeconds < 1) {
+            throw new IllegalArgumentException("stepSeconds must be at least 1");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (initialNodes < 0) {
+            throw new IllegalArgumentException("initialNodes must not be negative");
+        }
+        if (addRatio < 0.0 || updateRatio < 0.0 || addRatio + updateRatio > 1.0) {
+            throw new IllegalArgumentException("addRatio and updateRatio must not be negative or add up to more than 1");
+        }
+        if (queryThreads < 0) {
+            throw new IllegalArgumentException("queryThreads must not be negative");
+        }
+        if (queryThreads > 0 && (query == null || query.isBlank())) {
+            throw new IllegalArgumentException("query must be set when there are query threads");
+        }
+        if (probeIntervalMs < 1 || maxLagMs < 1 || maxProbes < 1) {
+            throw new IllegalArgumentException("probeIntervalMs, maxLagMs and maxProbes must be at least 1");
+        }
+    }
+
+    /**
+     * @return the writes per second of each step
+     */
+    public List<Integer> getRates() {
+        return rates;
+    }
+
+    /**
+     * @param rates the writes per second of each step
+     */
+    public void setRates(List<Integer> rates) {
+        this.rates = rates;
+    }
+
+    /**
+     * @return the duration of each step in seconds
+     */
+    public int getStepSeconds() {
+        return stepSeconds;
+    }
+
+    /**
+     * @param stepSeconds the duration of each step in seconds
+     */
+    public void setStepSeconds(int stepSeconds) {
+        this.stepSeconds = stepSeconds;
+    }
+
+    /**
+     * @return the number of writer threads, which share the rate
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads the number of writer threads, which share the rate
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return the number of nodes created before the first step, so there are
+     *         nodes to update and delete
+     */
+    public int getInitialNodes() {
+        return initialNodes;
+    }
+
+    /**
+     * @param initialNodes the number of nodes created before the first step
+     */
+    public void setInitialNodes(int initialNodes) {
+        this.initialNodes = initialNodes;
+    }
+
+    /**
+     * @return the share of writes which add a node
+     */
+    public double getAddRatio() {
+        return addRatio;
+    }
+
+    /**
+     * @param addRatio the share of writes which add a node
+     */
+    public void setAddRatio(double addRatio) {
+        this.addRatio = addRatio;
+    }
+
+    /**
+     * @return the share of writes which update a node, the writes which neither
+     *         add nor update delete a node
+     */
+    public double getUpdateRatio() {
+        return updateRatio;
+    }
+
+    /**
+     * @param updateRatio the share of writes which update a node
+     */
+    public void setUpdateRatio(double updateRatio) {
+        this.updateRatio = updateRatio;
+    }
+
+    /**
+     * @return the query to measure the latency of during each step, if every
+     *         execution of a step fails the run fails
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @param query the query to measure the latency of during each step
+     */
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    /**
+     * @return the number of threads executing the query, 0 to only measure the
+     *         index lag
+     */
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    /**
+     * @param queryThreads the number of threads executing the query
+     */
+    public void setQueryThreads(int queryThreads) {
+        this.queryThreads = queryThreads;
+    }
+
+    /**
+     * @return the interval in milliseconds between checks for the probed nodes
+     */
+    public long getProbeIntervalMs() {
+        return probeIntervalMs;
+    }
+
+    /**
+     * @param probeIntervalMs the interval in milliseconds between checks for the
+     *                        probed nodes
+     */
+    public void setProbeIntervalMs(long probeIntervalMs) {
+        this.probeIntervalMs = probeIntervalMs;
+    }
+
+    /**
+     * @return the time in milliseconds after which a probed node which is not
+     *         visible is counted as timed out
+     */
+    public long getMaxLagMs() {
+        return maxLagMs;
+    }
+
+    /**
+     * @param maxLagMs the time in milliseconds after which a probed node is
+     *                 counted as timed out
+     */
+    public void setMaxLagMs(long maxLagMs) {
+        this.maxLagMs = maxLagMs;
+    }
+
+    /**
+     * @return the maximum number of nodes probed for at once, writes beyond it
+     *         are not probed
+     */
+    public int getMaxProbes() {
+        return maxProbes;
+    }
+
+    /**
+     * @param maxProbes the maximum number of nodes probed for at once
+     */
+    public void setMaxProbes(int maxProbes) {
+        this.maxProbes = maxProbes;
+    }
+
+    /**
+     * @return the seed for choosing the writes
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed the seed for choosing the writes
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return true if the churn container is removed once the run ends
+     */
+    public boolean isCleanup() {
+        return cleanup;
+    }
+
+    /**
+     * @param cleanup true if the churn container is removed once the run ends
+     */
+    public void setCleanup(boolean cleanup) {
+        this.cleanup = cleanup;
+    }
+}
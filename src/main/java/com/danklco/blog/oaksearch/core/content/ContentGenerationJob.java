@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.content;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Runs content generation in the background, one generation at a time. The
+ * state of the generation and the completed subtrees are checkpointed under
+ * {@value #CHECKPOINT_PATH}, so a generation which was interrupted, for
+ * example by a restart, is resumed with the same spec the next time it is
+ * started rather than starting over or leaving a partial tree.
+ */
+@Component(service = ContentGenerationJob.class)
+public class ContentGenerationJob {
+
+    /**
+     * A step run once the content has been generated
+     */
+    @FunctionalInterface
+    public interface Callback {
+        /**
+         * @param resolver the resolver which generated the content
+         * @param spec     the spec the content was generated with
+         * @throws Exception the step fails, failing the generation
+         */
+        void run(ResourceResolver resolver, DatasetSpec spec) throws Exception;
+    }
+
+    public static final String CHECKPOINT_PATH = "/var/oak-search/generation";
+
+    public static final String STATE_IDLE = "idle";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_COMPLETE = "complete";
+    public static final String STATE_FAILED = "failed";
+    public static final String STATE_INTERRUPTED = "interrupted";
+
+    private static final String PN_STATE = "state";
+    private static final String PN_SPEC = "spec";
+    private static final String PN_PATH = "path";
+
+    private static final Logger log = LoggerFactory.getLogger(ContentGenerationJob.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private ExecutorService executor;
+
+    private volatile ContentGenerator generator;
+
+    private volatile long startNanos;
+
+    @Activate
+    protected void activate() {
+        executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "oak-search-generation"));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts generating the content or, if a previous generation did not
+     * complete, resumes it with its original spec and path.
+     * 
+     * @param resolver   the resolver to generate the content with, owned by the
+     *                   job and closed once the generation ends
+     * @param path       the path to generate the content under
+     * @param spec       the shape of the content
+     * @param threads    the number of threads to generate the content with
+     * @param batchSize  the number of nodes each thread creates before committing
+     * @param mode       how the nodes are written to the repository
+     * @param onComplete a step to run once the content has been generated
+     * @return true if the generation was started, false if a generation is
+     *         already running
+     * @throws IOException an exception occurs reading or writing the checkpoint
+     */
+    public synchronized boolean start(ResourceResolver resolver, String path, DatasetSpec spec, int threads,
+            int batchSize, ContentGenerator.Mode mode, Callback onComplete) throws IOException {
+        if (generator != null) {
+            resolver.close();
+            return false;
+        }
+        try {
+            Resource checkpoint = resolver.getResource(CHECKPOINT_PATH);
+            if (checkpoint != null && !STATE_COMPLETE.equals(checkpoint.getValueMap().get(PN_STATE, String.class))) {
+                ValueMap previous = checkpoint.getValueMap();
+                spec = objectMapper.readValue(previous.get(PN_SPEC, String.class), DatasetSpec.class);
+                path = previous.get(PN_PATH, path);
+                log.info("Resuming generation of {}", path);
+            } else if (checkpoint != null) {
+                resolver.delete(checkpoint);
+            }
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+            properties.put(PN_STATE, STATE_RUNNING);
+            properties.put(PN_SPEC, objectMapper.writeValueAsString(spec));
+            properties.put(PN_PATH, path);
+            properties.put("threads", threads);
+            properties.put("batchSize", batchSize);
+            properties.put("mode", mode.name().toLowerCase());
+            properties.put("startedAt", Calendar.getInstance());
+            ResourceUtil.getOrCreateResource(resolver, CHECKPOINT_PATH, properties, null, false)
+                    .adaptTo(ModifiableValueMap.class).putAll(properties);
+            resolver.commit();
+        } catch (IOException | RuntimeException e) {
+            resolver.close();
+            throw e;
+        }
+
+        generator = new ContentGenerator(spec, threads, batchSize, mode);
+        startNanos = System.nanoTime();
+        String generationPath = path;
+        executor.execute(() -> run(resolver, generationPath, onComplete));
+        return true;
+    }
+
+    private void run(ResourceResolver resolver, String path, Callback onComplete) {
+        try {
+            Map<String, Object> stats = generator.generate(resolver, path, CHECKPOINT_PATH);
+            onComplete.run(resolver, generator.getSpec());
+            updateCheckpoint(resolver, Map.of(PN_STATE, STATE_COMPLETE, "nodes", stats.get("nodes"),
+                    "durationMs", stats.get("durationMs"), "completedAt", Calendar.getInstance()));
+            log.info("Generation of {} complete", path);
+        } catch (Exception e) {
+            log.error("Failed to generate content under {}", path, e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                resolver.revert();
+                updateCheckpoint(resolver, Map.of(PN_STATE, STATE_FAILED, "error", e.toString()));
+            } catch (PersistenceException pe) {
+                log.warn("Failed to record failure in checkpoint", pe);
+            }
+        } finally {
+            synchronized (this) {
+                generator = null;
+            }
+            resolver.close();
+        }
+    }
+
+    private void updateCheckpoint(ResourceResolver resolver, Map<String, Object> properties)
+            throws PersistenceException {
+        Resource checkpoint = resolver.getResource(CHECKPOINT_PATH);
+        if (checkpoint != null) {
+            checkpoint.adaptTo(ModifiableValueMap.class).putAll(properties);
+            resolver.commit();
+        }
+    }
+
+    /**
+     * Reports the state of the generation. While running, the number of nodes
+     * written, the rate and the estimated time remaining are reported, otherwise
+     * the outcome of the last generation from its checkpoint, including when it
+     * completed in milliseconds since the epoch. Content without a
+     * checkpoint, generated before checkpoints were recorded, is reported as
+     * complete.
+     * 
+     * @param resolver    the resolver to read the checkpoint with
+     * @param defaultPath the path content is generated under by default
+     * @return the status of the generation
+     */
+    public Map<String, Object> getStatus(ResourceResolver resolver, String defaultPath) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        ContentGenerator running = generator;
+        if (running != null) {
+            long nodes = running.getNodes();
+            long expected = running.getSpec().getExpectedNodes();
+            long elapsedNanos = Math.max(1L, System.nanoTime() - startNanos);
+            long rate = (nodes - running.getResumedNodes()) * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+            status.put(PN_STATE, STATE_RUNNING);
+            status.put("nodes", nodes);
+            status.put("expectedNodes", expected);
+            status.put("resumedNodes", running.getResumedNodes());
+            status.put("nodesPerSecond", rate);
+            status.put("etaSeconds", rate > 0 ? Math.max(0L, expected - nodes) / rate : -1L);
+            return status;
+        }
+        Resource checkpoint = resolver.getResource(CHECKPOINT_PATH);
+        if (checkpoint == null) {
+            status.put(PN_STATE, resolver.getResource(defaultPath) != null ? STATE_COMPLETE : STATE_IDLE);
+            return status;
+        }
+        ValueMap properties = checkpoint.getValueMap();
+        String state = properties.get(PN_STATE, STATE_IDLE);
+        // running according to the checkpoint, but not in this instance
+        status.put(PN_STATE, STATE_RUNNING.equals(state) ? STATE_INTERRUPTED : state);
+        for (String key : new String[] { PN_PATH, "nodes", "durationMs", "error" }) {
+            if (properties.containsKey(key)) {
+                status.put(key, properties.get(key));
+            }
+        }
+        Calendar completedAt = properties.get("completedAt", Calendar.class);
+        if (completedAt != null) {
+            status.put("completedAt", completedAt.getTimeInMillis());
+        }
+        status.put("completedSubtrees", countCompletedSubtrees(checkpoint));
+        return status;
+    }
+
+    private long countCompletedSubtrees(Resource checkpoint) {
+        long count = 0;
+        for (Resource iteration : checkpoint.getChildren()) {
+            for (Resource ignored : iteration.getChildren()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
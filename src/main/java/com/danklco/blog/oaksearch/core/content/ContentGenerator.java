@@ -0,0 +1,441 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.content;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Generates test content in the shape of a {@link DatasetSpec}. The root and
+ * iteration nodes are created first, then the subtrees of the first level nodes
+ * are generated in parallel. Each thread has its own clone of the resolver, as
+ * resolvers are not thread safe, and takes the next subtree from a shared queue
+ * ordered from the largest iteration down so the threads finish together.
+ * <p>
+ * When a checkpoint path is given, a marker is created under it for each
+ * completed subtree in the same commit as the subtree's last batch, so a
+ * generation which was interrupted can be resumed by only generating the
+ * subtrees without a marker, after removing what was committed of them.
+ * </p>
+ * <p>
+ * In {@link Mode#IMPORT} mode each subtree is streamed as system view SAX
+ * events into the session's import content handler rather than created node by
+ * node through the Resource API, so no resource, value map or property map is
+ * created per node. The subtrees are generated from the same seeds in both
+ * modes, so the content is identical.
+ * </p>
+ */
+public class ContentGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentGenerator.class);
+
+    public static final String PN_TEST_CHILD = "test:child";
+    public static final String PN_TEST_NAME = "test:name";
+    public static final String PN_TEST_ITERATION = "test:iteration";
+    public static final String PN_TEST_ITEM = "test:item";
+    public static final String NT_TEST_CONTENT = "test:content";
+    public static final String TEST_NAME = "oak-search";
+
+    private static final String SV_URI = "http://www.jcp.org/jcr/sv/1.0";
+
+    /**
+     * How the nodes are written to the repository.
+     */
+    public enum Mode {
+        /** Creates each node with the Resource API */
+        RESOURCE,
+        /** Streams each subtree into the JCR import API */
+        IMPORT
+    }
+
+    private final DatasetSpec spec;
+    private final int threads;
+    private final int batchSize;
+    private final Mode mode;
+    private final double[] zipfCdf;
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong resumedNodes = new AtomicLong();
+
+    /**
+     * @param spec      the shape of the content to generate
+     * @param threads   the number of threads to generate the content with
+     * @param batchSize the number of nodes each thread creates before committing
+     */
+    public ContentGenerator(DatasetSpec spec, int threads, int batchSize) {
+        this(spec, threads, batchSize, Mode.RESOURCE);
+    }
+
+    /**
+     * @param spec      the shape of the content to generate
+     * @param threads   the number of threads to generate the content with
+     * @param batchSize the number of nodes each thread creates before committing,
+     *                  in import mode the commits happen after the first subtree
+     *                  which reaches the batch size
+     * @param mode      how the nodes are written to the repository
+     */
+    public ContentGenerator(DatasetSpec spec, int threads, int batchSize, Mode mode) {
+        spec.validate();
+        this.spec = spec;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.mode = mode;
+        this.zipfCdf = DatasetSpec.SKEW_ZIPF.equals(spec.getSkew()) && spec.getCardinality() > 0
+                ? zipfCdf(spec.getCardinality(), spec.getZipfExponent())
+                : null;
+    }
+
+    /**
+     * @return the number of nodes committed so far, including the nodes of a
+     *         previous run which was resumed
+     */
+    public long getNodes() {
+        return nodes.get();
+    }
+
+    /**
+     * @return the number of nodes created by a previous run which was resumed
+     */
+    public long getResumedNodes() {
+        return resumedNodes.get();
+    }
+
+    /**
+     * @return the spec of the content being generated
+     */
+    public DatasetSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * Generates the content under the path.
+     * 
+     * @param admin          the resolver to generate the content with, cloned for
+     *                       each thread
+     * @param path           the path of the root of the content
+     * @param checkpointPath the path to record the completed subtrees under and
+     *                       resume from, or null to not checkpoint
+     * @return the number of nodes created, duration and throughput
+     * @throws PersistenceException an exception occurs creating the content
+     * @throws LoginException       the resolver cannot be cloned
+     * @throws InterruptedException the generation is interrupted
+     */
+    public Map<String, Object> generate(ResourceResolver admin, String path, String checkpointPath)
+            throws PersistenceException, LoginException, InterruptedException {
+        log.info("Creating {} nodes of test content with {} threads in batches of {} nodes using {} mode...",
+                spec.getExpectedNodes(), threads, batchSize, mode);
+        long start = System.nanoTime();
+        Resource root = ResourceUtil.getOrCreateResource(admin, path, NT_TEST_CONTENT, NT_TEST_CONTENT, false);
+        Map<String, Object> unstructured = Map.of(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+        Resource checkpoint = checkpointPath != null
+                ? ResourceUtil.getOrCreateResource(admin, checkpointPath, unstructured, null, false)
+                : null;
+        Deque<int[]> subtrees = new ArrayDeque<>();
+        for (int iteration = 1; iteration <= spec.getIterations(); iteration++) {
+            String name = String.format("it-%d", iteration);
+            Resource iterRsrc = root.getChild(name);
+            if (iterRsrc == null) {
+                iterRsrc = admin.create(root, name, Map.of(JcrConstants.JCR_PRIMARYTYPE,
+                        NT_TEST_CONTENT, PN_TEST_NAME, TEST_NAME, PN_TEST_ITERATION, iteration));
+            }
+            nodes.incrementAndGet();
+            Resource done = checkpoint != null
+                    ? ResourceUtil.getOrCreateResource(admin, checkpoint.getPath() + "/" + name, unstructured, null,
+                            false)
+                    : null;
+            for (int item = 1; item <= spec.getCount(1, iteration); item++) {
+                String itemName = getNodeName(1, item);
+                if (done != null && done.getChild(itemName) != null) {
+                    resumedNodes.addAndGet(spec.getSubtreeNodes(iteration));
+                    continue;
+                }
+                Resource partial = iterRsrc.getChild(itemName);
+                if (partial != null) {
+                    // committed by an interrupted run without being completed
+                    admin.delete(partial);
+                }
+                subtrees.addFirst(new int[] { iteration, item });
+            }
+        }
+        admin.commit();
+        nodes.addAndGet(resumedNodes.get());
+        if (resumedNodes.get() > 0) {
+            log.info("Resuming generation, {} nodes already created", resumedNodes.get());
+        }
+
+        Queue<int[]> queue = new ConcurrentLinkedQueue<>(subtrees);
+        List<ResourceResolver> clones = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                clones.add(admin.clone(null));
+            }
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    r -> new Thread(r, "oak-search-content-" + threadCount.incrementAndGet()));
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                for (ResourceResolver clone : clones) {
+                    futures.add(executor.submit(() -> {
+                        generateSubtrees(clone, path, checkpointPath, queue);
+                        return null;
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                throw new PersistenceException("Failed to generate test content", e.getCause());
+            } finally {
+                // stop the other threads if one fails
+                queue.clear();
+                executor.shutdownNow();
+            }
+        } finally {
+            clones.forEach(ResourceResolver::close);
+        }
+
+        long durationNanos = System.nanoTime() - start;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nodes", nodes.get());
+        stats.put("expectedNodes", spec.getExpectedNodes());
+        stats.put("resumedNodes", resumedNodes.get());
+        stats.put("durationMs", TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        stats.put("nodesPerSecond",
+                (nodes.get() - resumedNodes.get()) * TimeUnit.SECONDS.toNanos(1) / Math.max(1L, durationNanos));
+        stats.put("threads", threads);
+        stats.put("batchSize", batchSize);
+        stats.put("mode", mode.name().toLowerCase());
+        stats.put("spec", spec);
+        log.info("Created {} nodes in {}ms ({} nodes/s)", stats.get("nodes"), stats.get("durationMs"),
+                stats.get("nodesPerSecond"));
+        return stats;
+    }
+
+    private void generateSubtrees(ResourceResolver resolver, String path, String checkpointPath,
+            Queue<int[]> queue) throws PersistenceException {
+        int[] pending = new int[1];
+        int[] next;
+        while ((next = queue.poll()) != null) {
+            int iteration = next[0];
+            int item = next[1];
+            // seeded by subtree so the content does not depend on the thread order
+            Random random = new Random((spec.getSeed() * 31 + iteration) * 1_000_003L + item);
+            String parentPath = String.format("%s/it-%d", path, iteration);
+            Map<String, Object> inherited = Map.of(PN_TEST_NAME, TEST_NAME, PN_TEST_ITERATION, iteration);
+            if (mode == Mode.IMPORT) {
+                importSubtree(resolver, parentPath, iteration, item, inherited, random);
+                pending[0] += spec.getSubtreeNodes(iteration);
+            } else {
+                createNode(resolver, resolver.getResource(parentPath), iteration, 1, item, inherited, random,
+                        pending);
+            }
+            if (checkpointPath != null) {
+                // committed along with the subtree's last batch
+                resolver.create(resolver.getResource(String.format("%s/it-%d", checkpointPath, iteration)),
+                        getNodeName(1, item), Map.of(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED,
+                                "nodes", spec.getSubtreeNodes(iteration)));
+            }
+            if (mode == Mode.IMPORT && pending[0] >= batchSize) {
+                resolver.commit();
+                nodes.addAndGet(pending[0]);
+                pending[0] = 0;
+            }
+            if (item % 100 == 0) {
+                log.info("Created item {} of iteration {}, {} nodes so far...", item, iteration, nodes.get());
+            }
+        }
+        if (pending[0] > 0) {
+            resolver.commit();
+            nodes.addAndGet(pending[0]);
+        }
+    }
+
+    /**
+     * Creates the node and its descendants, each node inherits the properties of
+     * its ancestors.
+     */
+    private void createNode(ResourceResolver resolver, Resource parent, int iteration, int level, int number,
+            Map<String, Object> inherited, Random random, int[] pending) throws PersistenceException {
+        Map<String, Object> properties = getProperties(level, number, inherited, random);
+        Map<String, Object> created = new HashMap<>(properties);
+        created.put(JcrConstants.JCR_PRIMARYTYPE, NT_TEST_CONTENT);
+        Resource resource = resolver.create(parent, getNodeName(level, number), created);
+        if (++pending[0] >= batchSize) {
+            resolver.commit();
+            nodes.addAndGet(pending[0]);
+            pending[0] = 0;
+        }
+        if (level < spec.getEffectiveDepth()) {
+            int count = spec.getCount(level + 1, iteration);
+            for (int child = 1; child <= count; child++) {
+                createNode(resolver, resource, iteration, level + 1, child, properties, random, pending);
+            }
+        }
+    }
+
+    /**
+     * Imports the subtree of a first level node into the session of the
+     * resolver, the changes are saved with the resolver's next commit.
+     */
+    private void importSubtree(ResourceResolver resolver, String parentPath, int iteration, int item,
+            Map<String, Object> inherited, Random random) throws PersistenceException {
+        try {
+            ContentHandler handler = resolver.adaptTo(Session.class).getImportContentHandler(parentPath,
+                    ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW);
+            handler.startDocument();
+            handler.startPrefixMapping("sv", SV_URI);
+            importNode(handler, iteration, 1, item, inherited, random);
+            handler.endPrefixMapping("sv");
+            handler.endDocument();
+        } catch (RepositoryException | SAXException e) {
+            throw new PersistenceException("Failed to import subtree " + parentPath + "/" + getNodeName(1, item), e);
+        }
+    }
+
+    /**
+     * Writes the system view events of the node and its descendants, consuming
+     * the random values in the same order as
+     * {@link #createNode(ResourceResolver, Resource, int, int, int, Map, Random, int[])}.
+     */
+    private void importNode(ContentHandler handler, int iteration, int level, int number,
+            Map<String, Object> inherited, Random random) throws SAXException {
+        Map<String, Object> properties = getProperties(level, number, inherited, random);
+        AttributesImpl attributes = new AttributesImpl();
+        attributes.addAttribute(SV_URI, "name", "sv:name", "CDATA", getNodeName(level, number));
+        handler.startElement(SV_URI, "node", "sv:node", attributes);
+        importProperty(handler, JcrConstants.JCR_PRIMARYTYPE, PropertyType.NAME, NT_TEST_CONTENT);
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            importProperty(handler, property.getKey(),
+                    property.getValue() instanceof Integer ? PropertyType.LONG : PropertyType.STRING,
+                    property.getValue().toString());
+        }
+        if (level < spec.getEffectiveDepth()) {
+            int count = spec.getCount(level + 1, iteration);
+            for (int child = 1; child <= count; child++) {
+                importNode(handler, iteration, level + 1, child, properties, random);
+            }
+        }
+        handler.endElement(SV_URI, "node", "sv:node");
+    }
+
+    private static void importProperty(ContentHandler handler, String name, int type, String value)
+            throws SAXException {
+        AttributesImpl attributes = new AttributesImpl();
+        attributes.addAttribute(SV_URI, "name", "sv:name", "CDATA", name);
+        attributes.addAttribute(SV_URI, "type", "sv:type", "CDATA", PropertyType.nameFromValue(type));
+        handler.startElement(SV_URI, "property", "sv:property", attributes);
+        handler.startElement(SV_URI, "value", "sv:value", new AttributesImpl());
+        char[] chars = value.toCharArray();
+        handler.characters(chars, 0, chars.length);
+        handler.endElement(SV_URI, "value", "sv:value");
+        handler.endElement(SV_URI, "property", "sv:property");
+    }
+
+    private Map<String, Object> getProperties(int level, int number, Map<String, Object> inherited,
+            Random random) {
+        Map<String, Object> properties = new HashMap<>(inherited);
+        if (spec.getMissingRatio() <= 0.0 || random.nextDouble() >= spec.getMissingRatio()) {
+            properties.put(getPropertyName(level), getValue(number, random));
+        }
+        return properties;
+    }
+
+    private int getValue(int number, Random random) {
+        if (spec.getCardinality() <= 0) {
+            return number;
+        } else if (zipfCdf != null) {
+            int index = Arrays.binarySearch(zipfCdf, random.nextDouble());
+            return (index >= 0 ? index : -index - 1) + 1;
+        }
+        return random.nextInt(spec.getCardinality()) + 1;
+    }
+
+    private static double[] zipfCdf(int cardinality, double exponent) {
+        double[] cdf = new double[cardinality];
+        double total = 0.0;
+        for (int i = 0; i < cardinality; i++) {
+            total += 1.0 / Math.pow(i + 1.0, exponent);
+            cdf[i] = total;
+        }
+        for (int i = 0; i < cardinality; i++) {
+            cdf[i] /= total;
+        }
+        return cdf;
+    }
+
+    /**
+     * @param level the level under the iteration node, starting at 1
+     * @return the name of the property set on the nodes of the level
+     */
+    public static String getPropertyName(int level) {
+        switch (level) {
+            case 1:
+                return PN_TEST_ITEM;
+            case 2:
+                return PN_TEST_CHILD;
+            default:
+                return "test:level" + level;
+        }
+    }
+
+    /**
+     * @param level  the level under the iteration node, starting at 1
+     * @param number the number of the node, starting at 1
+     * @return the name of the node
+     */
+    static String getNodeName(int level, int number) {
+        switch (level) {
+            case 1:
+                return "item-" + number;
+            case 2:
+                return "child-" + number;
+            default:
+                return "level" + level + "-" + number;
+        }
+    }
+}
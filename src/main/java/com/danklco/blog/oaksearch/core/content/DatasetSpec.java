@@ -0,0 +1,306 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.content;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * The shape and scale of the generated test content. Under the root, a node is
+ * created for each iteration, under which each level of the tree has a fan-out
+ * of nodes. Each node has a property for its level whose value, by default, is
+ * the node's number, or if a cardinality is set, a random value from 1 to the
+ * cardinality with either a uniform or Zipf distribution. The values are
+ * generated from the seed, so the same spec always generates the same content.
+ * Each level has <code>fanOut * iteration</code> nodes per parent, or
+ * <code>fanOut</code> if not scaled by iteration. The default spec, from
+ * {@link #createDefault()}, generates the original tree of 9 iterations, each
+ * with <code>100 * iteration - 1</code> items with
+ * <code>100 * iteration - 1</code> children.
+ */
+public class DatasetSpec {
+
+    /** Uniformly distributed values */
+    public static final String SKEW_UNIFORM = "uniform";
+
+    /** Zipf distributed values, where lower values are much more common */
+    public static final String SKEW_ZIPF = "zipf";
+
+    private int iterations = 9;
+    private List<Integer> fanOut = List.of(100, 100);
+    private int depth = 0;
+    private boolean scaleByIteration = true;
+    private int cardinality = 0;
+    private double missingRatio = 0.0;
+    private String skew = SKEW_UNIFORM;
+    private double zipfExponent = 1.0;
+    private long seed = 0L;
+    private AclSpec acl;
+    private boolean originalShape = false;
+
+    /**
+     * @return the spec generating the original tree the tests expect
+     */
+    public static DatasetSpec createDefault() {
+        DatasetSpec spec = new DatasetSpec();
+        spec.setOriginalShape(true);
+        return spec;
+    }
+
+    /**
+     * @throws IllegalArgumentException the spec is invalid
+     */
+    public void validate() {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be at least 1");
+        }
+        if (fanOut == null || fanOut.isEmpty() || fanOut.stream().anyMatch(f -> f == null || f < 1)) {
+            throw new IllegalArgumentException("fanOut must contain at least one value of 1 or more");
+        }
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative");
+        }
+        if (cardinality < 0) {
+            throw new IllegalArgumentException("cardinality must not be negative");
+        }
+        if (missingRatio < 0.0 || missingRatio >= 1.0) {
+            throw new IllegalArgumentException("missingRatio must be from 0 up to 1");
+        }
+        if (!SKEW_UNIFORM.equals(skew) && !SKEW_ZIPF.equals(skew)) {
+            throw new IllegalArgumentException("skew must be uniform or zipf");
+        }
+        if (acl != null) {
+            acl.validate();
+        }
+    }
+
+    /**
+     * @return the number of levels under each iteration node
+     */
+    @JsonIgnore
+    public int getEffectiveDepth() {
+        return depth > 0 ? depth : fanOut.size();
+    }
+
+    /**
+     * @param level     the level, starting from 1 for the nodes directly under an
+     *                  iteration node
+     * @param iteration the iteration
+     * @return the number of nodes under each node of the previous level
+     */
+    public int getCount(int level, int iteration) {
+        int f = fanOut.get(Math.min(level, fanOut.size()) - 1);
+        return f * (scaleByIteration ? iteration : 1) - (originalShape ? 1 : 0);
+    }
+
+    /**
+     * @return the number of nodes the spec generates, including the iteration
+     *         nodes
+     */
+    @JsonIgnore
+    public long getExpectedNodes() {
+        long total = 0;
+        for (int iteration = 1; iteration <= iterations; iteration++) {
+            total += 1 + getCount(1, iteration) * getSubtreeNodes(iteration);
+        }
+        return total;
+    }
+
+    /**
+     * @param iteration the iteration
+     * @return the number of nodes in the subtree of each node directly under the
+     *         iteration node, including that node
+     */
+    public long getSubtreeNodes(int iteration) {
+        long total = 0;
+        long levelNodes = 1;
+        for (int level = 1; level <= getEffectiveDepth(); level++) {
+            if (level > 1) {
+                levelNodes *= getCount(level, iteration);
+            }
+            total += levelNodes;
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of iterations
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @param iterations the number of iterations
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return the fan-out of each level, the last value is repeated if the depth
+     *         is greater than the number of values
+     */
+    public List<Integer> getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * @param fanOut the fan-out of each level
+     */
+    public void setFanOut(List<Integer> fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * @return the number of levels under each iteration, 0 for the number of
+     *         fan-out values
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @param depth the number of levels under each iteration, 0 for the number
+     *              of fan-out values
+     */
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * @return true if the fan-out is multiplied by the iteration
+     */
+    public boolean isScaleByIteration() {
+        return scaleByIteration;
+    }
+
+    /**
+     * @param scaleByIteration true if the fan-out is multiplied by the iteration
+     */
+    public void setScaleByIteration(boolean scaleByIteration) {
+        this.scaleByIteration = scaleByIteration;
+    }
+
+    /**
+     * @return the number of distinct values of each level's property, 0 to use
+     *         the node's number
+     */
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @param cardinality the number of distinct values of each level's property,
+     *                    0 to use the node's number
+     */
+    public void setCardinality(int cardinality) {
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * @return the share of nodes, from 0 up to 1, without their level's property
+     */
+    public double getMissingRatio() {
+        return missingRatio;
+    }
+
+    /**
+     * @param missingRatio the share of nodes, from 0 up to 1, without their
+     *                     level's property
+     */
+    public void setMissingRatio(double missingRatio) {
+        this.missingRatio = missingRatio;
+    }
+
+    /**
+     * @return the distribution of the values when a cardinality is set, uniform
+     *         or zipf
+     */
+    public String getSkew() {
+        return skew;
+    }
+
+    /**
+     * @param skew the distribution of the values when a cardinality is set,
+     *             uniform or zipf
+     */
+    public void setSkew(String skew) {
+        this.skew = skew;
+    }
+
+    /**
+     * @return the exponent of the Zipf distribution, higher values are more
+     *         skewed
+     */
+    public double getZipfExponent() {
+        return zipfExponent;
+    }
+
+    /**
+     * @param zipfExponent the exponent of the Zipf distribution
+     */
+    public void setZipfExponent(double zipfExponent) {
+        this.zipfExponent = zipfExponent;
+    }
+
+    /**
+     * @return the seed for the random values
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed the seed for the random values
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return the access control model to generate over the content, or null to
+     *         not generate one
+     */
+    public AclSpec getAcl() {
+        return acl;
+    }
+
+    /**
+     * @param acl the access control model to generate over the content, or null
+     *            to not generate one
+     */
+    public void setAcl(AclSpec acl) {
+        this.acl = acl;
+    }
+
+    /**
+     * @return true if each level has one node fewer than its fan-out, the shape
+     *         of the original tree
+     */
+    public boolean isOriginalShape() {
+        return originalShape;
+    }
+
+    /**
+     * @param originalShape true if each level has one node fewer than its
+     *                      fan-out, the shape of the original tree
+     */
+    public void setOriginalShape(boolean originalShape) {
+        this.originalShape = originalShape;
+    }
+}
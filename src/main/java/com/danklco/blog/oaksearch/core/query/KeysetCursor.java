@@ -0,0 +1,620 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Row;
+
+import org.apache.jackrabbit.JcrConstants;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Keyset (search after) pagination for queries with an ORDER BY. The cursor is
+ * an opaque token encoding every ORDER BY value and the path of the last row of
+ * a page. The next page restricts the ORDER BY properties to the rows after
+ * that row, so Oak can seek directly to the page in an ordered index rather
+ * than reading and discarding every preceding row.
+ * <p>
+ * A page after the row with the values v1..vk is read in phases, each a
+ * separate query, since Oak would execute an <code>OR</code> of the phases as
+ * a union sorted in memory. The first phase keeps t1..t(k-1) equal and starts
+ * tk from vk inclusive, each following phase keeps one property fewer equal and
+ * starts the last of them after its value, until the first property is after
+ * v1. Rows without a value sort first, so when descending they come after every
+ * row with a value and are returned by an additional <code>IS NULL</code>
+ * phase. Once a phase is exhausted the next cursor continues with the following
+ * phase.
+ * <p>
+ * Oak's Lucene index cannot order by jcr:path, so ties are broken by the path
+ * as the rows are read: the rows sharing every ORDER BY value are read as a
+ * group and returned ordered by path, and the rows of the group at the start of
+ * the first phase up to the last row's path are skipped. A group must fit into
+ * a page, otherwise the query is rejected as the ORDER BY is not selective
+ * enough to be paged through, add a more selective property to it.
+ * <p>
+ * The restrictions compare the values by their type, so a Lucene index must
+ * order a property which is not a string by its type too. The property must be
+ * declared with its type in the index definition, otherwise e.g. numbers are
+ * ordered as strings and a numeric restriction skips rows. The query is
+ * rejected if the definition of the index in the plan declares an ordered
+ * property without a type and the property's values are not strings.
+ */
+public class KeysetCursor {
+
+    /**
+     * Reads the path and the values of the properties of the current row
+     */
+    public interface ValueReader {
+        /**
+         * @param property the property to read
+         * @return the value or null if the row has no value for the property
+         * @throws RepositoryException an exception occurs reading the value
+         */
+        Value read(String property) throws RepositoryException;
+
+        /**
+         * @return the path of the row
+         * @throws RepositoryException an exception occurs reading the path
+         */
+        String getPath() throws RepositoryException;
+
+        /**
+         * @param node the node of the row
+         * @return a reader for the node's properties
+         */
+        static ValueReader of(Node node) {
+            return new ValueReader() {
+                @Override
+                public Value read(String property) throws RepositoryException {
+                    return node.hasProperty(property) ? node.getProperty(property).getValue() : null;
+                }
+
+                @Override
+                public String getPath() throws RepositoryException {
+                    return node.getPath();
+                }
+            };
+        }
+
+        /**
+         * @param row the row
+         * @return a reader for the row's values
+         */
+        static ValueReader of(Row row) {
+            return new ValueReader() {
+                @Override
+                public Value read(String property) throws RepositoryException {
+                    return row.getValue(property);
+                }
+
+                @Override
+                public String getPath() throws RepositoryException {
+                    return row.getPath();
+                }
+            };
+        }
+    }
+
+    /**
+     * Reads a page of results in the order of the ORDER BY values, then the
+     * path.
+     * 
+     * @param <T> the type of the results
+     */
+    public final class Page<T> {
+        private final Iterator<?> results;
+        private final Function<T, ValueReader> readers;
+        private final long limit;
+        private final Runnable onRead;
+        private final Deque<Result<T>> group = new ArrayDeque<>();
+        private final Set<String> checked = new HashSet<>();
+        private Result<T> lookahead;
+        private boolean seeked;
+        private long reads;
+        private long skipped;
+
+        private Page(Iterator<?> results, Function<T, ValueReader> readers, long limit, Runnable onRead) {
+            this.results = results;
+            this.readers = readers;
+            this.limit = limit;
+            this.onRead = onRead;
+        }
+
+        /**
+         * @return the next result of the page or null if there are no more
+         *         results
+         * @throws InvalidQueryException more rows than the page's limit share the
+         *                               same ORDER BY values or a property is
+         *                               ordered without its type by the index
+         * @throws RepositoryException   an exception occurs reading the results
+         */
+        public T next() throws RepositoryException {
+            while (group.isEmpty()) {
+                Result<T> first = lookahead != null ? lookahead : read();
+                if (first == null) {
+                    return null;
+                }
+                List<Result<T>> ties = new ArrayList<>();
+                ties.add(first);
+                while ((lookahead = read()) != null && isSame(lookahead.values, first.values)) {
+                    ties.add(lookahead);
+                    if (ties.size() > limit) {
+                        throw new InvalidQueryException("More than " + limit
+                                + " rows share the same ORDER BY values, add a more selective property to"
+                                + " the ORDER BY to page through them with a cursor");
+                    }
+                }
+                ties.sort(Comparator.comparing(r -> r.path));
+                boolean after = seeked || !seek || !isSame(first.values, lastValues);
+                seeked = true;
+                for (Result<T> tie : ties) {
+                    if (after || tie.path.compareTo(lastPath) > 0) {
+                        group.add(tie);
+                    } else {
+                        skipped++;
+                    }
+                }
+            }
+            Result<T> result = group.poll();
+            pageValues = result.values;
+            pagePath = result.path;
+            returned = true;
+            return result.item;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Result<T> read() throws RepositoryException {
+            if (!results.hasNext()) {
+                return null;
+            }
+            T item = (T) results.next();
+            reads++;
+            onRead.run();
+            ValueReader reader = readers.apply(item);
+            Value[] values = new Value[terms.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = reader.read(terms.get(i).property);
+                check(terms.get(i).property, values[i]);
+            }
+            return new Result<>(item, reader.getPath(), values);
+        }
+
+        private void check(String property, Value value) throws InvalidQueryException {
+            if (value == null || !checked.add(property)) {
+                return;
+            }
+            int type = value.getType();
+            if (untyped.contains(property) && type != PropertyType.STRING && type != PropertyType.NAME
+                    && type != PropertyType.PATH) {
+                throw new InvalidQueryException("The index orders " + property + " without a type while its values are "
+                        + PropertyType.nameFromValue(type)
+                        + ", declare its type in the index definition to page through it with a cursor");
+            }
+        }
+
+        /**
+         * @return the number of results read
+         */
+        public long getReads() {
+            return reads;
+        }
+
+        /**
+         * @return the number of results skipped as they were returned by the
+         *         previous page
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+    }
+
+    private static final class Result<T> {
+        private final T item;
+        private final String path;
+        private final Value[] values;
+
+        private Result(T item, String path, Value[] values) {
+            this.item = item;
+            this.path = path;
+            this.values = values;
+        }
+    }
+
+    static final String BIND_PREFIX = "keyset";
+
+    private static final Pattern ORDER_BY = Pattern.compile("(?is)^(.*?)\\s+ORDER\\s+BY\\s+(.+)$");
+
+    private static final Pattern WHERE = Pattern.compile("(?is)^(.*?)\\s+WHERE\\s+(.+)$");
+
+    private static final Pattern ORDER_TERM = Pattern
+            .compile("(?i)^(?:(\\[[^\\]]+\\]|\\w+)\\.)?(\\[[^\\]]+\\]|[\\w:]+)(?:\\s+(ASC|DESC))?$");
+
+    private static final Pattern PLAN_INDEX = Pattern.compile("/\\* lucene:[^(\\s]+\\(([^)]+)\\)");
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final class OrderTerm {
+        private final String selector;
+        private final String property;
+        private final boolean descending;
+
+        private OrderTerm(String selector, String property, boolean descending) {
+            this.selector = selector;
+            this.property = property;
+            this.descending = descending;
+        }
+
+        private String toSql() {
+            return (selector != null ? "[" + selector + "]." : "") + "[" + property + "]";
+        }
+    }
+
+    /**
+     * The restriction of one phase of the rows after the last row
+     */
+    private static final class Phase {
+        private final List<String> conditions;
+        private final Map<String, Value> values;
+        private final boolean seek;
+
+        private Phase(List<String> conditions, Map<String, Value> values, boolean seek) {
+            this.conditions = conditions;
+            this.values = values;
+            this.seek = seek;
+        }
+    }
+
+    private final int hash;
+    private final List<OrderTerm> terms;
+    private final boolean firstPage;
+    private final Value[] lastValues;
+    private final String lastPath;
+    private final List<Phase> phases;
+    private final int phase;
+    private final boolean seek;
+    private final String statement;
+
+    private final Set<String> untyped = new HashSet<>();
+    private boolean returned;
+    private Value[] pageValues;
+    private String pagePath;
+
+    private KeysetCursor(String query, int hash, List<OrderTerm> terms, Value[] lastValues, String lastPath,
+            int phase) throws InvalidQueryException {
+        this.hash = hash;
+        this.terms = terms;
+        this.firstPage = lastValues == null;
+        this.lastValues = lastValues;
+        this.lastPath = lastPath;
+        this.phases = firstPage ? List.of() : phases(terms, lastValues);
+        if (!firstPage && (phase < 0 || phase >= phases.size())) {
+            throw new InvalidQueryException("Invalid cursor: no phase " + phase);
+        }
+        this.phase = phase;
+        this.seek = !firstPage && phases.get(phase).seek;
+        this.statement = rewrite(query, firstPage ? List.of() : phases.get(phase).conditions);
+    }
+
+    /**
+     * Parses the ORDER BY clause of the query and decodes the cursor.
+     * 
+     * @param query        the JCR-SQL2 query, which must be ordered by one or more
+     *                     properties
+     * @param bindings     the values bound to the query's variables
+     * @param token        the cursor returned with the previous page or an empty
+     *                     string for the first page
+     * @param valueFactory the factory to recreate the cursor's values
+     * @return the cursor
+     * @throws InvalidQueryException the query cannot be paginated or the cursor
+     *                               is invalid or for another query or
+     *                               bindings
+     */
+    public static KeysetCursor parse(String query, Map<String, Object> bindings, String token,
+            ValueFactory valueFactory) throws InvalidQueryException {
+        List<OrderTerm> terms = parseOrdering(query);
+        int hash = Objects.hash(query, bindings);
+        if (token.isEmpty()) {
+            return new KeysetCursor(query, hash, terms, null, null, 0);
+        }
+        try {
+            JsonNode cursor = objectMapper.readTree(Base64.getUrlDecoder().decode(token));
+            if (cursor.path("q").asInt() != hash) {
+                throw new InvalidQueryException("Cursor was not issued for this query and bindings");
+            }
+            JsonNode values = cursor.get("v");
+            if (values.size() != terms.size()) {
+                throw new InvalidQueryException("Cursor was not issued for this query and bindings");
+            }
+            Value[] lastValues = new Value[terms.size()];
+            for (int i = 0; i < lastValues.length; i++) {
+                JsonNode value = values.get(i);
+                lastValues[i] = value.isNull() ? null
+                        : valueFactory.createValue(value.get("s").asText(),
+                                PropertyType.valueFromName(value.get("t").asText()));
+            }
+            return new KeysetCursor(query, hash, terms, lastValues, cursor.get("p").asText(),
+                    cursor.get("f").asInt());
+        } catch (IOException | IllegalArgumentException | NullPointerException | RepositoryException e) {
+            throw new InvalidQueryException("Invalid cursor: " + e.getMessage(), e);
+        }
+    }
+
+    private static List<OrderTerm> parseOrdering(String query) throws InvalidQueryException {
+        Matcher orderBy = ORDER_BY.matcher(query.trim());
+        if (!orderBy.matches()) {
+            throw new InvalidQueryException("Cursor pagination requires an ORDER BY");
+        }
+        List<OrderTerm> terms = new ArrayList<>();
+        for (String term : orderBy.group(2).split(",")) {
+            Matcher matcher = ORDER_TERM.matcher(term.trim());
+            if (!matcher.matches()) {
+                throw new InvalidQueryException("Cursor pagination only supports ordering by properties: " + term);
+            }
+            String selector = matcher.group(1) != null ? unbracket(matcher.group(1)) : null;
+            String property = unbracket(matcher.group(2));
+            if (JcrConstants.JCR_PATH.equals(property) || "jcr:score".equals(property)) {
+                throw new InvalidQueryException("Cursor pagination cannot seek on " + property);
+            }
+            terms.add(new OrderTerm(selector, property,
+                    "DESC".equalsIgnoreCase(matcher.group(3))));
+        }
+        return terms;
+    }
+
+    private static String unbracket(String name) {
+        return name.startsWith("[") ? name.substring(1, name.length() - 1) : name;
+    }
+
+    /**
+     * Lists the phases of the rows after the row with the values, from the
+     * rows sharing every value but the last to the rows after the first value.
+     */
+    private static List<Phase> phases(List<OrderTerm> terms, Value[] last) {
+        List<Phase> phases = new ArrayList<>();
+        for (int j = terms.size() - 1; j >= 0; j--) {
+            List<String> prefix = new ArrayList<>();
+            Map<String, Value> values = new LinkedHashMap<>();
+            for (int i = 0; i < j; i++) {
+                if (last[i] == null) {
+                    prefix.add(terms.get(i).toSql() + " IS NULL");
+                } else {
+                    prefix.add(terms.get(i).toSql() + " = $" + BIND_PREFIX + i);
+                    values.put(BIND_PREFIX + i, last[i]);
+                }
+            }
+            OrderTerm term = terms.get(j);
+            boolean inclusive = j == terms.size() - 1;
+            if (last[j] != null) {
+                Map<String, Value> bound = new LinkedHashMap<>(values);
+                bound.put(BIND_PREFIX + j, last[j]);
+                String operator = term.descending ? (inclusive ? " <= $" : " < $") : (inclusive ? " >= $" : " > $");
+                phases.add(new Phase(with(prefix, term.toSql() + operator + BIND_PREFIX + j), bound, inclusive));
+                if (term.descending) {
+                    phases.add(new Phase(with(prefix, term.toSql() + " IS NULL"), values, false));
+                }
+            } else if (inclusive) {
+                // the rows without a value sort first, from there on every row comes after the
+                // last row when ascending
+                phases.add(new Phase(term.descending ? with(prefix, term.toSql() + " IS NULL") : prefix, values,
+                        true));
+            } else if (!term.descending) {
+                phases.add(new Phase(with(prefix, term.toSql() + " IS NOT NULL"), values, false));
+            }
+        }
+        return phases;
+    }
+
+    private static List<String> with(List<String> conditions, String condition) {
+        List<String> combined = new ArrayList<>(conditions);
+        combined.add(condition);
+        return combined;
+    }
+
+    /**
+     * Adds the conditions of the phase to the query's constraint.
+     */
+    private static String rewrite(String query, List<String> conditions) {
+        Matcher orderBy = ORDER_BY.matcher(query.trim());
+        orderBy.matches();
+        String base = orderBy.group(1);
+        if (!conditions.isEmpty()) {
+            String restriction = String.join(" AND ", conditions);
+            Matcher where = WHERE.matcher(base);
+            base = where.matches() ? where.group(1) + " WHERE (" + where.group(2) + ") AND " + restriction
+                    : base + " WHERE " + restriction;
+        }
+        return base + " ORDER BY " + orderBy.group(2);
+    }
+
+    /**
+     * @return the statement to execute for the page
+     */
+    public String getStatement() {
+        return statement;
+    }
+
+    /**
+     * @return the values to bind to the restrictions of the page's phase by
+     *         variable name
+     */
+    public Map<String, Value> getBoundValues() {
+        return firstPage ? Map.of() : phases.get(phase).values;
+    }
+
+    /**
+     * @return true if this is the first page
+     */
+    public boolean isFirstPage() {
+        return firstPage;
+    }
+
+    /**
+     * Reads the definitions of the ORDER BY properties from the Lucene index the
+     * plan uses, to reject the query if the index orders a property without a
+     * type. Unless the plan uses a Lucene index, the query engine orders the
+     * rows by comparing their values.
+     * 
+     * @param session a session which can read the index definition
+     * @param plan    the plan of the page's statement
+     * @throws RepositoryException an exception occurs reading the definition
+     */
+    public void readIndexTypes(Session session, String plan) throws RepositoryException {
+        Matcher index = PLAN_INDEX.matcher(plan);
+        if (!index.find() || !session.nodeExists(index.group(1) + "/indexRules")) {
+            return;
+        }
+        for (NodeIterator rules = session.getNode(index.group(1) + "/indexRules").getNodes(); rules.hasNext();) {
+            Node rule = rules.nextNode();
+            if (!rule.hasNode("properties")) {
+                continue;
+            }
+            for (OrderTerm term : terms) {
+                Node definition = findDefinition(rule.getNode("properties"), term.property);
+                if (definition != null && definition.hasProperty("ordered")
+                        && definition.getProperty("ordered").getBoolean()
+                        && (!definition.hasProperty("type")
+                                || "undefined".equalsIgnoreCase(definition.getProperty("type").getString()))) {
+                    untyped.add(term.property);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the definition of the property like Oak, preferring a definition of
+     * its name over the first regular expression matching it.
+     */
+    private static Node findDefinition(Node properties, String property) throws RepositoryException {
+        Node pattern = null;
+        for (NodeIterator definitions = properties.getNodes(); definitions.hasNext();) {
+            Node definition = definitions.nextNode();
+            String name = definition.hasProperty("name") ? definition.getProperty("name").getString()
+                    : definition.getName();
+            boolean regexp = definition.hasProperty("isRegexp") && definition.getProperty("isRegexp").getBoolean();
+            if (!regexp && name.equals(property)) {
+                return definition;
+            } else if (regexp && pattern == null && property.matches(name)) {
+                pattern = definition;
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Starts reading the page. The query must not be limited, as the rows sharing
+     * the ORDER BY values of a page's last row are read ahead.
+     * 
+     * @param <T>     the type of the results
+     * @param results the results of the page's statement
+     * @param readers creates a reader for the values of a result
+     * @param limit   the page size
+     * @param onRead  called after each result read
+     * @return the page
+     */
+    public <T> Page<T> page(Iterator<?> results, Function<T, ValueReader> readers, long limit, Runnable onRead) {
+        return new Page<>(results, readers, limit, onRead);
+    }
+
+    /**
+     * @return true if a row has been returned in the page
+     */
+    public boolean hasReturned() {
+        return returned;
+    }
+
+    /**
+     * @return the cursor for the page after the last row returned
+     * @throws RepositoryException an exception occurs encoding the cursor
+     */
+    public String next() throws RepositoryException {
+        return encode(pageValues, pagePath, 0);
+    }
+
+    /**
+     * Once a page is not filled, the page's phase is exhausted and the rows after
+     * it are returned by the following phase.
+     * 
+     * @return the cursor for the start of the following phase, or null if there
+     *         are no more pages
+     * @throws RepositoryException an exception occurs encoding the cursor
+     */
+    public String remaining() throws RepositoryException {
+        return !firstPage && phase + 1 < phases.size() ? encode(lastValues, lastPath, phase + 1) : null;
+    }
+
+    private String encode(Value[] values, String path, int phase) throws RepositoryException {
+        ObjectNode cursor = objectMapper.createObjectNode();
+        cursor.put("q", hash);
+        ArrayNode encoded = cursor.putArray("v");
+        for (Value value : values) {
+            if (value == null) {
+                encoded.addNull();
+            } else {
+                encoded.addObject().put("t", PropertyType.nameFromValue(value.getType())).put("s",
+                        value.getString());
+            }
+        }
+        cursor.put("p", path);
+        cursor.put("f", phase);
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(cursor.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean isSame(Value[] a, Value[] b) throws RepositoryException {
+        for (int i = 0; i < a.length; i++) {
+            if (!isSame(a[i], b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSame(Value a, Value b) throws RepositoryException {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getString().equals(b.getString());
+    }
+}
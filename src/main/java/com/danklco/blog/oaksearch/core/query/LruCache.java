@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * A size bounded, least recently used cache which keeps hit, miss and eviction
+ * counters. All access is synchronized, the caches in this project are small
+ * and only hold onto strings so contention is not a concern.
+ */
+public class LruCache<K, V> {
+
+    private final int maxSize;
+    private final Map<K, V> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    /**
+     * @param maxSize the maximum number of entries to retain
+     */
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                boolean evict = size() > LruCache.this.maxSize;
+                if (evict) {
+                    evictions++;
+                }
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Retrieves an entry, counting the lookup as a hit or a miss.
+     * 
+     * @param key the key to look up
+     * @return the value or null if there is no entry for the key
+     */
+    public synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    /**
+     * @param key   the key of the entry
+     * @param value the value to cache
+     */
+    public synchronized void put(K key, V value) {
+        if (maxSize > 0) {
+            entries.put(key, value);
+        }
+    }
+
+    /**
+     * Removes every entry matching the predicate
+     * 
+     * @param predicate the predicate to test the entries against
+     * @return the number of entries removed
+     */
+    public synchronized int invalidateIf(BiPredicate<K, V> predicate) {
+        int before = entries.size();
+        entries.entrySet().removeIf(e -> predicate.test(e.getKey(), e.getValue()));
+        int removed = before - entries.size();
+        invalidations += removed;
+        return removed;
+    }
+
+    /**
+     * Removes all of the entries from the cache
+     */
+    public synchronized void invalidateAll() {
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    /**
+     * @return a snapshot of the size and counters of the cache
+     */
+    public synchronized Map<String, Object> getStats() {
+        return Map.of("size", entries.size(), "maxSize", maxSize, "hits", hits, "misses", misses, "evictions",
+                evictions, "invalidations", invalidations);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * Inspects the plan returned by <code>explain</code> before a query is
+ * executed, flagging the patterns demonstrated by the tests which cause Oak to
+ * load nodes into memory to evaluate a query: traversal, constrained queries
+ * only using the node type index, property restrictions which aren't part of
+ * the index query and ordering which isn't handled by the index. The
+ * configured policy determines whether each finding rejects the query, caps
+ * its limit or is just reported as a warning.
+ */
+@Component(service = PlanAnalyzer.class)
+@Designate(ocd = PlanAnalyzer.Config.class)
+public class PlanAnalyzer {
+
+    /**
+     * What to do with a query with a finding
+     */
+    public enum Action {
+        /** Don't report the finding */
+        IGNORE,
+        /** Report the finding but execute the query */
+        WARN,
+        /** Report the finding and cap the limit of the query */
+        CAP,
+        /** Reject the query without executing it */
+        REJECT
+    }
+
+    /**
+     * The types of findings
+     */
+    public enum FindingType {
+        /** The query traverses the repository */
+        TRAVERSAL,
+        /** The query has constraints but only uses the node type index */
+        NODE_TYPE_INDEX,
+        /** A property restriction isn't evaluated by the index */
+        UNINDEXED_PROPERTY,
+        /** The ordering isn't handled by the index */
+        UNINDEXED_ORDER
+    }
+
+    @ObjectClassDefinition(name = "Oak Search Gotchas - Plan Analyzer", description = "Determines what to do with queries with expensive plans")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Traversal Action", description = "The action for queries which traverse the repository")
+        Action traversal_action() default Action.WARN;
+
+        @AttributeDefinition(name = "Node Type Index Action", description = "The action for constrained queries which only use the node type index")
+        Action nodeTypeIndex_action() default Action.WARN;
+
+        @AttributeDefinition(name = "Unindexed Property Action", description = "The action for queries with property restrictions which aren't evaluated by the index")
+        Action unindexedProperty_action() default Action.WARN;
+
+        @AttributeDefinition(name = "Unindexed Order Action", description = "The action for queries with ordering which isn't handled by the index")
+        Action unindexedOrder_action() default Action.WARN;
+
+        @AttributeDefinition(name = "Cap Limit", description = "The limit to apply to queries with findings with the CAP action")
+        long capLimit() default 100;
+    }
+
+    /**
+     * A problem found in a plan
+     */
+    public static final class Finding {
+        private final FindingType type;
+        private final Action action;
+        private final String message;
+
+        Finding(FindingType type, Action action, String message) {
+            this.type = type;
+            this.action = action;
+            this.message = message;
+        }
+
+        /**
+         * @return the type of finding
+         */
+        public FindingType getType() {
+            return type;
+        }
+
+        /**
+         * @return the action configured for the finding
+         */
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * @return a description of the finding
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private static final Pattern PROPERTY_RESTRICTION = Pattern.compile("\\[[^\\]]+\\]\\.\\[([^\\]]+)\\]");
+    private static final Pattern ORDER_BY = Pattern.compile("\\bORDER\\s+BY\\s+(.*)$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern ORDER_PROPERTY = Pattern.compile("\\[([^\\]]+)\\]\\s*(?:ASC|DESC)?\\s*(?:,|$)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Set<String> IGNORED_PROPERTIES = Set.of("jcr:path", "jcr:score", "rep:excerpt",
+            "jcr:primaryType");
+
+    private Config config;
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * @return the limit to apply to queries with findings with the CAP action
+     */
+    public long getCapLimit() {
+        return config.capLimit();
+    }
+
+    /**
+     * Analyzes the plan of a query
+     * 
+     * @param statement the query statement
+     * @param plan      the plan returned by explain
+     * @return the findings, excluding ignored findings
+     */
+    public List<Finding> analyze(String statement, String plan) {
+        List<Finding> findings = new ArrayList<>();
+        String lowerPlan = plan.toLowerCase(Locale.ENGLISH);
+        int whereIdx = lowerPlan.indexOf(" where ");
+        String indexPart = whereIdx >= 0 ? plan.substring(0, whereIdx) : plan;
+        String wherePart = whereIdx >= 0 ? plan.substring(whereIdx) : "";
+
+        if (lowerPlan.contains("/* traverse ")) {
+            add(findings, FindingType.TRAVERSAL, config.traversal_action(),
+                    "The query traverses the repository: " + indexPart);
+        } else if (lowerPlan.contains("/* nodetype ") && !wherePart.isEmpty()) {
+            add(findings, FindingType.NODE_TYPE_INDEX, config.nodeTypeIndex_action(),
+                    "The query is constrained but only uses the node type index, nodes will be loaded to evaluate the constraints");
+        } else {
+            for (String property : getRestrictedProperties(wherePart)) {
+                if (!indexPart.contains(property)) {
+                    add(findings, FindingType.UNINDEXED_PROPERTY, config.unindexedProperty_action(),
+                            "The restriction on " + property
+                                    + " is not evaluated by the index, nodes will be loaded to filter it");
+                }
+            }
+        }
+
+        for (String property : getOrderProperties(statement)) {
+            if (!indexPart.contains("propertyName : " + property)) {
+                add(findings, FindingType.UNINDEXED_ORDER, config.unindexedOrder_action(),
+                        "The ordering by " + property + " is not handled by the index, results will be sorted in memory");
+            }
+        }
+        return findings;
+    }
+
+    private void add(List<Finding> findings, FindingType type, Action action, String message) {
+        if (action != Action.IGNORE) {
+            findings.add(new Finding(type, action, message));
+        }
+    }
+
+    private static Set<String> getRestrictedProperties(String wherePart) {
+        Set<String> properties = new LinkedHashSet<>();
+        Matcher matcher = PROPERTY_RESTRICTION.matcher(wherePart);
+        while (matcher.find()) {
+            if (!IGNORED_PROPERTIES.contains(matcher.group(1))) {
+                properties.add(matcher.group(1));
+            }
+        }
+        return properties;
+    }
+
+    private static Set<String> getOrderProperties(String statement) {
+        Set<String> properties = new LinkedHashSet<>();
+        Matcher orderBy = ORDER_BY.matcher(statement);
+        if (orderBy.find()) {
+            Matcher matcher = ORDER_PROPERTY.matcher(orderBy.group(1).trim());
+            while (matcher.find()) {
+                if (!IGNORED_PROPERTIES.contains(matcher.group(1))) {
+                    properties.add(matcher.group(1));
+                }
+            }
+        }
+        return properties;
+    }
+}
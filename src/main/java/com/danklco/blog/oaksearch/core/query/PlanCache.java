@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the output of <code>explain</code> by query statement so that hot
+ * queries don't pay for parsing and planning twice on every request. As the
+ * plan depends on the available indexes, the whole cache is dropped whenever
+ * anything under /oak:index changes, including the reindex flag being reset
+ * when a reindex completes.
+ */
+@Component(service = { PlanCache.class, ResourceChangeListener.class }, property = {
+        ResourceChangeListener.PATHS + "=/oak:index" })
+@Designate(ocd = PlanCache.Config.class)
+public class PlanCache implements ResourceChangeListener {
+
+    @ObjectClassDefinition(name = "Oak Search Gotchas - Plan Cache", description = "Caches query plans by statement")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Max Size", description = "The maximum number of plans to cache, 0 to disable")
+        int maxSize() default 500;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(PlanCache.class);
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private LruCache<String, String> cache;
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        cache = new LruCache<>(config.maxSize());
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @param statement the query statement
+     * @return the cached plan or null if the plan is not cached
+     */
+    public String get(String statement) {
+        return cache.get(statement);
+    }
+
+    /**
+     * Returns the current generation of the cache, callers should retrieve this
+     * before explaining a query and pass it to
+     * {@link #put(String, String, long)} so that a plan computed against an index
+     * definition which changed in the meantime is not cached.
+     * 
+     * @return the current generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @param statement  the query statement
+     * @param plan       the plan for the statement
+     * @param generation the generation retrieved before explaining the statement
+     */
+    public synchronized void put(String statement, String plan, long generation) {
+        if (this.generation.get() == generation) {
+            cache.put(statement, plan);
+        }
+    }
+
+    /**
+     * @return the size and counters of the cache
+     */
+    public Map<String, Object> getStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public synchronized void onChange(List<ResourceChange> changes) {
+        log.debug("Invalidating plan cache after {} changes under /oak:index", changes.size());
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+}
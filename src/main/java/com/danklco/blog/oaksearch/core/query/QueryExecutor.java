@@ -0,0 +1,245 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes queries on a dedicated, bounded pool so that a burst of heavy
+ * queries cannot use up the servlet container's threads. Rather than queueing
+ * without bound, queries are rejected once the queue is full or the calling
+ * principal already has the maximum number of queries running or queued.
+ * When the executor is deactivated, the queries still queued are abandoned
+ * rather than silently dropped, so their clients are not left waiting.
+ */
+@Component(service = QueryExecutor.class)
+@Designate(ocd = QueryExecutor.Config.class)
+public class QueryExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryExecutor.class);
+
+    @ObjectClassDefinition(name = "Oak Search Gotchas - Query Executor", description = "Executes queries on a bounded pool")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Threads", description = "The number of queries to execute concurrently")
+        int threads() default 8;
+
+        @AttributeDefinition(name = "Queue Size", description = "The number of queries which can wait for a thread before queries are rejected")
+        int queueSize() default 32;
+
+        @AttributeDefinition(name = "Max Per Principal", description = "The maximum number of queries a single principal can have running or queued")
+        int maxPerPrincipal() default 4;
+
+        @AttributeDefinition(name = "Retry After", description = "The number of seconds rejected clients are asked to wait before retrying")
+        int retryAfterSeconds() default 1;
+    }
+
+    /**
+     * Thrown when a query is rejected, either as the queue is full or the
+     * principal is over its limit.
+     */
+    public static class QueryRejectedException extends RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        private final int retryAfterSeconds;
+
+        QueryRejectedException(String message, int retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * @return the number of seconds to wait before retrying
+         */
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * A query which is notified if it is abandoned without running, as the
+     * executor was deactivated while it was queued.
+     */
+    public interface QueryTask extends Runnable {
+
+        /**
+         * Called instead of {@link #run()} if the query will never run.
+         */
+        void abandon();
+
+        /**
+         * @param future the future executing the query
+         * @return a task running the future, which is cancelled if the task is
+         *         abandoned so that threads waiting on it are released
+         */
+        static QueryTask of(FutureTask<?> future) {
+            return new QueryTask() {
+                @Override
+                public void run() {
+                    future.run();
+                }
+
+                @Override
+                public void abandon() {
+                    future.cancel(false);
+                }
+            };
+        }
+    }
+
+    /**
+     * Releases the principal's slot once the query runs or is abandoned.
+     */
+    private class QueuedQuery implements Runnable {
+
+        private final String principal;
+
+        private final Runnable task;
+
+        QueuedQuery(String principal, Runnable task) {
+            this.principal = principal;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                release(principal);
+            }
+        }
+
+        void abandon() {
+            try {
+                if (task instanceof QueryTask) {
+                    ((QueryTask) task).abandon();
+                }
+            } finally {
+                release(principal);
+            }
+        }
+    }
+
+    private final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong rejectedQueueFull = new AtomicLong();
+
+    private final AtomicLong rejectedPrincipalLimit = new AtomicLong();
+
+    private ThreadPoolExecutor executor;
+
+    private int queueSize;
+
+    private int maxPerPrincipal;
+
+    private int retryAfterSeconds;
+
+    @Activate
+    protected void activate(Config config) {
+        queueSize = Math.max(1, config.queueSize());
+        maxPerPrincipal = config.maxPerPrincipal();
+        retryAfterSeconds = config.retryAfterSeconds();
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = r -> new Thread(r, "oak-search-query-" + threadCount.incrementAndGet());
+        executor = new ThreadPoolExecutor(config.threads(), config.threads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        for (Runnable queued : executor.shutdownNow()) {
+            try {
+                ((QueuedQuery) queued).abandon();
+            } catch (RuntimeException e) {
+                log.warn("Failed to abandon queued query", e);
+            }
+        }
+    }
+
+    /**
+     * Queues the task for execution. If the task is a {@link QueryTask}, it is
+     * abandoned if the executor is deactivated before it runs.
+     * 
+     * @param principal the principal executing the query
+     * @param task      the task executing the query
+     * @throws QueryRejectedException the queue is full or the principal has too
+     *                                many queries running or queued
+     */
+    public void execute(String principal, Runnable task) {
+        boolean[] admitted = new boolean[1];
+        inFlight.compute(principal, (k, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= maxPerPrincipal) {
+                return count;
+            }
+            admitted[0] = true;
+            return current + 1;
+        });
+        if (!admitted[0]) {
+            rejectedPrincipalLimit.incrementAndGet();
+            throw new QueryRejectedException(
+                    principal + " already has " + maxPerPrincipal + " queries running or queued", retryAfterSeconds);
+        }
+        try {
+            executor.execute(new QueuedQuery(principal, task));
+        } catch (RejectedExecutionException e) {
+            release(principal);
+            rejectedQueueFull.incrementAndGet();
+            throw new QueryRejectedException("Query queue is full", retryAfterSeconds);
+        }
+    }
+
+    private void release(String principal) {
+        inFlight.computeIfPresent(principal, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * @return the size, queue depth, active count and rejection counters of the
+     *         pool
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threads", executor.getMaximumPoolSize());
+        stats.put("activeCount", executor.getActiveCount());
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("queueSize", queueSize);
+        stats.put("completed", executor.getCompletedTaskCount());
+        stats.put("principals", inFlight.size());
+        stats.put("rejectedQueueFull", rejectedQueueFull.get());
+        stats.put("rejectedPrincipalLimit", rejectedPrincipalLimit.get());
+        return stats;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The options for a query to be executed by the {@link QueryRunner}
+ */
+public class QueryRequest {
+
+    /**
+     * What the query returns
+     */
+    public enum Mode {
+        /** the paths or rows of the results */
+        RESULTS,
+        /** an exact count of the results, iterating the rows without loading nodes */
+        COUNT,
+        /** the size estimated by the query result, without iterating */
+        ESTIMATE
+    }
+
+    private final String query;
+    private final long limit;
+    private boolean usePlanCache = true;
+    private boolean useResultCache = true;
+    private List<String> columns = List.of();
+    private Map<String, Object> bindings = Map.of();
+    private long timeoutMs = 0L;
+    private Mode mode = Mode.RESULTS;
+    private String cursor;
+    private boolean measureAccessControl;
+
+    /**
+     * @param query the JCR-SQL2 query, which may contain <code>$name</code> bind
+     *              variables
+     * @param limit the maximum number of results
+     */
+    public QueryRequest(String query, long limit) {
+        this.query = query;
+        this.limit = limit;
+    }
+
+    /**
+     * @return the query
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return the limit
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return whether the plan cache should be used
+     */
+    public boolean isUsePlanCache() {
+        return usePlanCache;
+    }
+
+    /**
+     * @param usePlanCache whether the plan cache should be used
+     */
+    public void setUsePlanCache(boolean usePlanCache) {
+        this.usePlanCache = usePlanCache;
+    }
+
+    /**
+     * @return whether the result cache should be used, if enabled
+     */
+    public boolean isUseResultCache() {
+        return useResultCache;
+    }
+
+    /**
+     * @param useResultCache whether the result cache should be used, if enabled
+     */
+    public void setUseResultCache(boolean useResultCache) {
+        this.useResultCache = useResultCache;
+    }
+
+    /**
+     * @return the columns to read from the rows, if empty the nodes are loaded
+     *         and their paths returned
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @param columns the columns to read from the rows
+     */
+    public void setColumns(List<String> columns) {
+        this.columns = List.copyOf(columns);
+    }
+
+    /**
+     * @return true if the results should be read as rows of columns rather than
+     *         loading the nodes
+     */
+    public boolean isProjection() {
+        return !columns.isEmpty();
+    }
+
+    /**
+     * @return the values to bind to the query's variables by name
+     */
+    public Map<String, Object> getBindings() {
+        return bindings;
+    }
+
+    /**
+     * @param bindings the values to bind to the query's variables by name, either
+     *                 String, Long, Double, Boolean or Calendar
+     */
+    public void setBindings(Map<String, Object> bindings) {
+        this.bindings = new LinkedHashMap<>(bindings);
+    }
+
+    /**
+     * @return the time in milliseconds after which to stop reading results, 0 to
+     *         use the server's maximum
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * @param timeoutMs the time in milliseconds after which to stop reading
+     *                  results, capped by the server's maximum
+     */
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return what the query returns
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mode what the query returns, when counting the limit caps the count
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return true if the query returns a count rather than the results
+     */
+    public boolean isCounting() {
+        return mode != Mode.RESULTS;
+    }
+
+    /**
+     * @return the cursor of the page to retrieve, an empty string for the first
+     *         page or null if the results are not paginated
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @param cursor the cursor returned with the previous page, an empty string
+     *               for the first page or null to not paginate the results
+     */
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    /**
+     * @return true if the rows read from the index are compared with the rows
+     *         which passed access control
+     */
+    public boolean isMeasureAccessControl() {
+        return measureAccessControl;
+    }
+
+    /**
+     * @param measureAccessControl true to compare the rows read from the index
+     *                             with the rows which passed access control
+     */
+    public void setMeasureAccessControl(boolean measureAccessControl) {
+        this.measureAccessControl = measureAccessControl;
+    }
+}
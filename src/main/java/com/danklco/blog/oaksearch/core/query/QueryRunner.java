@@ -0,0 +1,805 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.core.query.KeysetCursor.ValueReader;
+import com.danklco.blog.oaksearch.core.query.PlanAnalyzer.Action;
+import com.danklco.blog.oaksearch.core.query.PlanAnalyzer.Finding;
+import com.danklco.blog.oaksearch.core.query.QueryRequest.Mode;
+import com.danklco.blog.oaksearch.core.query.QueryTimings.Phase;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Executes queries against a JCR Session and streams the results to a
+ * JsonGenerator. Shared by the servlets which execute queries so they all
+ * report results in the same structure.
+ */
+@Component(service = QueryRunner.class)
+@Designate(ocd = QueryRunner.Config.class)
+public class QueryRunner {
+
+    @ObjectClassDefinition(name = "Oak Search Gotchas - Query Runner", description = "Executes queries for the query servlets")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Max Timeout", description = "The maximum time in milliseconds a query may take before it stops reading results, also used when no timeout is requested")
+        long maxTimeoutMs() default 60000;
+
+        @AttributeDefinition(name = "Max Access Control Rows", description = "The maximum number of rows read with the service session when measuring the rows filtered by access control")
+        long maxAccessControlRows() default 100000;
+    }
+
+    /**
+     * The service user mapping of the session which reads every row of a query
+     * to measure the rows filtered by access control
+     */
+    public static final String SUBSERVICE_ACCESS_CONTROL = "access-control";
+
+    private static final Logger log = LoggerFactory.getLogger(QueryRunner.class);
+
+    /**
+     * A query which has been parsed and explained and is ready to execute
+     */
+    public static final class PreparedQuery {
+        private final QueryRequest request;
+        private final Query query;
+        private final QueryTimings timings;
+        private final ResultCache.Key cacheKey;
+        private final String principal;
+        private Session session;
+        private Map<String, Value> values = Map.of();
+        private ResultCache.Entry cached;
+        private String plan = "";
+        private boolean planCached;
+        private String planException;
+        private List<Finding> findings = List.of();
+        private Finding rejection;
+        private long effectiveLimit;
+        private long timeoutMs;
+        private long deadline;
+        private KeysetCursor keyset;
+
+        private PreparedQuery(QueryRequest request, Query query, QueryTimings timings, ResultCache.Key cacheKey,
+                String principal) {
+            this.request = request;
+            this.principal = principal;
+            this.query = query;
+            this.timings = timings;
+            this.cacheKey = cacheKey;
+            this.effectiveLimit = request.getLimit();
+        }
+
+        /**
+         * @return the request the query was prepared from
+         */
+        public QueryRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * @return the finding which caused the query to be rejected or null if the
+         *         query can be executed
+         */
+        public Finding getRejection() {
+            return rejection;
+        }
+    }
+
+    @Reference
+    private PlanCache planCache;
+
+    @Reference
+    private ResultCache resultCache;
+
+    @Reference
+    private PlanAnalyzer planAnalyzer;
+
+    @Reference
+    private QueryStatsRecorder statsRecorder;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private long maxTimeoutMs;
+
+    private long maxAccessControlRows;
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        maxTimeoutMs = config.maxTimeoutMs();
+        maxAccessControlRows = config.maxAccessControlRows();
+    }
+
+    /**
+     * Parses and explains the query and analyzes the plan, the timings and the
+     * deadline of the query start when it is prepared. If the result is cached,
+     * the query is not explained, but the plan analyzer's policy is still applied
+     * to the plan the result was cached with.
+     * 
+     * @param session the session to execute the query with
+     * @param request the query to prepare
+     * @return the prepared query
+     * @throws InvalidQueryException the query is not valid
+     * @throws RepositoryException   an exception occurs retrieving the query
+     *                               manager
+     */
+    public PreparedQuery prepare(Session session, QueryRequest request) throws RepositoryException {
+        QueryTimings timings = new QueryTimings();
+        QueryManager queryManager = session.getWorkspace().getQueryManager();
+
+        long parseStart = System.nanoTime();
+        KeysetCursor keyset = request.getCursor() != null && !request.isCounting()
+                ? KeysetCursor.parse(request.getQuery(), request.getBindings(), request.getCursor(),
+                        session.getValueFactory())
+                : null;
+        Query query = queryManager.createQuery(keyset != null ? keyset.getStatement() : request.getQuery(),
+                Query.JCR_SQL2);
+        Map<String, Value> values = bind(query, request.getBindings(), session.getValueFactory(),
+                keyset != null ? keyset.getBoundValues() : Map.of());
+        timings.record(Phase.PARSE, parseStart);
+
+        ResultCache.Key cacheKey = null;
+        if (resultCache.isEnabled() && request.isUseResultCache() && !request.isProjection()
+                && !request.isCounting() && keyset == null && !request.isMeasureAccessControl()) {
+            try {
+                cacheKey = resultCache.createKey(request.getQuery(), request.getBindings(), request.getLimit(),
+                        session);
+            } catch (RepositoryException e) {
+                log.warn("Failed to create result cache key, not caching query: {}", request.getQuery(), e);
+            }
+        }
+        PreparedQuery prepared = new PreparedQuery(request, query, timings, cacheKey, session.getUserID());
+        prepared.timeoutMs = request.getTimeoutMs() > 0 ? Math.min(request.getTimeoutMs(), maxTimeoutMs)
+                : maxTimeoutMs;
+        prepared.deadline = parseStart + TimeUnit.MILLISECONDS.toNanos(prepared.timeoutMs);
+        prepared.keyset = keyset;
+        prepared.session = session;
+        prepared.values = values;
+        prepared.cached = cacheKey != null ? resultCache.get(cacheKey) : null;
+        if (prepared.cached == null) {
+            explain(prepared, queryManager, values);
+        } else {
+            applyPolicy(prepared, query.getStatement(), prepared.cached.getPlan());
+            if (prepared.rejection != null) {
+                prepared.plan = prepared.cached.getPlan();
+                prepared.planCached = true;
+                prepared.cached = null;
+            }
+        }
+        if (request.isCounting()) {
+            // one more row than the limit, so a count of exactly the limit is known to be exact
+            query.setLimit(prepared.effectiveLimit < Long.MAX_VALUE ? prepared.effectiveLimit + 1
+                    : prepared.effectiveLimit);
+        } else if (keyset == null) {
+            query.setLimit(prepared.effectiveLimit);
+        }
+        return prepared;
+    }
+
+    /**
+     * Executes the query, writing the result as an object to the generator.
+     * Exceptions from executing the query are reported in the caughtException
+     * field rather than thrown.
+     * 
+     * @param prepared the query to execute
+     * @param json     the generator to write to
+     * @throws IOException an exception occurs writing the result
+     */
+    public void execute(PreparedQuery prepared, JsonGenerator json) throws IOException {
+        execute(prepared, json, false);
+    }
+
+    /**
+     * Executes the query, writing the result to the generator. When line
+     * delimited, rather than a single object the result is written as a sequence
+     * of root values: an object with the query and plan findings, each result and
+     * then an object with the remaining fields, so that consumers can process
+     * each result as it arrives without parsing the whole response. Counts are
+     * always written as a single object.
+     * 
+     * @param prepared      the query to execute
+     * @param json          the generator to write to
+     * @param lineDelimited true to write the results as root values
+     * @throws IOException an exception occurs writing the result
+     */
+    public void execute(PreparedQuery prepared, JsonGenerator json, boolean lineDelimited) throws IOException {
+        QueryTimings timings = prepared.timings;
+        long writeStart = System.nanoTime();
+        json.writeStartObject();
+        json.writeStringField("query", prepared.request.getQuery());
+        json.writeNumberField("limit", prepared.request.getLimit());
+        writeFindings(json, prepared);
+        long count;
+        if (prepared.request.isCounting()) {
+            timings.record(Phase.SERIALIZATION, writeStart);
+            count = countResults(json, prepared, timings);
+        } else {
+            if (lineDelimited) {
+                json.writeEndObject();
+            } else {
+                json.writeArrayFieldStart(prepared.request.isProjection() ? "rows" : "results");
+            }
+            timings.record(Phase.SERIALIZATION, writeStart);
+            count = prepared.cached != null ? writeCachedResults(json, prepared, timings, lineDelimited)
+                    : streamResults(json, prepared, timings, lineDelimited);
+        }
+        timings.finish();
+        timings.write(json);
+        json.writeEndObject();
+        statsRecorder.record(new QueryStatsRecorder.Sample(prepared.request.getQuery(),
+                prepared.cached != null ? prepared.cached.getPlan() : prepared.plan, timings, count,
+                prepared.principal));
+    }
+
+    private void endResults(JsonGenerator json, boolean lineDelimited) throws IOException {
+        if (lineDelimited) {
+            json.writeStartObject();
+        } else {
+            json.writeEndArray();
+        }
+    }
+
+    /**
+     * Binds the values to the query's variables, every variable must have a value
+     * and every value must have a variable. The keyset values, if any, are bound
+     * to the restrictions added for the cursor.
+     */
+    private Map<String, Value> bind(Query query, Map<String, Object> bindings, ValueFactory valueFactory,
+            Map<String, Value> keysetValues) throws RepositoryException {
+        Set<String> names = Set.of(query.getBindVariableNames());
+        Map<String, Value> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Value> keysetValue : keysetValues.entrySet()) {
+            query.bindValue(keysetValue.getKey(), keysetValue.getValue());
+            values.put(keysetValue.getKey(), keysetValue.getValue());
+        }
+        for (String name : names) {
+            if (!bindings.containsKey(name) && !values.containsKey(name)) {
+                throw new InvalidQueryException("No value bound to variable $" + name);
+            }
+        }
+        for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+            if (!names.contains(binding.getKey())) {
+                throw new InvalidQueryException("Value bound to unknown variable $" + binding.getKey());
+            }
+            Value value = toValue(binding.getValue(), valueFactory);
+            query.bindValue(binding.getKey(), value);
+            values.put(binding.getKey(), value);
+        }
+        return values;
+    }
+
+    private Value toValue(Object value, ValueFactory valueFactory) {
+        if (value instanceof Double || value instanceof Float) {
+            return valueFactory.createValue(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            return valueFactory.createValue(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            return valueFactory.createValue((Boolean) value);
+        } else if (value instanceof Calendar) {
+            return valueFactory.createValue((Calendar) value);
+        } else {
+            return valueFactory.createValue(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Retrieves the plan from the cache or by explaining the query, then applies
+     * the plan analyzer's policy to the query. Plans are cached by statement, so
+     * for statements with bind variables the cached plan shows the values bound
+     * when it was first explained.
+     */
+    private void explain(PreparedQuery prepared, QueryManager queryManager, Map<String, Value> values) {
+        long explainStart = System.nanoTime();
+        String statement = prepared.query.getStatement();
+        try {
+            String cachedPlan = prepared.request.isUsePlanCache() ? planCache.get(statement) : null;
+            if (cachedPlan != null) {
+                prepared.plan = cachedPlan;
+                prepared.planCached = true;
+            } else {
+                long generation = planCache.getGeneration();
+                Query explainQuery = queryManager.createQuery("explain " + statement, Query.JCR_SQL2);
+                for (Map.Entry<String, Value> value : values.entrySet()) {
+                    explainQuery.bindValue(value.getKey(), value.getValue());
+                }
+                prepared.plan = explainQuery.execute().getRows().nextRow().getValue("plan").getString();
+                planCache.put(statement, prepared.plan, generation);
+            }
+        } catch (RepositoryException e) {
+            prepared.planException = e.toString();
+        }
+        prepared.timings.record(Phase.EXPLAIN, explainStart);
+        applyPolicy(prepared, statement, prepared.plan);
+    }
+
+    /**
+     * Applies the plan analyzer's policy, rejecting the query or capping its
+     * limit based on the findings for the plan.
+     */
+    private void applyPolicy(PreparedQuery prepared, String statement, String plan) {
+        prepared.findings = planAnalyzer.analyze(statement, plan);
+        for (Finding finding : prepared.findings) {
+            if (finding.getAction() == Action.REJECT && prepared.rejection == null) {
+                prepared.rejection = finding;
+            } else if (finding.getAction() == Action.CAP) {
+                prepared.effectiveLimit = Math.min(prepared.effectiveLimit, planAnalyzer.getCapLimit());
+            }
+        }
+    }
+
+    private void writeFindings(JsonGenerator json, PreparedQuery prepared) throws IOException {
+        if (prepared.effectiveLimit != prepared.request.getLimit()) {
+            json.writeNumberField("cappedLimit", prepared.effectiveLimit);
+        }
+        json.writeArrayFieldStart("planFindings");
+        for (Finding finding : prepared.findings) {
+            json.writeStartObject();
+            json.writeStringField("type", finding.getType().name());
+            json.writeStringField("action", finding.getAction().name());
+            json.writeStringField("message", finding.getMessage());
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+    }
+
+    /**
+     * Executes the query and writes each result path to the generator as the
+     * iterator yields it, closing the results array and then writing the plan,
+     * timing and exception fields once iteration has finished. Nothing is
+     * buffered beyond the generator's own output buffer, so the heap used per
+     * request does not grow with the limit. If the query has a cache key, results
+     * small enough to be cached are also collected and put into the result cache.
+     * The deadline is checked for every row iterated, including rows skipped to
+     * seek to the cursor, so a query is stopped even if it returns nothing.
+     */
+    private long streamResults(JsonGenerator json, PreparedQuery prepared, QueryTimings timings,
+            boolean lineDelimited) throws IOException {
+        String caughtException = "";
+        long count = 0;
+        long cacheGeneration = resultCache.getGeneration();
+        List<String> collected = prepared.cacheKey != null ? new ArrayList<>() : null;
+        boolean iterating = false;
+        long iterationStart = 0L;
+        long serializationNanos = 0L;
+        long nodeLoads = 0L;
+        long rowReads = 0L;
+        boolean truncated = false;
+        KeysetCursor.Page<?> page = null;
+        long skippedRows = 0L;
+        try {
+            if (prepared.planException != null) {
+                throw new RepositoryException("Failed to explain query: " + prepared.planException);
+            }
+            if (prepared.rejection != null) {
+                throw new RepositoryException("Query rejected: " + prepared.rejection.getMessage());
+            }
+            long executeStart = System.nanoTime();
+            if (executeStart - prepared.deadline > 0) {
+                throw new DeadlineExceededException();
+            }
+            if (prepared.keyset != null) {
+                readIndexTypes(prepared);
+            }
+            QueryResult result = prepared.query.execute();
+            iterationStart = timings.record(Phase.EXECUTE, executeStart);
+            iterating = true;
+
+            if (prepared.request.isProjection()) {
+                List<String> columns = prepared.request.getColumns();
+                Value[] values = new Value[columns.size()];
+                RowIterator rows = result.getRows();
+                KeysetCursor.Page<Row> keysetPage = prepared.keyset != null
+                        ? prepared.keyset.page(rows, (Row r) -> ValueReader.of(r), prepared.effectiveLimit,
+                                () -> checkDeadline(prepared))
+                        : null;
+                page = keysetPage;
+                while (count < prepared.effectiveLimit) {
+                    Row row;
+                    if (keysetPage != null) {
+                        row = keysetPage.next();
+                    } else if (rows.hasNext()) {
+                        row = rows.nextRow();
+                        rowReads++;
+                        checkDeadline(prepared);
+                    } else {
+                        row = null;
+                    }
+                    if (row == null) {
+                        break;
+                    }
+                    String path = row.getPath();
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = JcrConstants.JCR_PATH.equals(columns.get(i)) ? null : row.getValue(columns.get(i));
+                    }
+                    long writeStart = System.nanoTime();
+                    if (count++ == 0) {
+                        timings.set(Phase.FIRST_ROW, writeStart - executeStart);
+                    }
+                    writeRow(json, columns, path, values);
+                    if (count == 1) {
+                        json.flush();
+                    }
+                    serializationNanos += System.nanoTime() - writeStart;
+                }
+            } else {
+                NodeIterator nodes = result.getNodes();
+                KeysetCursor.Page<Node> keysetPage = prepared.keyset != null
+                        ? prepared.keyset.page(nodes, (Node n) -> ValueReader.of(n), prepared.effectiveLimit,
+                                () -> checkDeadline(prepared))
+                        : null;
+                page = keysetPage;
+                while (count < prepared.effectiveLimit) {
+                    Node node;
+                    if (keysetPage != null) {
+                        node = keysetPage.next();
+                    } else if (nodes.hasNext()) {
+                        node = nodes.nextNode();
+                        nodeLoads++;
+                        checkDeadline(prepared);
+                    } else {
+                        node = null;
+                    }
+                    if (node == null) {
+                        break;
+                    }
+                    String path = node.getPath();
+                    long writeStart = System.nanoTime();
+                    if (count++ == 0) {
+                        timings.set(Phase.FIRST_ROW, writeStart - executeStart);
+                    }
+                    json.writeString(path);
+                    if (count == 1) {
+                        // get the first byte on the wire as soon as there is a result
+                        json.flush();
+                    }
+                    if (collected != null && count > resultCache.getMaxRows()) {
+                        // too large to cache, stop collecting
+                        collected = null;
+                    } else if (collected != null) {
+                        collected.add(path);
+                    }
+                    serializationNanos += System.nanoTime() - writeStart;
+                }
+            }
+            if (collected != null) {
+                resultCache.put(prepared.cacheKey, collected, prepared.plan, cacheGeneration);
+            }
+        } catch (DeadlineExceededException e) {
+            // stop reading and return the results read so far
+            truncated = true;
+        } catch (RepositoryException | UnsupportedOperationException e) {
+            caughtException = e.toString();
+        } finally {
+            if (page != null && prepared.request.isProjection()) {
+                rowReads = page.getReads();
+            } else if (page != null) {
+                nodeLoads = page.getReads();
+            }
+            if (page != null) {
+                skippedRows = page.getSkipped();
+            }
+            if (iterating) {
+                timings.record(Phase.ITERATION, iterationStart + serializationNanos);
+                timings.set(Phase.SERIALIZATION, timings.get(Phase.SERIALIZATION) + serializationNanos);
+            }
+        }
+        String nextCursor = null;
+        if (prepared.keyset != null && prepared.keyset.hasReturned()
+                && (truncated || count >= prepared.effectiveLimit)) {
+            try {
+                nextCursor = prepared.keyset.next();
+            } catch (RepositoryException e) {
+                caughtException = e.toString();
+            }
+        } else if (prepared.keyset != null && !truncated && caughtException.isEmpty()) {
+            try {
+                nextCursor = prepared.keyset.remaining();
+            } catch (RepositoryException e) {
+                caughtException = e.toString();
+            }
+        }
+        Map<String, Object> accessControl = null;
+        if (prepared.request.isMeasureAccessControl() && iterating) {
+            // the user only read as far as it took to fill the page
+            boolean filled = truncated || count >= prepared.effectiveLimit;
+            accessControl = measureAccessControl(prepared, filled ? count + skippedRows : -1L);
+        }
+        long writeStart = System.nanoTime();
+        endResults(json, lineDelimited);
+        json.writeStringField("plan", prepared.plan);
+        json.writeBooleanField("planCached", prepared.planCached);
+        json.writeBooleanField("resultCached", false);
+        json.writeNumberField("nodeLoads", nodeLoads);
+        json.writeNumberField("rowReads", rowReads);
+        json.writeNumberField("timeoutMs", prepared.timeoutMs);
+        json.writeBooleanField("truncated", truncated);
+        json.writeNumberField("rowsRead", count);
+        if (prepared.keyset != null) {
+            json.writeStringField("nextCursor", nextCursor);
+            json.writeNumberField("skippedRows", skippedRows);
+        }
+        if (accessControl != null) {
+            writeAccessControl(json, accessControl);
+        }
+        writeLegacyDurations(json, timings);
+        json.writeStringField("caughtException", caughtException);
+        timings.record(Phase.SERIALIZATION, writeStart);
+        return count;
+    }
+
+    /**
+     * Reads the types of the cursor's ORDER BY properties from the index
+     * definition with the access control service user, as the user may not be
+     * able to read the definitions under /oak:index.
+     */
+    private void readIndexTypes(PreparedQuery prepared) throws RepositoryException {
+        try (ResourceResolver service = resolverFactory.getServiceResourceResolver(
+                Map.of(ResourceResolverFactory.SUBSERVICE, SUBSERVICE_ACCESS_CONTROL))) {
+            prepared.keyset.readIndexTypes(service.adaptTo(Session.class), prepared.plan);
+        } catch (LoginException e) {
+            throw new RepositoryException("Failed to read the index definition for the cursor", e);
+        }
+    }
+
+    /**
+     * Re-executes the query with a service session which can read every row,
+     * checking whether the user's session can read each row until it has found
+     * as many readable rows as the user read. Oak checks the permissions of each
+     * row it reads from the index, so the rows which the user could not read are
+     * the rows the user paid for without receiving them.
+     * 
+     * @param prepared   the query the user executed
+     * @param accessible the number of rows the user read, or -1 if the user read
+     *                   every row of the query
+     * @return the rows read, the rows readable by the user and the share of the
+     *         rows filtered out
+     */
+    private Map<String, Object> measureAccessControl(PreparedQuery prepared, long accessible) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        long indexRows = 0L;
+        long accessibleRows = 0L;
+        boolean complete = false;
+        try (ResourceResolver service = resolverFactory.getServiceResourceResolver(
+                Map.of(ResourceResolverFactory.SUBSERVICE, SUBSERVICE_ACCESS_CONTROL))) {
+            Query query = service.adaptTo(Session.class).getWorkspace().getQueryManager()
+                    .createQuery(prepared.query.getStatement(), Query.JCR_SQL2);
+            for (Map.Entry<String, Value> value : prepared.values.entrySet()) {
+                query.bindValue(value.getKey(), value.getValue());
+            }
+            RowIterator rows = query.execute().getRows();
+            while (!complete && indexRows < maxAccessControlRows && rows.hasNext()) {
+                String path = rows.nextRow().getPath();
+                indexRows++;
+                if (prepared.session.nodeExists(path) && ++accessibleRows == accessible) {
+                    complete = true;
+                }
+            }
+            complete = complete || !rows.hasNext();
+        } catch (LoginException | RepositoryException e) {
+            stats.put("caughtException", e.toString());
+        }
+        stats.put("indexRows", indexRows);
+        stats.put("accessibleRows", accessibleRows);
+        stats.put("filteredRows", indexRows - accessibleRows);
+        stats.put("filteredRatio", indexRows > 0 ? (double) (indexRows - accessibleRows) / indexRows : 0.0);
+        stats.put("complete", complete);
+        stats.put("durationMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return stats;
+    }
+
+    private void writeAccessControl(JsonGenerator json, Map<String, Object> accessControl) throws IOException {
+        json.writeObjectFieldStart("accessControl");
+        for (Map.Entry<String, Object> field : accessControl.entrySet()) {
+            Object value = field.getValue();
+            if (value instanceof Long) {
+                json.writeNumberField(field.getKey(), (Long) value);
+            } else if (value instanceof Double) {
+                json.writeNumberField(field.getKey(), (Double) value);
+            } else if (value instanceof Boolean) {
+                json.writeBooleanField(field.getKey(), (Boolean) value);
+            } else {
+                json.writeStringField(field.getKey(), String.valueOf(value));
+            }
+        }
+        json.writeEndObject();
+    }
+
+    private static void checkDeadline(PreparedQuery prepared) {
+        if (System.nanoTime() - prepared.deadline > 0) {
+            throw new DeadlineExceededException();
+        }
+    }
+
+    /**
+     * Counts the results without loading nodes or building paths, either by
+     * iterating the rows or, for an estimate, asking the query result for its
+     * size without iterating at all. Oak only estimates the size when fast query
+     * size is enabled in the query engine settings, otherwise the count is -1. A
+     * count is only exact if every row was iterated within the deadline and no
+     * row remains after the limit, so the query is limited to one more row.
+     */
+    private long countResults(JsonGenerator json, PreparedQuery prepared, QueryTimings timings)
+            throws IOException {
+        String caughtException = "";
+        long count = -1L;
+        boolean exact = false;
+        boolean truncated = false;
+        boolean iterating = false;
+        long iterationStart = 0L;
+        try {
+            if (prepared.planException != null) {
+                throw new RepositoryException("Failed to explain query: " + prepared.planException);
+            }
+            if (prepared.rejection != null) {
+                throw new RepositoryException("Query rejected: " + prepared.rejection.getMessage());
+            }
+            long executeStart = System.nanoTime();
+            if (executeStart - prepared.deadline > 0) {
+                throw new DeadlineExceededException();
+            }
+            RowIterator rows = prepared.query.execute().getRows();
+            iterationStart = timings.record(Phase.EXECUTE, executeStart);
+
+            if (prepared.request.getMode() == Mode.ESTIMATE) {
+                count = rows.getSize();
+            } else {
+                iterating = true;
+                count = 0L;
+                while (count < prepared.effectiveLimit && rows.hasNext()) {
+                    rows.nextRow();
+                    if (count++ == 0) {
+                        timings.set(Phase.FIRST_ROW, System.nanoTime() - executeStart);
+                    }
+                    checkDeadline(prepared);
+                }
+                exact = !rows.hasNext();
+            }
+        } catch (DeadlineExceededException e) {
+            truncated = true;
+        } catch (RepositoryException | UnsupportedOperationException e) {
+            caughtException = e.toString();
+        } finally {
+            if (iterating) {
+                timings.record(Phase.ITERATION, iterationStart);
+            }
+        }
+        long writeStart = System.nanoTime();
+        json.writeNumberField("count", count);
+        json.writeBooleanField("exact", exact);
+        json.writeStringField("mode", prepared.request.getMode().name().toLowerCase());
+        json.writeStringField("plan", prepared.plan);
+        json.writeBooleanField("planCached", prepared.planCached);
+        json.writeNumberField("nodeLoads", 0L);
+        json.writeNumberField("rowReads", iterating ? count : 0L);
+        json.writeNumberField("timeoutMs", prepared.timeoutMs);
+        json.writeBooleanField("truncated", truncated);
+        writeLegacyDurations(json, timings);
+        json.writeStringField("caughtException", caughtException);
+        timings.record(Phase.SERIALIZATION, writeStart);
+        return Math.max(count, 0L);
+    }
+
+    /**
+     * Writes the cached paths, up to the limit the plan analyzer's policy
+     * allows.
+     */
+    private long writeCachedResults(JsonGenerator json, PreparedQuery prepared, QueryTimings timings,
+            boolean lineDelimited) throws IOException {
+        long writeStart = System.nanoTime();
+        ResultCache.Entry cached = prepared.cached;
+        List<String> paths = cached.getPaths().size() > prepared.effectiveLimit
+                ? cached.getPaths().subList(0, (int) prepared.effectiveLimit)
+                : cached.getPaths();
+        for (String path : paths) {
+            json.writeString(path);
+        }
+        endResults(json, lineDelimited);
+        json.writeStringField("plan", cached.getPlan());
+        json.writeBooleanField("planCached", true);
+        json.writeBooleanField("resultCached", true);
+        json.writeNumberField("nodeLoads", 0L);
+        json.writeNumberField("rowReads", 0L);
+        json.writeNumberField("timeoutMs", 0L);
+        json.writeBooleanField("truncated", false);
+        json.writeNumberField("rowsRead", paths.size());
+        writeLegacyDurations(json, timings);
+        json.writeStringField("caughtException", "");
+        timings.record(Phase.SERIALIZATION, writeStart);
+        return paths.size();
+    }
+
+    /**
+     * Writes the millisecond durations reported before the per-phase timings were
+     * added, executionDuration no longer includes the time spent explaining the
+     * query.
+     */
+    private void writeLegacyDurations(JsonGenerator json, QueryTimings timings) throws IOException {
+        json.writeNumberField("executionDuration", TimeUnit.NANOSECONDS.toMillis(timings.get(Phase.EXECUTE)));
+        json.writeNumberField("iterationDuration", TimeUnit.NANOSECONDS.toMillis(timings.get(Phase.ITERATION)));
+    }
+
+    private void writeRow(JsonGenerator json, List<String> columns, String path, Value[] values)
+            throws IOException, RepositoryException {
+        json.writeStartObject();
+        for (int i = 0; i < values.length; i++) {
+            json.writeFieldName(columns.get(i));
+            if (JcrConstants.JCR_PATH.equals(columns.get(i))) {
+                json.writeString(path);
+            } else if (values[i] == null) {
+                json.writeNull();
+            } else if (values[i].getType() == PropertyType.LONG) {
+                json.writeNumber(values[i].getLong());
+            } else if (values[i].getType() == PropertyType.DOUBLE) {
+                json.writeNumber(values[i].getDouble());
+            } else if (values[i].getType() == PropertyType.BOOLEAN) {
+                json.writeBoolean(values[i].getBoolean());
+            } else {
+                json.writeString(values[i].getString());
+            }
+        }
+        json.writeEndObject();
+    }
+
+    /**
+     * Thrown to stop reading results once the deadline of a query has passed,
+     * results read up to that point are still returned.
+     */
+    private static final class DeadlineExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DeadlineExceededException() {
+            super("Query deadline exceeded", null, false, false);
+        }
+    }
+}
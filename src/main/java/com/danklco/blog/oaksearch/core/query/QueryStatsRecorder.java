@@ -0,0 +1,264 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * Records the most recent query executions in a fixed size ring buffer and
+ * aggregates them by query shape on demand. Recording only claims a slot with a
+ * single atomic increment and stores a reference to an immutable sample, all of
+ * the work of normalizing queries and computing percentiles is deferred until
+ * the statistics are read.
+ */
+@Component(service = QueryStatsRecorder.class)
+@Designate(ocd = QueryStatsRecorder.Config.class)
+public class QueryStatsRecorder {
+
+    @ObjectClassDefinition(name = "Oak Search Gotchas - Query Stats Recorder", description = "Records the most recent query executions")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Buffer Size", description = "The number of query executions to retain")
+        int bufferSize() default 4096;
+    }
+
+    /**
+     * A single query execution
+     */
+    public static final class Sample {
+        private final String query;
+        private final String plan;
+        private final QueryTimings timings;
+        private final long resultCount;
+        private final String principal;
+        private final long timestamp;
+
+        /**
+         * @param query       the query statement
+         * @param plan        the plan the query was executed with
+         * @param timings     the finished timings of the query
+         * @param resultCount the number of results returned
+         * @param principal   the user which executed the query
+         */
+        public Sample(String query, String plan, QueryTimings timings, long resultCount, String principal) {
+            this.query = query;
+            this.plan = plan;
+            this.timings = timings;
+            this.resultCount = resultCount;
+            this.principal = principal;
+            this.timestamp = System.currentTimeMillis();
+        }
+    }
+
+    private static final Pattern PLAN_INDEX = Pattern.compile("/\\*\\s+([^\\s(]+)");
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile AtomicReferenceArray<Sample> buffer;
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        buffer = new AtomicReferenceArray<>(Math.max(1, config.bufferSize()));
+        sequence.set(0);
+    }
+
+    /**
+     * Records a query execution, overwriting the oldest sample once the buffer is
+     * full.
+     * 
+     * @param sample the sample to record
+     */
+    public void record(Sample sample) {
+        AtomicReferenceArray<Sample> current = buffer;
+        current.set((int) (sequence.getAndIncrement() % current.length()), sample);
+    }
+
+    /**
+     * Aggregates the samples currently in the buffer by query shape.
+     * 
+     * @param slowest the number of slowest samples to include for each shape
+     * @return the statistics for each shape ordered by the slowest p95
+     */
+    public List<Map<String, Object>> aggregate(int slowest) {
+        Map<String, List<Sample>> byShape = new LinkedHashMap<>();
+        AtomicReferenceArray<Sample> current = buffer;
+        for (int i = 0; i < current.length(); i++) {
+            Sample sample = current.get(i);
+            if (sample != null) {
+                byShape.computeIfAbsent(normalize(sample.query), k -> new ArrayList<>()).add(sample);
+            }
+        }
+
+        List<Map<String, Object>> shapes = new ArrayList<>();
+        for (Map.Entry<String, List<Sample>> entry : byShape.entrySet()) {
+            List<Sample> samples = entry.getValue();
+            long[] totals = samples.stream().mapToLong(s -> s.timings.getTotalNanos()).sorted().toArray();
+            Set<String> indexes = samples.stream().map(s -> getIndexName(s.plan))
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+
+            Map<String, Object> shape = new LinkedHashMap<>();
+            shape.put("shape", entry.getKey());
+            shape.put("count", samples.size());
+            shape.put("indexes", indexes);
+            shape.put("p50Nanos", percentile(totals, 50));
+            shape.put("p95Nanos", percentile(totals, 95));
+            shape.put("p99Nanos", percentile(totals, 99));
+            shape.put("maxNanos", totals[totals.length - 1]);
+            shape.put("slowest", samples.stream()
+                    .sorted(Comparator.comparingLong((Sample s) -> s.timings.getTotalNanos()).reversed())
+                    .limit(slowest).map(QueryStatsRecorder::toMap).collect(Collectors.toList()));
+            shapes.add(shape);
+        }
+        shapes.sort(Comparator.comparingLong((Map<String, Object> m) -> (Long) m.get("p95Nanos")).reversed());
+        return shapes;
+    }
+
+    /**
+     * @return the total number of executions recorded, including those which
+     *         have been overwritten
+     */
+    public long getRecorded() {
+        return sequence.get();
+    }
+
+    /**
+     * @return the number of samples the buffer can hold
+     */
+    public int getBufferSize() {
+        return buffer.length();
+    }
+
+    /**
+     * Normalizes a query into its shape by replacing string and numeric literals
+     * with <code>?</code> and collapsing whitespace. Bracketed identifiers and
+     * paths and bind variables are left as is.
+     * 
+     * @param query the query to normalize
+     * @return the shape of the query
+     */
+    public static String normalize(String query) {
+        StringBuilder shape = new StringBuilder(query.length());
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (c == '[') {
+                int end = query.indexOf(']', i);
+                end = end < 0 ? query.length() : end + 1;
+                shape.append(query, i, end);
+                i = end;
+            } else if (c == '\'' || c == '"') {
+                i = skipString(query, i, c);
+                shape.append('?');
+            } else if (isNumberStart(query, i)) {
+                i++;
+                while (i < query.length() && (Character.isDigit(query.charAt(i)) || query.charAt(i) == '.')) {
+                    i++;
+                }
+                shape.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < query.length() && Character.isWhitespace(query.charAt(i))) {
+                    i++;
+                }
+                shape.append(' ');
+            } else {
+                shape.append(c);
+                i++;
+            }
+        }
+        return shape.toString().trim();
+    }
+
+    private static int skipString(String query, int start, char quote) {
+        int i = start + 1;
+        while (i < query.length()) {
+            if (query.charAt(i) == quote) {
+                // quotes are escaped by doubling them
+                if (i + 1 < query.length() && query.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isNumberStart(String query, int i) {
+        char c = query.charAt(i);
+        boolean digit = Character.isDigit(c)
+                || (c == '-' && i + 1 < query.length() && Character.isDigit(query.charAt(i + 1)));
+        if (!digit || i == 0) {
+            return digit;
+        }
+        char previous = query.charAt(i - 1);
+        return !Character.isLetterOrDigit(previous) && previous != '_' && previous != '$' && previous != ':';
+    }
+
+    static String getIndexName(String plan) {
+        List<String> indexes = new ArrayList<>();
+        Matcher matcher = PLAN_INDEX.matcher(plan == null ? "" : plan);
+        while (matcher.find()) {
+            indexes.add(matcher.group(1));
+        }
+        return indexes.isEmpty() ? "" : String.join(",", indexes);
+    }
+
+    /**
+     * @param sorted     the values in ascending order, at least one
+     * @param percentile the percentile from 1 to 100
+     * @return the value at the percentile, by the nearest rank method
+     */
+    public static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static Map<String, Object> toMap(Sample sample) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("query", sample.query);
+        map.put("index", getIndexName(sample.plan));
+        map.put("principal", sample.principal);
+        map.put("timestamp", sample.timestamp);
+        map.put("resultCount", sample.resultCount);
+        map.put("totalNanos", sample.timings.getTotalNanos());
+        map.put("allocatedBytes", sample.timings.getAllocatedBytes());
+        map.put("timings", Arrays.stream(QueryTimings.Phase.values())
+                .collect(Collectors.toMap(QueryTimings.Phase::getFieldName, sample.timings::get, (a, b) -> a,
+                        LinkedHashMap::new)));
+        return map;
+    }
+}
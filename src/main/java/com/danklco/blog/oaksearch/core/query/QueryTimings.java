@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Records the time spent in each phase of executing a query in nanoseconds
+ * along with the bytes allocated by the executing thread. Instances are not
+ * thread safe and are expected to be created, used and finished by the thread
+ * executing the query.
+ */
+public class QueryTimings {
+
+    /**
+     * The phases of executing a query
+     */
+    public enum Phase {
+        /** Creating the Query from the statement */
+        PARSE("parseNanos"),
+        /** Explaining the query, 0 if the plan was cached */
+        EXPLAIN("explainNanos"),
+        /** Executing the query, 0 if the result was cached */
+        EXECUTE("executeNanos"),
+        /** From the start of execution until the first row was read */
+        FIRST_ROW("firstRowNanos"),
+        /** Reading the rows, excluding the time spent serializing them */
+        ITERATION("iterationNanos"),
+        /** Writing the response */
+        SERIALIZATION("serializationNanos");
+
+        private final String fieldName;
+
+        Phase(String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+        /**
+         * @return the name of the field the phase is written as
+         */
+        public String getFieldName() {
+            return fieldName;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(QueryTimings.class);
+
+    private static final boolean ALLOCATION_SUPPORTED = isAllocationSupported();
+
+    private final long[] nanos = new long[Phase.values().length];
+    private final long startNanos;
+    private final long startAllocatedBytes;
+    private long totalNanos = -1L;
+    private long allocatedBytes = -1L;
+
+    public QueryTimings() {
+        startAllocatedBytes = getCurrentThreadAllocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds the time elapsed since the provided start time to the phase.
+     * 
+     * @param phase the phase to record
+     * @param start the value of {@link System#nanoTime()} when the phase started
+     * @return the current value of {@link System#nanoTime()}
+     */
+    public long record(Phase phase, long start) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - start;
+        return now;
+    }
+
+    /**
+     * Sets the time taken by a phase.
+     * 
+     * @param phase the phase to set
+     * @param value the time in nanoseconds
+     */
+    public void set(Phase phase, long value) {
+        nanos[phase.ordinal()] = value;
+    }
+
+    /**
+     * @param phase the phase to retrieve
+     * @return the time spent in the phase in nanoseconds
+     */
+    public long get(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * Stops the overall clock and the allocation counter
+     */
+    public void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+        if (startAllocatedBytes >= 0) {
+            allocatedBytes = getCurrentThreadAllocatedBytes() - startAllocatedBytes;
+        }
+    }
+
+    /**
+     * @return the total time from creation until {@link #finish()} was called
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the bytes allocated by the thread from creation until
+     *         {@link #finish()} was called or -1 if not supported by the JVM
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Writes the timings as a <code>timings</code> object and an
+     * <code>allocatedBytes</code> field.
+     * 
+     * @param json the generator to write to
+     * @throws IOException an exception occurs writing the timings
+     */
+    public void write(JsonGenerator json) throws IOException {
+        json.writeObjectFieldStart("timings");
+        for (Phase phase : Phase.values()) {
+            json.writeNumberField(phase.fieldName, get(phase));
+        }
+        json.writeNumberField("totalNanos", totalNanos);
+        json.writeEndObject();
+        json.writeNumberField("allocatedBytes", allocatedBytes);
+    }
+
+    private static boolean isAllocationSupported() {
+        try {
+            java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+                return sunThreadMXBean.isThreadAllocatedMemorySupported()
+                        && sunThreadMXBean.isThreadAllocatedMemoryEnabled();
+            }
+        } catch (NoClassDefFoundError e) {
+            log.info("Thread allocation metrics are not available: {}", e.toString());
+        }
+        return false;
+    }
+
+    private static long getCurrentThreadAllocatedBytes() {
+        if (!ALLOCATION_SUPPORTED) {
+            return -1L;
+        }
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
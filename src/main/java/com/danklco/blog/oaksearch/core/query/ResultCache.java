@@ -0,0 +1,459 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.query;
+
+import java.lang.management.ManagementFactory;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.oak.spi.security.principal.EveryonePrincipal;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An optional cache of query results keyed by the query statement, the limit
+ * and the principals of the calling session. Entries are evicted when a change
+ * is observed under the paths the query is restricted to with
+ * ISDESCENDANTNODE / ISCHILDNODE / ISSAMENODE. Only a restriction which is a
+ * top-level AND condition of the constraint confines the results to its path,
+ * so queries with a path restriction anywhere else, e.g. in an OR or a NOT,
+ * and joins are never cached. Queries restricted to paths outside of the
+ * observed paths are never cached as their entries could not be invalidated,
+ * which includes queries without a path restriction unless <code>/</code> is
+ * observed.
+ * <p>
+ * Changes are observed when they are committed, but an async index only
+ * returns them once its lane has indexed them, so a query executed in between
+ * would cache results missing the change with no later event to evict them.
+ * Results are therefore only cached while the last indexed time of the async
+ * lanes is past the last observed change.
+ */
+@Component(service = { ResultCache.class, ResourceChangeListener.class })
+@Designate(ocd = ResultCache.Config.class)
+public class ResultCache implements ResourceChangeListener {
+
+    @ObjectClassDefinition(name = "Oak Search Gotchas - Result Cache", description = "Caches query results until a change is observed under the paths they cover")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Enabled", description = "Whether query results should be cached")
+        boolean enabled() default false;
+
+        @AttributeDefinition(name = "Max Entries", description = "The maximum number of results to cache")
+        int maxEntries() default 1000;
+
+        @AttributeDefinition(name = "Max Rows", description = "Results with more rows than this are not cached")
+        int maxRows() default 1000;
+
+        @AttributeDefinition(name = "Observed Paths", description = "The paths to observe for changes, only queries under these paths will be cached")
+        String[] resource_paths() default { "/tests" };
+
+        @AttributeDefinition(name = "Async Lanes", description = "The async indexing lanes which must have indexed the last observed change before results are cached")
+        String[] asyncLanes() default { "async" };
+    }
+
+    /**
+     * The key of a cached result
+     */
+    public static final class Key {
+        private final String statement;
+        private final Map<String, Object> bindings;
+        private final long limit;
+        private final String principals;
+
+        Key(String statement, Map<String, Object> bindings, long limit, String principals) {
+            this.statement = statement;
+            this.bindings = new TreeMap<>(bindings);
+            this.limit = limit;
+            this.principals = principals;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return limit == other.limit && statement.equals(other.statement) && bindings.equals(other.bindings)
+                    && principals.equals(other.principals);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(statement, bindings, limit, principals);
+        }
+    }
+
+    /**
+     * A cached result along with the plan it was executed with
+     */
+    public static final class Entry {
+        private final List<String> paths;
+        private final String plan;
+        private final Set<String> roots;
+
+        Entry(List<String> paths, String plan, Set<String> roots) {
+            this.paths = paths;
+            this.plan = plan;
+            this.roots = roots;
+        }
+
+        /**
+         * @return the paths of the results
+         */
+        public List<String> getPaths() {
+            return paths;
+        }
+
+        /**
+         * @return the plan the results were retrieved with
+         */
+        public String getPlan() {
+            return plan;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+    private static final Pattern PATH_RESTRICTION = Pattern.compile(
+            "IS(?:DESCENDANT|CHILD|SAME)NODE\\s*\\((?:[^,()]*,)?\\s*(?:\\[([^\\]]*)\\]|'([^']*)')\\s*\\)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern KEYWORD = Pattern.compile("(?i)\\b(WHERE|AND|ORDER|OPTION)\\b");
+
+    private static final Pattern JOIN = Pattern.compile("(?i)\\bJOIN\\b");
+
+    private static final String INDEX_STATS_MBEAN = "org.apache.jackrabbit.oak:type=IndexStats,name=%s,*";
+
+    /** The generation returned while the async lanes are behind */
+    private static final long NOT_INDEXED = -1L;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile long lastChangeMillis;
+    private volatile long indexedToMillis;
+
+    private boolean enabled;
+    private int maxRows;
+    private Set<String> observedPaths;
+    private List<String> asyncLanes;
+    private LruCache<Key, Entry> cache;
+
+    @Activate
+    @Modified
+    protected void activate(Config config) {
+        enabled = config.enabled();
+        maxRows = config.maxRows();
+        observedPaths = Set.of(config.resource_paths());
+        asyncLanes = List.of(config.asyncLanes());
+        cache = new LruCache<>(config.maxEntries());
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return true if results should be cached
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the maximum number of rows a cached result may have
+     */
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * Creates the key for a query executed by the session, the key includes the
+     * principals of the session so results are only shared between sessions with
+     * the same access.
+     * 
+     * @param statement the query statement
+     * @param bindings  the values bound to the statement's variables
+     * @param limit     the limit of the query
+     * @param session   the session executing the query
+     * @return the key or null if the query cannot be cached
+     * @throws RepositoryException an exception occurs resolving the principals
+     */
+    public Key createKey(String statement, Map<String, Object> bindings, long limit, Session session)
+            throws RepositoryException {
+        if (!isCacheable(getRoots(statement))) {
+            return null;
+        }
+        return new Key(statement, bindings, limit, getPrincipalNames(session));
+    }
+
+    /**
+     * @param key the key of the result
+     * @return the cached result or null
+     */
+    public Entry get(Key key) {
+        return cache.get(key);
+    }
+
+    /**
+     * @return the current generation, to be passed to
+     *         {@link #put(Key, List, String, long)} or a generation which is
+     *         never cached if the async lanes haven't indexed the last observed
+     *         change
+     */
+    public long getGeneration() {
+        long current = generation.get();
+        return isIndexedTo(lastChangeMillis) ? current : NOT_INDEXED;
+    }
+
+    /**
+     * Caches a result, unless a change has been observed since the generation
+     * was retrieved.
+     * 
+     * @param key        the key of the result
+     * @param paths      the paths of the results
+     * @param plan       the plan the query was executed with
+     * @param generation the generation retrieved before executing the query
+     */
+    public synchronized void put(Key key, List<String> paths, String plan, long generation) {
+        if (this.generation.get() == generation && paths.size() <= maxRows) {
+            cache.put(key, new Entry(List.copyOf(paths), plan, getRoots(key.statement)));
+        }
+    }
+
+    /**
+     * @return the size and counters of the cache
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<>(cache.getStats());
+        stats.put("indexed", isIndexedTo(lastChangeMillis));
+        return stats;
+    }
+
+    @Override
+    public synchronized void onChange(List<ResourceChange> changes) {
+        lastChangeMillis = System.currentTimeMillis();
+        generation.incrementAndGet();
+        Set<String> changed = changes.stream().map(ResourceChange::getPath).collect(Collectors.toSet());
+        int evicted = cache.invalidateIf((k, v) -> v.roots.stream()
+                .anyMatch(root -> changed.stream().anyMatch(path -> overlaps(root, path))));
+        log.debug("Evicted {} results after {} changes", evicted, changes.size());
+    }
+
+    /**
+     * Checks whether each of the async lanes has indexed the changes up to the
+     * time, reading the index statistics MBeans only until they have
+     * been seen to pass it.
+     */
+    private boolean isIndexedTo(long timeMillis) {
+        if (indexedToMillis >= timeMillis) {
+            return true;
+        }
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        long indexedTo = Long.MAX_VALUE;
+        try {
+            for (String lane : asyncLanes) {
+                Set<ObjectName> names = mbeanServer.queryNames(new ObjectName(String.format(INDEX_STATS_MBEAN, lane)),
+                        null);
+                if (names.isEmpty()) {
+                    log.debug("No index statistics for async lane {}", lane);
+                    return false;
+                }
+                for (ObjectName name : names) {
+                    long laneIndexedTo = parseTime(mbeanServer.getAttribute(name, "LastIndexedTime"));
+                    // a run without changes doesn't move the last indexed time,
+                    // but has still indexed everything committed before it started
+                    long start = parseTime(mbeanServer.getAttribute(name, "Start"));
+                    if ("done".equals(mbeanServer.getAttribute(name, "Status"))
+                            && parseTime(mbeanServer.getAttribute(name, "Done")) >= start) {
+                        laneIndexedTo = Math.max(laneIndexedTo, start);
+                    }
+                    indexedTo = Math.min(indexedTo, laneIndexedTo);
+                }
+            }
+        } catch (JMException | DateTimeParseException e) {
+            log.debug("Failed to read the last indexed time of the async lanes", e);
+            return false;
+        }
+        if (indexedTo > indexedToMillis) {
+            indexedToMillis = indexedTo;
+        }
+        return indexedTo >= timeMillis;
+    }
+
+    private static long parseTime(Object time) {
+        return OffsetDateTime.parse(String.valueOf(time)).toInstant().toEpochMilli();
+    }
+
+    private boolean isCacheable(Set<String> roots) {
+        return roots != null && roots.stream().allMatch(root -> observedPaths.stream().anyMatch(o -> isAncestorOrSelf(o, root)));
+    }
+
+    /**
+     * Finds the paths the results of the statement are confined to, from the
+     * path restrictions which are top-level AND conditions of its constraint.
+     * 
+     * @param statement the JCR-SQL2 statement
+     * @return the paths, <code>/</code> if the statement has no path
+     *         restriction or null if the paths cannot be determined, as a path
+     *         restriction is nested in another condition or the statement is a
+     *         join
+     */
+    static Set<String> getRoots(String statement) {
+        List<String> conjuncts = getConjuncts(statement);
+        if (conjuncts == null) {
+            return null;
+        }
+        Set<String> roots = new TreeSet<>();
+        for (String conjunct : conjuncts) {
+            Matcher matcher = PATH_RESTRICTION.matcher(unwrap(conjunct));
+            if (matcher.matches()) {
+                roots.add(Objects.requireNonNullElse(matcher.group(1), matcher.group(2)));
+            } else if (PATH_RESTRICTION.matcher(conjunct).find()) {
+                return null;
+            }
+        }
+        if (roots.isEmpty()) {
+            roots.add("/");
+        }
+        return roots;
+    }
+
+    /**
+     * Splits the constraint of the statement into its top-level AND conditions,
+     * skipping keywords in parentheses, string literals and bracketed names.
+     * 
+     * @return the conditions, empty without a constraint, or null if the
+     *         statement is a join
+     */
+    private static List<String> getConjuncts(String statement) {
+        List<String> conjuncts = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        char quote = 0;
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (quote != 0) {
+                quote = c == quote ? 0 : quote;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '[') {
+                quote = ']';
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0) {
+                Matcher keyword = KEYWORD.matcher(statement).region(i, statement.length()).useTransparentBounds(true);
+                if (!keyword.lookingAt()) {
+                    continue;
+                }
+                String name = keyword.group(1).toUpperCase();
+                if ("WHERE".equals(name)) {
+                    if (JOIN.matcher(statement.substring(0, i)).find()) {
+                        return null;
+                    }
+                    start = keyword.end();
+                } else if (start >= 0) {
+                    conjuncts.add(statement.substring(start, i).trim());
+                    start = "AND".equals(name) ? keyword.end() : -1;
+                }
+                i = keyword.end() - 1;
+            }
+        }
+        if (start >= 0) {
+            conjuncts.add(statement.substring(start).trim());
+        } else if (conjuncts.isEmpty() && JOIN.matcher(statement).find()) {
+            return null;
+        }
+        return conjuncts;
+    }
+
+    /**
+     * Removes the parentheses enclosing the whole condition.
+     */
+    private static String unwrap(String condition) {
+        String unwrapped = condition;
+        while (unwrapped.startsWith("(") && unwrapped.endsWith(")")
+                && isBalanced(unwrapped.substring(1, unwrapped.length() - 1))) {
+            unwrapped = unwrapped.substring(1, unwrapped.length() - 1).trim();
+        }
+        return unwrapped;
+    }
+
+    private static boolean isBalanced(String condition) {
+        int depth = 0;
+        for (char c : condition.toCharArray()) {
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth < 0) {
+                return false;
+            }
+        }
+        return depth == 0;
+    }
+
+    private static String getPrincipalNames(Session session) throws RepositoryException {
+        Set<String> names = new TreeSet<>();
+        names.add(EveryonePrincipal.NAME);
+        if (session instanceof JackrabbitSession) {
+            Authorizable authorizable = ((JackrabbitSession) session).getUserManager()
+                    .getAuthorizable(session.getUserID());
+            if (authorizable != null) {
+                names.add(authorizable.getPrincipal().getName());
+                for (Iterator<Group> groups = authorizable.memberOf(); groups.hasNext();) {
+                    names.add(groups.next().getPrincipal().getName());
+                }
+            }
+        } else {
+            names.add(session.getUserID());
+        }
+        return String.join(",", names);
+    }
+
+    private static boolean overlaps(String root, String path) {
+        return isAncestorOrSelf(root, path) || isAncestorOrSelf(path, root);
+    }
+
+    private static boolean isAncestorOrSelf(String ancestor, String path) {
+        return ancestor.equals("/") || path.equals(ancestor) || path.startsWith(ancestor + "/");
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.servlets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.core.query.QueryExecutor;
+import com.danklco.blog.oaksearch.core.query.QueryExecutor.QueryRejectedException;
+import com.danklco.blog.oaksearch.core.query.QueryExecutor.QueryTask;
+import com.danklco.blog.oaksearch.core.query.QueryRequest;
+import com.danklco.blog.oaksearch.core.query.QueryRequest.Mode;
+import com.danklco.blog.oaksearch.core.query.QueryRunner;
+import com.danklco.blog.oaksearch.core.query.QueryRunner.PreparedQuery;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Executes a JSON array of queries concurrently, e.g.
+ * 
+ * <pre>
+ * [{"query": "SELECT * FROM [test:content] AS s WHERE [test:iteration]=$it", "limit": 100, "bindings": {"it": 9}}]
+ * </pre>
+ * 
+ * As JCR sessions are not thread safe, each query is executed on its own clone
+ * of the calling user's resource resolver. The queries are executed on the
+ * {@link QueryExecutor}, so a batch is subject to the same per principal and
+ * queue limits as single queries, and is rejected with a 429 response if none
+ * of its queries can be admitted. The results are returned in the order of the
+ * queries along with the wall time for the whole batch.
+ */
+@Component(service = { Servlet.class })
+@SlingServletResourceTypes(resourceTypes = "test:content", methods = HttpConstants.METHOD_POST, extensions = "json", selectors = "batch")
+@Designate(ocd = BatchQueryServlet.Config.class)
+public class BatchQueryServlet extends SlingAllMethodsServlet {
+
+    @ObjectClassDefinition(name = "Oak Search Gotchas - Batch Query Servlet", description = "Executes batches of queries concurrently")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Max Queries", description = "The maximum number of queries in a batch")
+        int maxQueries() default 100;
+
+        @AttributeDefinition(name = "Spool Threshold", description = "The number of bytes of a query's result to hold in memory before spooling it to a temporary file")
+        int spoolThreshold() default 65536;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(BatchQueryServlet.class);
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final ObjectWriter objectWriter = objectMapper.writerWithDefaultPrettyPrinter();
+
+    private static final JsonFactory jsonFactory = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    @Reference
+    private transient QueryRunner queryRunner;
+
+    @Reference
+    private transient QueryExecutor queryExecutor;
+
+    private int maxQueries;
+
+    private int spoolThreshold;
+
+    @Activate
+    protected void activate(Config config) {
+        maxQueries = config.maxQueries();
+        spoolThreshold = config.spoolThreshold();
+    }
+
+    @Override
+    protected void doPost(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+
+        List<QueryRequest> queries = new ArrayList<>();
+        try {
+            JsonNode body = objectMapper.readTree(request.getReader());
+            if (body == null || !body.isArray()) {
+                throw new IllegalArgumentException("Expected a JSON array of queries");
+            }
+            for (JsonNode item : body) {
+                if (!item.hasNonNull("query")) {
+                    throw new IllegalArgumentException("Each query requires the field query");
+                }
+                Mode mode = Mode.valueOf(item.path("mode").asText("results").toUpperCase());
+                QueryRequest query = new QueryRequest(item.get("query").asText(),
+                        item.path("limit").asLong(mode == Mode.RESULTS ? 1000L : Long.MAX_VALUE));
+                query.setMode(mode);
+                query.setCursor(item.hasNonNull("cursor") ? item.get("cursor").asText() : null);
+                query.setBindings(getBindings(item.path("bindings")));
+                query.setTimeoutMs(item.path("timeoutMs").asLong(0L));
+                query.setMeasureAccessControl(item.path("accessControl").asBoolean(false));
+                queries.add(query);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            sendProblem(response, 400, "Invalid batch: " + e.getMessage());
+            return;
+        }
+        if (queries.size() > maxQueries) {
+            sendProblem(response, 400, "Batch of " + queries.size() + " exceeds the maximum of " + maxQueries);
+            return;
+        }
+
+        long start = System.nanoTime();
+        String principal = request.getResourceResolver().getUserID();
+        List<BatchEntry> entries = new ArrayList<>();
+        for (QueryRequest query : queries) {
+            entries.add(new BatchEntry(query));
+        }
+        JsonGenerator json = null;
+        int submitted = 0;
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                try {
+                    submitted = submit(request, principal, entries, i, submitted);
+                } catch (QueryRejectedException e) {
+                    if (json == null) {
+                        response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                        sendProblem(response, 429, "Too many queries: " + e.getMessage());
+                        return;
+                    }
+                    // the response has started, so report the rejection in place of the result
+                    entries.get(i).reject(e);
+                    submitted++;
+                }
+                entries.get(i).await();
+                if (json == null) {
+                    json = startResponse(response);
+                }
+                json.flush();
+                if (i > 0) {
+                    response.getOutputStream().write(',');
+                }
+                entries.get(i).writeTo(response.getOutputStream());
+            }
+            if (json == null) {
+                json = startResponse(response);
+            }
+            json.writeEndArray();
+            json.writeNumberField("wallNanos", System.nanoTime() - start);
+            json.writeObjectField("threads", queryExecutor.getStats().get("threads"));
+            json.writeEndObject();
+        } catch (ExecutionException e) {
+            throw new ServletException("Failed to execute batch", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted executing batch", e);
+        } finally {
+            entries.forEach(BatchEntry::discard);
+            if (json != null) {
+                json.close();
+            }
+        }
+    }
+
+    /**
+     * Starts the response, leaving the results array open for the results to be
+     * copied into.
+     */
+    private JsonGenerator startResponse(SlingHttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        JsonGenerator json = jsonFactory.createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        json.writeStartObject();
+        json.writeArrayFieldStart("results");
+        return json;
+    }
+
+    /**
+     * Submits the queries from <code>next</code> onward to the query executor
+     * until it rejects one, so the batch never has more queries running or
+     * queued than the principal is allowed. A rejection is only thrown once none
+     * of the batch's own queries are in flight, as otherwise waiting for the
+     * query at <code>current</code> frees up a slot.
+     * 
+     * @return the index of the next query to submit
+     */
+    private int submit(SlingHttpServletRequest request, String principal, List<BatchEntry> entries, int current,
+            int next) {
+        while (next < entries.size()) {
+            BatchEntry entry = entries.get(next);
+            ResourceResolver clone;
+            try {
+                clone = request.getResourceResolver().clone(null);
+            } catch (LoginException e) {
+                try {
+                    entry.fail(e);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+                next++;
+                continue;
+            }
+            entry.prepare(clone);
+            try {
+                queryExecutor.execute(principal, QueryTask.of(entry.task));
+            } catch (QueryRejectedException e) {
+                entry.unprepare();
+                if (next == current) {
+                    throw e;
+                }
+                break;
+            }
+            next++;
+        }
+        return next;
+    }
+
+    /**
+     * A query of the batch along with its result. As the results must be written
+     * in the order of the queries, each is written to a buffer which is spooled
+     * to a temporary file once larger than the spool threshold, rather than
+     * holding every result in memory until the preceding queries complete.
+     */
+    private class BatchEntry {
+
+        private final QueryRequest query;
+
+        private final DeferredFileOutputStream buffer = new DeferredFileOutputStream(spoolThreshold,
+                "oak-search-batch-", ".json", null);
+
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private ResourceResolver clone;
+
+        private FutureTask<Void> task;
+
+        BatchEntry(QueryRequest query) {
+            this.query = query;
+        }
+
+        void prepare(ResourceResolver clone) {
+            this.clone = clone;
+            task = new FutureTask<>(() -> {
+                if (started.compareAndSet(false, true)) {
+                    runIsolated(clone, query, buffer);
+                }
+                return null;
+            });
+        }
+
+        void unprepare() {
+            clone.close();
+            clone = null;
+            task = null;
+        }
+
+        void reject(QueryRejectedException e) throws IOException {
+            writeError("rejected", e.getMessage());
+        }
+
+        void fail(LoginException e) throws IOException {
+            writeError("caughtException", e.toString());
+        }
+
+        void await() throws InterruptedException, ExecutionException, IOException {
+            if (task == null) {
+                return;
+            }
+            try {
+                task.get();
+            } catch (CancellationException e) {
+                // abandoned as the query executor was shut down
+                if (started.compareAndSet(false, true)) {
+                    clone.close();
+                }
+                writeError("rejected", "The query executor was shut down");
+            }
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            buffer.close();
+            buffer.writeTo(out);
+        }
+
+        /**
+         * Cancels the query if it is still queued or running and removes any
+         * spooled result.
+         */
+        void discard() {
+            if (task != null) {
+                task.cancel(true);
+            }
+            if (clone != null && started.compareAndSet(false, true)) {
+                // the query never ran, so the clone was never closed
+                clone.close();
+            }
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                log.debug("Failed to close batch buffer", e);
+            }
+            if (!buffer.isInMemory()) {
+                FileUtils.deleteQuietly(buffer.getFile());
+            }
+        }
+
+        private void writeError(String field, String message) throws IOException {
+            try (JsonGenerator json = jsonFactory.createGenerator(buffer, JsonEncoding.UTF8)) {
+                writeEmptyResult(json, query, field, message);
+            }
+        }
+    }
+
+    /**
+     * Executes the query on the cloned resolver, closing the resolver once
+     * complete, and writes the query result as JSON to the buffer.
+     */
+    private void runIsolated(ResourceResolver clone, QueryRequest query, OutputStream buffer) throws IOException {
+        try (clone; JsonGenerator json = jsonFactory.createGenerator(buffer, JsonEncoding.UTF8)) {
+            try {
+                PreparedQuery prepared = queryRunner.prepare(clone.adaptTo(Session.class), query);
+                queryRunner.execute(prepared, json);
+            } catch (RepositoryException e) {
+                log.info("Failed to create query for: {}", query.getQuery(), e);
+                writeEmptyResult(json, query, "caughtException", e.toString());
+            }
+        }
+    }
+
+    private static void writeEmptyResult(JsonGenerator json, QueryRequest query, String field, String message)
+            throws IOException {
+        json.writeStartObject();
+        json.writeStringField("query", query.getQuery());
+        json.writeNumberField("limit", query.getLimit());
+        json.writeArrayFieldStart("results");
+        json.writeEndArray();
+        json.writeStringField(field, message);
+        json.writeEndObject();
+    }
+
+    /**
+     * Converts the bindings object of a query into values to bind, preserving the
+     * JSON type of each value.
+     */
+    private Map<String, Object> getBindings(JsonNode bindings) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        bindings.fields().forEachRemaining(field -> {
+            JsonNode value = field.getValue();
+            if (value.isIntegralNumber()) {
+                values.put(field.getKey(), value.asLong());
+            } else if (value.isNumber()) {
+                values.put(field.getKey(), value.asDouble());
+            } else if (value.isBoolean()) {
+                values.put(field.getKey(), value.asBoolean());
+            } else {
+                values.put(field.getKey(), value.asText());
+            }
+        });
+        return values;
+    }
+
+    private void sendProblem(HttpServletResponse response, int statusCode, String title)
+            throws IOException {
+        response.setContentType("application/problem+json");
+        response.setStatus(statusCode);
+        String res = objectWriter.writeValueAsString(
+                Map.of("status", statusCode, "title", title));
+        response.getWriter().write(res);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.servlets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletPaths;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import com.danklco.blog.oaksearch.core.content.ChurnJob;
+import com.danklco.blog.oaksearch.core.content.ChurnSpec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Starts a churn write load with the {@link ChurnSpec} in the JSON body of a
+ * POST, reports its progress and results on GET and stops it on DELETE.
+ */
+@Component(service = { Servlet.class })
+@SlingServletPaths("/bin/oak-search/churn")
+public class ChurnServlet extends SlingAllMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final ObjectWriter objectWriter = objectMapper.writerWithDefaultPrettyPrinter();
+
+    @Reference
+    private transient ChurnJob churnJob;
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        writeStatus(response, 200, churnJob.getStatus());
+    }
+
+    @Override
+    protected void doPost(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        ChurnSpec spec;
+        try {
+            String body = IOUtils.toString(request.getReader());
+            spec = StringUtils.isBlank(body) ? new ChurnSpec() : objectMapper.readValue(body, ChurnSpec.class);
+            spec.validate();
+        } catch (IOException | IllegalArgumentException e) {
+            response.sendError(400, "Invalid churn spec: " + e.getMessage());
+            return;
+        }
+        try {
+            // the request's resolver is closed once the request completes
+            if (!churnJob.start(request.getResourceResolver().clone(null), spec)) {
+                writeStatus(response, 409, churnJob.getStatus());
+                return;
+            }
+        } catch (LoginException e) {
+            response.sendError(500, "Failed to start churn " + e);
+            throw new ServletException("Failed to clone resource resolver", e);
+        }
+        writeStatus(response, 202, churnJob.getStatus());
+    }
+
+    @Override
+    protected void doDelete(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        churnJob.stop();
+        writeStatus(response, 200, churnJob.getStatus());
+    }
+
+    private void writeStatus(SlingHttpServletResponse response, int statusCode, Map<String, Object> status)
+            throws IOException {
+        response.setStatus(statusCode);
+        response.setContentType("application/json");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(objectWriter.writeValueAsString(status));
+    }
+}
@@ -15,101 +15,268 @@
  */
 package com.danklco.blog.oaksearch.core.servlets;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.IntStream;
+import java.util.Optional;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 
-import org.apache.jackrabbit.JcrConstants;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.commons.jackrabbit.authorization.AccessControlUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletPaths;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.danklco.blog.oaksearch.core.content.AclGenerator;
+import com.danklco.blog.oaksearch.core.content.ContentGenerationJob;
+import com.danklco.blog.oaksearch.core.content.ContentGenerator;
+import com.danklco.blog.oaksearch.core.content.DatasetSpec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Starts generating the test content and the users and groups used by the
+ * tests in the background, if the test content does not already exist, and
+ * reports the progress of the generation on GET. The shape of the content can
+ * be set with a {@link DatasetSpec} in the JSON body of the request.
+ */
 @Component(service = { Servlet.class })
 @SlingServletPaths("/bin/oak-search/ensurecontent")
+@Designate(ocd = EnsureContentServlet.Config.class)
 public class EnsureContentServlet extends SlingAllMethodsServlet {
 
+    @ObjectClassDefinition(name = "Oak Search Gotchas - Ensure Content Servlet", description = "Generates the test content")
+    public @interface Config {
+
+        @AttributeDefinition(name = "Threads", description = "The number of threads generating content in parallel, 0 to use one per available processor")
+        int threads() default 0;
+
+        @AttributeDefinition(name = "Batch Size", description = "The number of nodes each thread creates before committing")
+        int batchSize() default 1000;
+
+        @AttributeDefinition(name = "Mode", description = "How the nodes are written, either resource to create each node with the Resource API or import to stream each subtree into the JCR import API")
+        String mode() default "resource";
+    }
+
     private static final Logger log = LoggerFactory.getLogger(EnsureContentServlet.class);
 
     private static final String PATH_TESTS = "/tests";
+    private static final String PATH_BENCHMARK = "/var/oak-search/benchmark";
     private static final long serialVersionUID = 1L;
-    private static final String PN_TEST_CHILD = "test:child";
-    private static final String PN_TEST_NAME = "test:name";
-    private static final String PN_TEST_ITERATION = "test:iteration";
-    private static final String PN_TEST_ITEM = "test:item";
-    private static final String NT_TEST_CONTENT = "test:content";
-    private static final String TEST_NAME = "oak-search";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final ObjectWriter objectWriter = objectMapper.writerWithDefaultPrettyPrinter();
+
+    @Reference
+    private transient ContentGenerationJob contentGenerationJob;
+
+    private int threads;
+
+    private int batchSize;
+
+    private ContentGenerator.Mode mode;
+
+    @Activate
+    protected void activate(Config config) {
+        threads = config.threads() > 0 ? config.threads() : Runtime.getRuntime().availableProcessors();
+        batchSize = Math.max(1, config.batchSize());
+        mode = ContentGenerator.Mode.valueOf(config.mode().toUpperCase());
+    }
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        writeStatus(response, 200, contentGenerationJob.getStatus(request.getResourceResolver(), PATH_TESTS));
+    }
 
     @Override
     protected void doPost(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
             throws ServletException, IOException {
         ResourceResolver admin = request.getResourceResolver();
-        if (admin.getResource(PATH_TESTS) == null) {
-            log.info("Performing initial setup...");
-            try {
-                createTestContent(admin);
-                setupUsersAndGroups(admin);
-                log.info("Setup complete!");
-            } catch (Exception e) {
-                response.sendError(500, "Failed to set up " + e);
-                throw new ServletException("Failed to create users and groups", e);
-            }
-        } else {
+        if (Boolean.parseBoolean(request.getParameter("benchmark"))) {
+            benchmark(request, response);
+            return;
+        }
+        Map<String, Object> status = contentGenerationJob.getStatus(admin, PATH_TESTS);
+        if (ContentGenerationJob.STATE_COMPLETE.equals(status.get("state"))) {
             log.info("No need to perform setup");
+            writeStatus(response, 200, status);
+            return;
+        }
+        if (ContentGenerationJob.STATE_RUNNING.equals(status.get("state"))) {
+            writeStatus(response, 202, status);
+            return;
+        }
+
+        int requestThreads;
+        int requestBatchSize;
+        ContentGenerator.Mode requestMode;
+        try {
+            requestThreads = getThreads(request);
+            requestBatchSize = getBatchSize(request);
+            requestMode = getMode(request);
+        } catch (IllegalArgumentException iae) {
+            response.sendError(400, "Invalid value for parameter threads, batchSize or mode: " + iae.getMessage());
+            return;
         }
+        DatasetSpec spec;
+        try {
+            spec = readSpec(request, DatasetSpec.createDefault());
+            spec.validate();
+        } catch (IOException | IllegalArgumentException e) {
+            response.sendError(400, "Invalid dataset spec: " + e.getMessage());
+            return;
+        }
+
+        log.info("Performing initial setup...");
+        try {
+            // the request's resolver is closed once the request completes
+            contentGenerationJob.start(admin.clone(null), PATH_TESTS, spec, requestThreads, requestBatchSize,
+                    requestMode, this::setup);
+        } catch (LoginException e) {
+            response.sendError(500, "Failed to set up " + e);
+            throw new ServletException("Failed to clone resource resolver", e);
+        }
+        writeStatus(response, 202, contentGenerationJob.getStatus(admin, PATH_TESTS));
     }
 
-    private void createTestContent(ResourceResolver admin) throws PersistenceException {
-        log.info("Creating test content...");
-        Resource root = ResourceUtil.getOrCreateResource(admin, PATH_TESTS, NT_TEST_CONTENT, NT_TEST_CONTENT, false);
-        for (Integer iteration : IntStream.range(1, 10).toArray()) {
-            Resource iterRsrc = admin.create(root, String.format("it-%d", iteration),
-                    Map.of(JcrConstants.JCR_PRIMARYTYPE, NT_TEST_CONTENT));
-            iterRsrc.adaptTo(ModifiableValueMap.class).putAll(Map.of(PN_TEST_NAME, TEST_NAME, PN_TEST_ITERATION,
-                    iteration));
-            for (Integer item : IntStream.range(1, 100 * iteration).toArray()) {
-                Resource itRsrc = admin.create(iterRsrc, String.format("item-%d", item),
-                        Map.of(JcrConstants.JCR_PRIMARYTYPE, NT_TEST_CONTENT));
-                itRsrc.adaptTo(ModifiableValueMap.class).putAll(Map.of(PN_TEST_NAME, TEST_NAME,
-                        PN_TEST_ITERATION, iteration, PN_TEST_ITEM, item));
-                for (Integer child : IntStream.range(1, 100 * iteration).toArray()) {
-                    admin.create(itRsrc, String.format("child-%d", child),
-                            Map.of(JcrConstants.JCR_PRIMARYTYPE, NT_TEST_CONTENT))
-                            .adaptTo(ModifiableValueMap.class)
-                            .putAll(Map.of(PN_TEST_NAME, TEST_NAME,
-                                    PN_TEST_ITERATION, iteration, PN_TEST_ITEM, item,
-                                    PN_TEST_CHILD, child));
+    private void writeStatus(SlingHttpServletResponse response, int statusCode, Map<String, Object> status)
+            throws IOException {
+        response.setStatus(statusCode);
+        response.setContentType("application/json");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(objectWriter.writeValueAsString(status));
+    }
+
+    /**
+     * Generates the dataset spec of the request with each mode under a scratch
+     * path, removing the content afterwards, and reports the throughput of each
+     * mode so the faster one can be chosen for large datasets. The content under
+     * /tests is not touched.
+     */
+    private void benchmark(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws IOException {
+        int requestThreads;
+        int requestBatchSize;
+        DatasetSpec spec;
+        try {
+            requestThreads = getThreads(request);
+            requestBatchSize = getBatchSize(request);
+            spec = readSpec(request, getBenchmarkSpec());
+            spec.validate();
+        } catch (IllegalArgumentException | IOException e) {
+            response.sendError(400, "Invalid benchmark request: " + e.getMessage());
+            return;
+        }
+        ResourceResolver admin = request.getResourceResolver();
+        Map<String, Object> results = new LinkedHashMap<>();
+        try {
+            for (ContentGenerator.Mode benchmarkMode : ContentGenerator.Mode.values()) {
+                String path = PATH_BENCHMARK + "/" + benchmarkMode.name().toLowerCase();
+                Resource existing = admin.getResource(path);
+                if (existing != null) {
+                    admin.delete(existing);
+                    admin.commit();
                 }
-                if (item % 100 == 0) {
-                    log.info("Saving at item {} of iteration {}...", item, iteration);
+                log.info("Benchmarking {} mode under {}...", benchmarkMode, path);
+                results.put(benchmarkMode.name().toLowerCase(),
+                        new ContentGenerator(spec, requestThreads, requestBatchSize, benchmarkMode)
+                                .generate(admin, path, null));
+                Resource generated = admin.getResource(path);
+                if (generated != null) {
+                    admin.delete(generated);
+                    admin.commit();
                 }
-                admin.commit();
             }
+        } catch (PersistenceException | LoginException e) {
+            response.sendError(500, "Failed to run benchmark " + e);
+            log.error("Failed to run content generation benchmark", e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.sendError(500, "Benchmark interrupted");
+            return;
+        }
+        writeStatus(response, 200, results);
+    }
+
+    /**
+     * The default spec of a benchmark, small enough to generate twice within a
+     * request.
+     */
+    private static DatasetSpec getBenchmarkSpec() {
+        DatasetSpec spec = new DatasetSpec();
+        spec.setIterations(3);
+        spec.setFanOut(List.of(50, 50));
+        return spec;
+    }
+
+    private int getThreads(SlingHttpServletRequest request) {
+        return Math.max(1, Optional.ofNullable(request.getParameter("threads")).map(Integer::parseInt)
+                .orElse(threads));
+    }
+
+    private int getBatchSize(SlingHttpServletRequest request) {
+        return Math.max(1, Optional.ofNullable(request.getParameter("batchSize")).map(Integer::parseInt)
+                .orElse(batchSize));
+    }
+
+    private ContentGenerator.Mode getMode(SlingHttpServletRequest request) {
+        return Optional.ofNullable(request.getParameter("mode"))
+                .map(m -> ContentGenerator.Mode.valueOf(m.toUpperCase())).orElse(mode);
+    }
+
+    /**
+     * Reads the dataset spec from the JSON body of the request, if there is no
+     * body the default spec is used.
+     */
+    private DatasetSpec readSpec(SlingHttpServletRequest request, DatasetSpec defaultSpec) throws IOException {
+        String body = IOUtils.toString(request.getReader());
+        return StringUtils.isBlank(body) ? defaultSpec : objectMapper.readValue(body, DatasetSpec.class);
+    }
+
+    /**
+     * Sets up the users and groups the tests use and, if the spec has one, the
+     * generated access control model.
+     */
+    private void setup(ResourceResolver admin, DatasetSpec spec) throws RepositoryException, PersistenceException {
+        setupUsersAndGroups(admin);
+        if (spec.getAcl() != null) {
+            new AclGenerator(spec.getAcl()).generate(admin, PATH_TESTS, spec);
         }
     }
 
     private void setupUsersAndGroups(ResourceResolver admin) throws RepositoryException, PersistenceException {
-        log.info("Setting up users and groups...");
         UserManager userManager = admin.adaptTo(UserManager.class);
+        if (userManager.getAuthorizable("test-limited-access-user") != null) {
+            log.info("Users and groups already set up");
+            return;
+        }
+        log.info("Setting up users and groups...");
         User user = userManager.createUser("test-limited-access-user", "test-limited-access-user");
 
         Group group = userManager.createGroup("test-limited-access-group");
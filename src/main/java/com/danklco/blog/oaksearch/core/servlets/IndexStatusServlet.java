@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.servlets;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletPaths;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Reports the status of the index definition in the <code>path</code>
+ * parameter: its reindex flags from the repository, its size and document
+ * count from the Lucene index MBean and the status of the async indexing
+ * lanes from the index statistics MBeans.
+ */
+@Component(service = { Servlet.class })
+@SlingServletPaths("/bin/oak-search/indexstatus")
+public class IndexStatusServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggerFactory.getLogger(IndexStatusServlet.class);
+
+    private static final ObjectWriter objectWriter = new ObjectMapper().writerWithDefaultPrettyPrinter();
+
+    private static final String LUCENE_INDEX_MBEANS = "org.apache.jackrabbit.oak:type=LuceneIndex,*";
+
+    private static final String INDEX_STATS_MBEANS = "org.apache.jackrabbit.oak:type=IndexStats,*";
+
+    /** The attributes of the index statistics MBean reported for each lane */
+    private static final List<String> LANE_ATTRIBUTES = Arrays.asList("Status", "Start", "Done",
+            "LastIndexedTime", "Updates", "NodesReadCount", "ChangeCount", "ExecutionCount", "Failing",
+            "LatestError");
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        String path = request.getParameter("path");
+        if (StringUtils.isBlank(path)) {
+            response.sendError(400, "Missing parameter path");
+            return;
+        }
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("path", path);
+        Resource index = request.getResourceResolver().getResource(path);
+        status.put("exists", index != null);
+        if (index != null) {
+            ValueMap properties = index.getValueMap();
+            status.put("type", properties.get("type", String.class));
+            status.put("async", properties.get("async", new String[0]));
+            status.put("reindex", properties.get("reindex", false));
+            status.put("reindexCount", properties.get("reindexCount", 0L));
+        }
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        status.put("size", invokeLuceneIndex(mbeanServer, "getSize", path));
+        status.put("docCount", invokeLuceneIndex(mbeanServer, "getDocCount", path));
+        status.put("lanes", getLanes(mbeanServer));
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(objectWriter.writeValueAsString(status));
+    }
+
+    /**
+     * Calls an operation of the Lucene index MBeans taking the index path,
+     * which answer with a number as a string or null for an index they haven't
+     * opened.
+     * 
+     * @return the first number returned or -1 if no MBean knows the index
+     */
+    private long invokeLuceneIndex(MBeanServer mbeanServer, String operation, String path) {
+        try {
+            for (ObjectName name : mbeanServer.queryNames(new ObjectName(LUCENE_INDEX_MBEANS), null)) {
+                Object value = mbeanServer.invoke(name, operation, new Object[] { path },
+                        new String[] { String.class.getName() });
+                if (value != null) {
+                    return NumberUtils.toLong(value.toString(), -1);
+                }
+            }
+        } catch (JMException e) {
+            log.warn("Failed to invoke {} for index {}", operation, path, e);
+        }
+        return -1;
+    }
+
+    private Map<String, Map<String, Object>> getLanes(MBeanServer mbeanServer) {
+        Map<String, Map<String, Object>> lanes = new LinkedHashMap<>();
+        try {
+            Set<ObjectName> names = new TreeSet<>(mbeanServer.queryNames(new ObjectName(INDEX_STATS_MBEANS), null));
+            for (ObjectName name : names) {
+                Map<String, Object> lane = new LinkedHashMap<>();
+                for (Attribute attribute : mbeanServer
+                        .getAttributes(name, LANE_ATTRIBUTES.toArray(new String[0])).asList()) {
+                    lane.put(StringUtils.uncapitalize(attribute.getName()), attribute.getValue());
+                }
+                lanes.put(name.getKeyProperty("name"), lane);
+            }
+        } catch (JMException e) {
+            log.warn("Failed to read the index statistics", e);
+        }
+        return lanes;
+    }
+}
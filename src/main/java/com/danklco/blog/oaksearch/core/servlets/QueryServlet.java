@@ -16,40 +16,59 @@
 package com.danklco.blog.oaksearch.core.servlets;
 
 import java.io.IOException;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
 
-import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
+import javax.jcr.query.InvalidQueryException;
+import javax.servlet.AsyncContext;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.util.ISO8601;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.danklco.blog.oaksearch.core.query.QueryExecutor;
+import com.danklco.blog.oaksearch.core.query.QueryExecutor.QueryRejectedException;
+import com.danklco.blog.oaksearch.core.query.QueryExecutor.QueryTask;
+import com.danklco.blog.oaksearch.core.query.QueryRequest;
+import com.danklco.blog.oaksearch.core.query.QueryRequest.Mode;
+import com.danklco.blog.oaksearch.core.query.QueryRunner;
+import com.danklco.blog.oaksearch.core.query.QueryRunner.PreparedQuery;
 import com.drew.lang.annotations.NotNull;
 import com.drew.lang.annotations.Nullable;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 @Component(service = { Servlet.class })
-@SlingServletResourceTypes(resourceTypes = "test:content", methods = HttpConstants.METHOD_GET, extensions = "json", selectors = "query")
+@SlingServletResourceTypes(resourceTypes = "test:content", methods = HttpConstants.METHOD_GET, extensions = {
+        "json", "ndjson", "smile", "cbor" }, selectors = "query")
 public class QueryServlet extends SlingSafeMethodsServlet {
 
     private static final Logger log = LoggerFactory.getLogger(QueryServlet.class);
@@ -58,76 +77,250 @@ public class QueryServlet extends SlingSafeMethodsServlet {
 
     private static final ObjectWriter objectWriter = new ObjectMapper().writerWithDefaultPrettyPrinter();
 
+    private static final String BIND_PREFIX = "bind.";
+
+    private static final String TYPE_HINT_SUFFIX = "@TypeHint";
+
+    /**
+     * The formats results can be written in, selected by the extension or, for
+     * the json extension, the Accept header.
+     */
+    private enum Format {
+        JSON("json", "application/json", new JsonFactory()),
+        NDJSON("ndjson", "application/x-ndjson", new JsonFactory()),
+        SMILE("smile", "application/x-jackson-smile", new SmileFactory()),
+        CBOR("cbor", "application/cbor", new CBORFactory());
+
+        private final String extension;
+        private final String contentType;
+        private final JsonFactory factory;
+
+        Format(String extension, String contentType, JsonFactory factory) {
+            this.extension = extension;
+            this.contentType = contentType;
+            this.factory = factory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        }
+
+        boolean isBinary() {
+            return this == SMILE || this == CBOR;
+        }
+
+        static Optional<Format> fromExtension(String extension) {
+            return Arrays.stream(values()).filter(f -> f.extension.equals(extension)).findFirst();
+        }
+
+        static Optional<Format> fromContentType(String contentType) {
+            return Arrays.stream(values()).filter(f -> f.contentType.equals(contentType)).findFirst();
+        }
+    }
+
+    @Reference
+    private transient QueryRunner queryRunner;
+
+    @Reference
+    private transient QueryExecutor queryExecutor;
+
     @Override
     protected void doGet(final SlingHttpServletRequest request,
             final SlingHttpServletResponse response) throws ServletException, IOException {
 
         String query = null;
         Long limit = null;
+        Long timeoutMs = null;
+        Mode mode = null;
         try {
             query = Optional.ofNullable(request.getParameter("query")).orElseThrow();
-            limit = getLong(request.getParameter("limit"), 1000L);
+            mode = Optional.ofNullable(request.getParameter("mode")).map(m -> Mode.valueOf(m.toUpperCase()))
+                    .orElse(Mode.RESULTS);
+            // counts are only capped when a limit is requested
+            limit = getLong(request.getParameter("limit"), mode == Mode.RESULTS ? 1000L : Long.MAX_VALUE);
+            timeoutMs = getLong(request.getParameter("timeoutMs"), 0L);
         } catch (IllegalArgumentException iae) {
-            sendProblem(response, 400, "Invalid value for parameter limit: " + iae.getMessage());
+            sendProblem(response, 400, "Invalid value for parameter limit, mode or timeoutMs: " + iae.getMessage());
             return;
         } catch (NoSuchElementException nsee) {
             sendProblem(response, 400, "Parameter query required: " + nsee.getMessage());
             return;
         }
 
-        QueryManager queryManager = null;
+        QueryRequest queryRequest = new QueryRequest(query, limit);
+        queryRequest.setTimeoutMs(timeoutMs);
+        queryRequest.setMode(mode);
+        queryRequest.setCursor(request.getParameter("cursor"));
         try {
-            Session session = Optional.ofNullable(request.getResourceResolver().adaptTo(Session.class))
-                    .orElseThrow(() -> new ServletException("Unexpected Exception: Failed to get JCR Session!"));
-            queryManager = session.getWorkspace().getQueryManager();
-        } catch (RepositoryException e) {
-            sendProblem(response, 500, "Failed to get Query Manager");
+            queryRequest.setBindings(getBindings(request));
+        } catch (IllegalArgumentException iae) {
+            sendProblem(response, 400, "Invalid bind value: " + iae.getMessage());
             return;
         }
+        queryRequest.setUsePlanCache(!"false".equals(request.getParameter("planCache")));
+        queryRequest.setMeasureAccessControl("true".equals(request.getParameter("accessControl")));
+        queryRequest.setUseResultCache(!"false".equals(request.getParameter("resultCache")));
+        Optional.ofNullable(request.getParameter("columns"))
+                .map(c -> Arrays.stream(c.split(",")).map(String::trim).filter(StringUtils::isNotBlank)
+                        .collect(Collectors.toList()))
+                .ifPresent(queryRequest::setColumns);
+
+        boolean pretty = Boolean.parseBoolean(request.getParameter("pretty"));
+        Format format = negotiate(request);
+        response.setHeader("Vary", "Accept");
+        String principal = request.getResourceResolver().getUserID();
+        if (request.isAsyncSupported()) {
+            executeAsync(request, response, queryRequest, format, pretty, principal);
+        } else {
+            executeBlocking(request, response, queryRequest, format, pretty, principal);
+        }
+    }
 
-        Query explainQuery = null;
-        Query parsedQuery = null;
+    /**
+     * Executes the query on the query executor and releases the request thread.
+     * As the request's resource resolver is closed when the request thread
+     * returns, the query is executed on a clone.
+     */
+    private void executeAsync(SlingHttpServletRequest request, SlingHttpServletResponse response,
+            QueryRequest queryRequest, Format format, boolean pretty, String principal) throws IOException {
+        ResourceResolver resolver;
         try {
-            parsedQuery = queryManager.createQuery(query, Query.JCR_SQL2);
-            explainQuery = queryManager.createQuery("explain " + query, Query.JCR_SQL2);
-        } catch (RepositoryException e) {
+            resolver = request.getResourceResolver().clone(null);
+        } catch (LoginException e) {
+            sendProblem(response, 500, "Failed to clone resource resolver: " + e.getMessage());
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync();
+        // the query enforces its own deadline and is abandoned if the executor is
+        // deactivated while it is queued
+        asyncContext.setTimeout(0);
+        try {
+            queryExecutor.execute(principal, new QueryTask() {
+                @Override
+                public void run() {
+                    try {
+                        runQuery(resolver, queryRequest, format, pretty, response);
+                    } catch (IOException | ServletException | RuntimeException e) {
+                        log.warn("Failed to execute query: {}", queryRequest.getQuery(), e);
+                        if (!response.isCommitted()) {
+                            sendProblemQuietly(response, 500, "Failed to execute query: " + e.getMessage());
+                        }
+                    } finally {
+                        resolver.close();
+                        asyncContext.complete();
+                    }
+                }
+
+                @Override
+                public void abandon() {
+                    resolver.close();
+                    sendProblemQuietly(response, 503, "The query executor was shut down");
+                    asyncContext.complete();
+                }
+            });
+        } catch (QueryRejectedException e) {
+            resolver.close();
+            sendRejected(response, e);
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Executes the query on the query executor, waiting on the request thread for
+     * it to complete, for containers which don't support async requests. This
+     * does not free the container's thread, but still bounds the number of
+     * concurrent queries.
+     */
+    private void executeBlocking(SlingHttpServletRequest request, SlingHttpServletResponse response,
+            QueryRequest queryRequest, Format format, boolean pretty, String principal) throws IOException, ServletException {
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            runQuery(request.getResourceResolver(), queryRequest, format, pretty, response);
+            return null;
+        });
+        try {
+            queryExecutor.execute(principal, QueryTask.of(task));
+            task.get();
+        } catch (QueryRejectedException e) {
+            sendRejected(response, e);
+        } catch (CancellationException e) {
+            sendProblem(response, 503, "The query executor was shut down");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new ServletException("Failed to execute query", e.getCause());
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted executing query", e);
+        }
+    }
+
+    private void runQuery(ResourceResolver resolver, QueryRequest queryRequest, Format format, boolean pretty,
+            SlingHttpServletResponse response) throws IOException, ServletException {
+        String query = queryRequest.getQuery();
+        PreparedQuery prepared = null;
+        try {
+            Session session = Optional.ofNullable(resolver.adaptTo(Session.class))
+                    .orElseThrow(() -> new ServletException("Unexpected Exception: Failed to get JCR Session!"));
+            prepared = queryRunner.prepare(session, queryRequest);
+        } catch (InvalidQueryException e) {
             log.info("Failed to create query for: {}", query, e);
             sendProblem(response, 400, "Invalid query: [" + query + "], Exception: " + e.toString());
             return;
+        } catch (RepositoryException e) {
+            sendProblem(response, 500, "Failed to get Query Manager");
+            return;
         }
-        parsedQuery.setLimit(limit);
 
-        String caughtException = "";
-        Long executionDuration = -1L;
-        Long iterationDuration = -1L;
-        List<String> results = new ArrayList<>();
-        String plan = "";
-        Instant start = Instant.now();
-        try {
-            plan = explainQuery.execute().getRows().nextRow().getValue("plan").getString();
-            QueryResult result = parsedQuery.execute();
-            executionDuration = Duration.between(start, Instant.now()).toMillis();
-
-            start = Instant.now();
-            NodeIterator nodes = result.getNodes();
-            while (nodes.hasNext()) {
-                results.add(nodes.nextNode().getPath());
+        if (prepared.getRejection() != null) {
+            sendProblem(response, 422, "Query rejected: " + prepared.getRejection().getMessage());
+            return;
+        }
+
+        response.setContentType(format.contentType);
+        if (format.isBinary()) {
+            try (JsonGenerator json = format.factory.createGenerator(response.getOutputStream())) {
+                queryRunner.execute(prepared, json);
             }
-            iterationDuration = Duration.between(start, Instant.now()).toMillis();
-        } catch (RepositoryException | UnsupportedOperationException e) {
-            caughtException = e.toString();
-        } finally {
-            if (!results.isEmpty()) {
-                iterationDuration = Duration.between(start, Instant.now()).toMillis();
+            return;
+        }
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        try (JsonGenerator json = format.factory.createGenerator(response.getWriter())) {
+            if (format == Format.NDJSON) {
+                json.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+                queryRunner.execute(prepared, json, true);
+                json.writeRaw('\n');
+            } else {
+                if (pretty) {
+                    json.useDefaultPrettyPrinter();
+                }
+                queryRunner.execute(prepared, json);
             }
         }
+    }
 
-        String res = objectWriter.writeValueAsString(
-                Map.of("query", query, "limit", limit, "plan", plan, "executionDuration", executionDuration,
-                        "iterationDuration", iterationDuration, "results", results, "caughtException",
-                        caughtException));
-        response.setContentType("application/json");
-        response.getWriter().write(res);
+    /**
+     * Selects the format by the extension or, for the json extension, by the
+     * first supported type in the Accept header.
+     */
+    private Format negotiate(SlingHttpServletRequest request) {
+        Format format = Format.fromExtension(request.getRequestPathInfo().getExtension()).orElse(Format.JSON);
+        String accept = request.getHeader("Accept");
+        if (format != Format.JSON || StringUtils.isBlank(accept)) {
+            return format;
+        }
+        return Arrays.stream(accept.split(",")).map(t -> StringUtils.substringBefore(t, ";").trim())
+                .map(Format::fromContentType).flatMap(Optional::stream).findFirst().orElse(Format.JSON);
+    }
+
+    private void sendRejected(HttpServletResponse response, QueryRejectedException e) throws IOException {
+        response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+        sendProblem(response, 429, "Too many queries: " + e.getMessage());
+    }
+
+    private void sendProblemQuietly(HttpServletResponse response, int statusCode, String title) {
+        try {
+            sendProblem(response, statusCode, title);
+        } catch (IOException e) {
+            log.debug("Failed to send problem response", e);
+        }
     }
 
     private void sendProblem(HttpServletResponse response, int statusCode, String title)
@@ -139,6 +332,55 @@ public class QueryServlet extends SlingSafeMethodsServlet {
         response.getWriter().write(res);
     }
 
+    /**
+     * Reads the values to bind from the <code>bind.{name}</code> parameters. The
+     * type of the value can be set with a <code>bind.{name}@TypeHint</code>
+     * parameter of String, Long, Double, Boolean or Date, otherwise integers are
+     * bound as Long, decimals as Double, true / false as Boolean and anything else
+     * as a String.
+     */
+    private Map<String, Object> getBindings(SlingHttpServletRequest request) {
+        Map<String, Object> bindings = new LinkedHashMap<>();
+        for (String name : request.getParameterMap().keySet()) {
+            if (name.startsWith(BIND_PREFIX) && !name.endsWith(TYPE_HINT_SUFFIX)) {
+                String value = request.getParameter(name);
+                String typeHint = Optional.ofNullable(request.getParameter(name + TYPE_HINT_SUFFIX))
+                        .orElseGet(() -> guessType(value));
+                bindings.put(name.substring(BIND_PREFIX.length()), convert(name, value, typeHint));
+            }
+        }
+        return bindings;
+    }
+
+    private String guessType(String value) {
+        if (value.matches("-?\\d+")) {
+            return "Long";
+        } else if (value.matches("-?\\d+\\.\\d+")) {
+            return "Double";
+        } else if ("true".equals(value) || "false".equals(value)) {
+            return "Boolean";
+        }
+        return "String";
+    }
+
+    private Object convert(String name, String value, String typeHint) {
+        switch (typeHint) {
+            case "String":
+                return value;
+            case "Long":
+                return Long.parseLong(value);
+            case "Double":
+                return Double.parseDouble(value);
+            case "Boolean":
+                return Boolean.parseBoolean(value);
+            case "Date":
+                return Optional.ofNullable(ISO8601.parse(value))
+                        .orElseThrow(() -> new IllegalArgumentException("Invalid date for " + name + ": " + value));
+            default:
+                throw new IllegalArgumentException("Unsupported type hint for " + name + ": " + typeHint);
+        }
+    }
+
     private Long getLong(@Nullable String param, @NotNull Long defaultValue) {
         return Optional.ofNullable(param).map(Long::parseLong).orElse(defaultValue);
     }
@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.core.servlets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletPaths;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.core.query.PlanCache;
+import com.danklco.blog.oaksearch.core.query.QueryExecutor;
+import com.danklco.blog.oaksearch.core.query.QueryStatsRecorder;
+import com.danklco.blog.oaksearch.core.query.ResultCache;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Reports the statistics of the recently executed queries, aggregated by query
+ * shape, along with the statistics of the plan and result caches and the
+ * query executor. The samples include the query text, with any literals, and
+ * the user who executed it, so the statistics are only available to
+ * administrators.
+ */
+@Component(service = { Servlet.class })
+@SlingServletPaths("/bin/oak-search/querystats")
+public class QueryStatsServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggerFactory.getLogger(QueryStatsServlet.class);
+
+    private static final String ADMINISTRATORS = "administrators";
+
+    private static final ObjectWriter objectWriter = new ObjectMapper().writerWithDefaultPrettyPrinter();
+
+    @Reference
+    private transient QueryStatsRecorder statsRecorder;
+
+    @Reference
+    private transient PlanCache planCache;
+
+    @Reference
+    private transient ResultCache resultCache;
+
+    @Reference
+    private transient QueryExecutor queryExecutor;
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        if (!isAdministrator(request.getResourceResolver().adaptTo(Session.class))) {
+            response.sendError(403, "Query statistics are only available to administrators");
+            return;
+        }
+        int slowest;
+        try {
+            slowest = Optional.ofNullable(request.getParameter("slowest")).map(Integer::parseInt).orElse(5);
+        } catch (NumberFormatException nfe) {
+            response.sendError(400, "Invalid value for parameter slowest: " + nfe.getMessage());
+            return;
+        }
+        if (slowest < 0) {
+            response.sendError(400, "Invalid value for parameter slowest: " + slowest + " is negative");
+            return;
+        }
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("recorded", statsRecorder.getRecorded());
+        stats.put("bufferSize", statsRecorder.getBufferSize());
+        stats.put("planCache", planCache.getStats());
+        stats.put("resultCache", resultCache.getStats());
+        stats.put("executor", queryExecutor.getStats());
+        stats.put("shapes", statsRecorder.aggregate(slowest));
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(objectWriter.writeValueAsString(stats));
+    }
+
+    /**
+     * @return true if the session's user is the admin user or a member of the
+     *         administrators group
+     */
+    private boolean isAdministrator(Session session) {
+        if (!(session instanceof JackrabbitSession)) {
+            return false;
+        }
+        try {
+            Authorizable user = ((JackrabbitSession) session).getUserManager().getAuthorizable(session.getUserID());
+            if (user == null) {
+                return false;
+            } else if (!user.isGroup() && ((User) user).isAdmin()) {
+                return true;
+            }
+            for (Iterator<Group> groups = user.memberOf(); groups.hasNext();) {
+                if (ADMINISTRATORS.equals(groups.next().getID())) {
+                    return true;
+                }
+            }
+        } catch (RepositoryException e) {
+            log.warn("Failed to check whether {} is an administrator", session.getUserID(), e);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.danklco.blog.oaksearch.core.query.QueryStatsRecorder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The results of a benchmark run, written as JSON so runs can be archived and
+ * compared between releases. Each result is for a query at a number of
+ * concurrent clients, with the latencies in milliseconds, the throughput in
+ * operations per second and the allocation rate in MB per second.
+ */
+public class BenchmarkReport {
+
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+            .withZone(ZoneOffset.UTC);
+
+    private final String type;
+    private final Instant timestamp = Instant.now();
+    private final Map<String, Object> settings;
+    private final List<Map<String, Object>> results = new ArrayList<>();
+
+    /**
+     * @param type     the type of benchmark, e.g. in-process or http
+     * @param settings the settings the benchmark was run with
+     */
+    public BenchmarkReport(String type, Map<String, Object> settings) {
+        this.type = type;
+        this.settings = settings;
+    }
+
+    /**
+     * Creates a result from the measured latencies.
+     * 
+     * @param query          the name of the query
+     * @param clients        the number of concurrent clients
+     * @param sortedNanos    the latency of each measured operation in
+     *                       nanoseconds, sorted ascending
+     * @param measuredNanos  the wall time of the measured iterations
+     * @param errors         the number of operations which failed
+     * @param allocatedBytes the bytes allocated per operation, or -1 if
+     *                       unknown
+     * @return the result, for additional fields to be added
+     */
+    public Map<String, Object> add(String query, int clients, long[] sortedNanos, long measuredNanos, long errors,
+            double allocatedBytes) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("query", query);
+        result.put("clients", clients);
+        result.put("operations", sortedNanos.length);
+        result.put("errors", errors);
+        if (sortedNanos.length > 0) {
+            result.put("p50Ms", toMillis(QueryStatsRecorder.percentile(sortedNanos, 50)));
+            result.put("p90Ms", toMillis(QueryStatsRecorder.percentile(sortedNanos, 90)));
+            result.put("p95Ms", toMillis(QueryStatsRecorder.percentile(sortedNanos, 95)));
+            result.put("p99Ms", toMillis(QueryStatsRecorder.percentile(sortedNanos, 99)));
+            result.put("maxMs", toMillis(sortedNanos[sortedNanos.length - 1]));
+        }
+        double throughput = sortedNanos.length * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1L, measuredNanos);
+        result.put("throughput", throughput);
+        putAllocation(result, allocatedBytes, throughput);
+        results.add(result);
+        return result;
+    }
+
+    /**
+     * Adds a result which was summarized by the benchmark framework.
+     * 
+     * @param query          the name of the query
+     * @param clients        the number of concurrent clients
+     * @param operations     the number of measured operations
+     * @param p50Nanos       the median latency
+     * @param p90Nanos       the 90th percentile latency
+     * @param p95Nanos       the 95th percentile latency
+     * @param p99Nanos       the 99th percentile latency
+     * @param maxNanos       the maximum latency
+     * @param throughput     the operations per second
+     * @param allocatedBytes the bytes allocated per operation, or -1 if
+     *                       unknown
+     * @return the result, for additional fields to be added
+     */
+    public Map<String, Object> add(String query, int clients, long operations, double p50Nanos, double p90Nanos,
+            double p95Nanos, double p99Nanos, double maxNanos, double throughput, double allocatedBytes) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("query", query);
+        result.put("clients", clients);
+        result.put("operations", operations);
+        result.put("errors", 0L);
+        result.put("p50Ms", toMillis(p50Nanos));
+        result.put("p90Ms", toMillis(p90Nanos));
+        result.put("p95Ms", toMillis(p95Nanos));
+        result.put("p99Ms", toMillis(p99Nanos));
+        result.put("maxMs", toMillis(maxNanos));
+        result.put("throughput", throughput);
+        putAllocation(result, allocatedBytes, throughput);
+        results.add(result);
+        return result;
+    }
+
+    /**
+     * @return the results added so far
+     */
+    public List<Map<String, Object>> getResults() {
+        return results;
+    }
+
+    /**
+     * Writes the report to a file named for the type and time of the run.
+     * 
+     * @param directory the directory to write to
+     * @return the file written
+     * @throws IOException the report could not be written
+     */
+    public File write(String directory) throws IOException {
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + dir);
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("type", type);
+        report.put("timestamp", timestamp.toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("settings", settings);
+        report.put("results", results);
+        File file = new File(dir, type + "-" + FILE_TIMESTAMP.format(timestamp) + ".json");
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, report);
+        return file;
+    }
+
+    private static void putAllocation(Map<String, Object> result, double allocatedBytes, double throughput) {
+        if (allocatedBytes >= 0) {
+            result.put("allocatedBytesPerOp", allocatedBytes);
+            result.put("allocationRateMBs", allocatedBytes * throughput / (1024 * 1024));
+        }
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The queries to benchmark and how to run them. The queries are read from a
+ * JSON array in the classpath, <code>bench/queries.json</code> by default, and
+ * the settings from system properties so they can be set on the Maven command
+ * line:
+ * <ul>
+ * <li><code>bench.suite</code> - the classpath resource of the queries</li>
+ * <li><code>bench.clients</code> - the comma separated concurrency levels,
+ * default <code>1,2,4,8</code></li>
+ * <li><code>bench.warmupIterations</code> - the iterations run before
+ * measuring, default 2</li>
+ * <li><code>bench.iterations</code> - the measured iterations, default 3</li>
+ * <li><code>bench.iterationSeconds</code> - the length of each iteration,
+ * default 5</li>
+ * <li><code>bench.output</code> - the directory the reports are written to,
+ * default <code>target/bench</code></li>
+ * </ul>
+ */
+public class BenchmarkSuite {
+
+    /**
+     * A query of the suite
+     */
+    public static class Query {
+        private String name;
+        private String query;
+        private long limit = 100;
+
+        /**
+         * @return the unique name of the query in the reports
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @param name the unique name of the query in the reports
+         */
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the JCR-SQL2 statement
+         */
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * @param query the JCR-SQL2 statement
+         */
+        public void setQuery(String query) {
+            this.query = query;
+        }
+
+        /**
+         * @return the limit of the query, 100 by default
+         */
+        public long getLimit() {
+            return limit;
+        }
+
+        /**
+         * @param limit the limit of the query
+         */
+        public void setLimit(long limit) {
+            this.limit = limit;
+        }
+    }
+
+    private final Map<String, Query> queries = new LinkedHashMap<>();
+    private final List<Integer> clients;
+    private final int warmupIterations;
+    private final int iterations;
+    private final int iterationSeconds;
+    private final String output;
+
+    /**
+     * Loads the suite from the system properties.
+     * 
+     * @throws IOException the queries could not be read
+     */
+    public BenchmarkSuite() throws IOException {
+        String resource = System.getProperty("bench.suite", "bench/queries.json");
+        try (InputStream is = BenchmarkSuite.class.getClassLoader().getResourceAsStream(resource)) {
+            if (is == null) {
+                throw new IOException("Benchmark suite not found in classpath: " + resource);
+            }
+            List<Query> list = new ObjectMapper().readValue(is, new TypeReference<List<Query>>() {
+            });
+            list.forEach(q -> queries.put(q.getName(), q));
+        }
+        clients = Arrays.stream(System.getProperty("bench.clients", "1,2,4,8").split(",")).map(String::trim)
+                .map(Integer::parseInt).collect(Collectors.toList());
+        warmupIterations = Integer.getInteger("bench.warmupIterations", 2);
+        iterations = Integer.getInteger("bench.iterations", 3);
+        iterationSeconds = Integer.getInteger("bench.iterationSeconds", 5);
+        output = System.getProperty("bench.output", "target/bench");
+    }
+
+    /**
+     * @return the queries by name, in the order of the suite
+     */
+    public Map<String, Query> getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return the numbers of concurrent clients to run each query with
+     */
+    public List<Integer> getClients() {
+        return clients;
+    }
+
+    /**
+     * @return the number of iterations run before measuring
+     */
+    public int getWarmupIterations() {
+        return warmupIterations;
+    }
+
+    /**
+     * @return the number of measured iterations
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return the length of each iteration in seconds
+     */
+    public int getIterationSeconds() {
+        return iterationSeconds;
+    }
+
+    /**
+     * @return the directory to write the reports to
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * @return the settings, to be recorded in the report
+     */
+    public Map<String, Object> getSettings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("clients", clients);
+        settings.put("warmupIterations", warmupIterations);
+        settings.put("iterations", iterations);
+        settings.put("iterationSeconds", iterationSeconds);
+        return settings;
+    }
+}
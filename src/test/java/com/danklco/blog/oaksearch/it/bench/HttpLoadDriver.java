@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Drives load against the query servlet at <code>/tests/it-9.query.json</code>
+ * from a number of concurrent clients, each sending its next request as soon
+ * as the previous one completes. The latency is measured by the client, so it
+ * includes HTTP and authentication, while the allocation is the
+ * <code>allocatedBytes</code> reported by the servlet for the request thread.
+ * The result cache is bypassed so each request executes the query.
+ */
+public class HttpLoadDriver {
+
+    private static final String QUERY_PATH = "/tests/it-9.query.json";
+
+    private static final Logger log = LoggerFactory.getLogger(HttpLoadDriver.class);
+
+    private final URI baseUri;
+    private final String authorization;
+    private final BenchmarkSuite suite;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * @param baseUri  the URI of the AEM instance or embedded repository
+     * @param user     the user to authenticate as
+     * @param password the password of the user
+     * @param suite    the suite to run
+     */
+    public HttpLoadDriver(URI baseUri, String user, String password, BenchmarkSuite suite) {
+        this.baseUri = baseUri;
+        this.authorization = "Basic "
+                + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.suite = suite;
+    }
+
+    /**
+     * Runs each query of the suite at each number of clients.
+     * 
+     * @return the report of the run
+     * @throws InterruptedException the run was interrupted
+     */
+    public BenchmarkReport run() throws InterruptedException {
+        BenchmarkReport report = new BenchmarkReport("http", suite.getSettings());
+        for (BenchmarkSuite.Query query : suite.getQueries().values()) {
+            for (int clients : suite.getClients()) {
+                run(report, query, clients);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Runs a query with a number of clients, for the warmup and measured
+     * iterations of the suite.
+     * 
+     * @param report  the report to add the result to
+     * @param query   the query to run
+     * @param clients the number of concurrent clients
+     * @return the result added to the report
+     * @throws InterruptedException the run was interrupted
+     */
+    public Map<String, Object> run(BenchmarkReport report, BenchmarkSuite.Query query, int clients)
+            throws InterruptedException {
+        log.info("Running {} with {} clients...", query.getName(), clients);
+        for (int i = 0; i < suite.getWarmupIterations(); i++) {
+            runIteration(query, clients);
+        }
+        List<Long> latencies = new ArrayList<>();
+        long measuredNanos = 0;
+        long errors = 0;
+        long allocatedBytes = 0;
+        long allocations = 0;
+        for (int i = 0; i < suite.getIterations(); i++) {
+            Iteration iteration = runIteration(query, clients);
+            latencies.addAll(iteration.latencies);
+            measuredNanos += iteration.wallNanos;
+            errors += iteration.errors.sum();
+            allocatedBytes += iteration.allocatedBytes.sum();
+            allocations += iteration.allocations.sum();
+        }
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        Map<String, Object> result = report.add(query.getName(), clients, sorted, measuredNanos, errors,
+                allocations > 0 ? (double) allocatedBytes / allocations : -1);
+        log.info("Result: {}", result);
+        return result;
+    }
+
+    /**
+     * The measurements of one iteration
+     */
+    private static class Iteration {
+        private final List<Long> latencies = new ArrayList<>();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+        private final LongAdder allocations = new LongAdder();
+        private long wallNanos;
+    }
+
+    private Iteration runIteration(BenchmarkSuite.Query query, int clients) throws InterruptedException {
+        Iteration iteration = new Iteration();
+        HttpRequest request = HttpRequest.newBuilder(baseUri.resolve(QUERY_PATH + "?query="
+                + URLEncoder.encode(query.getQuery(), StandardCharsets.UTF_8) + "&limit=" + query.getLimit()
+                + "&resultCache=false")).header("Authorization", authorization).GET().build();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(suite.getIterationSeconds());
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                futures.add(executor.submit(() -> runClient(request, end, iteration)));
+            }
+            for (Future<List<Long>> future : futures) {
+                try {
+                    iteration.latencies.addAll(future.get());
+                } catch (java.util.concurrent.ExecutionException e) {
+                    throw new IllegalStateException("Client failed", e.getCause());
+                }
+            }
+            iteration.wallNanos = System.nanoTime() - start;
+        } finally {
+            executor.shutdownNow();
+        }
+        return iteration;
+    }
+
+    private List<Long> runClient(HttpRequest request, long end, Iteration iteration) throws InterruptedException {
+        List<Long> latencies = new ArrayList<>();
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            try {
+                HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                long latency = System.nanoTime() - start;
+                if (response.statusCode() != 200) {
+                    iteration.errors.increment();
+                    continue;
+                }
+                JsonNode result = objectMapper.readTree(response.body());
+                if (!result.path("caughtException").asText().isEmpty()) {
+                    iteration.errors.increment();
+                    continue;
+                }
+                latencies.add(latency);
+                long allocatedBytes = result.path("allocatedBytes").asLong(-1);
+                if (allocatedBytes >= 0) {
+                    iteration.allocatedBytes.add(allocatedBytes);
+                    iteration.allocations.increment();
+                }
+            } catch (IOException e) {
+                log.debug("Request failed", e);
+                iteration.errors.increment();
+            }
+        }
+        return latencies;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.bench;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.it.tests.OakSearchITBase;
+import com.danklco.blog.oaksearch.it.tests.TestQueryResult;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Compares the index definitions of the tests on measured data rather than by
+ * reading their comments. Each candidate definition is installed in turn, and
+ * the time to reindex and the resulting size and document count of the index
+ * are recorded before the query suite is run against it:
+ * 
+ * <pre>
+ * mvn clean verify -Prun-it,compare-indexes,embedded
+ * </pre>
+ * 
+ * For each query and definition the plan, the latency over HTTP and an exact
+ * count of the results are recorded. As the definitions only differ in how
+ * the query is executed, every definition should count the same results; a
+ * count which differs from the other definitions, or a query which fails, is
+ * reported as incorrect. The results are written as JSON to
+ * <code>target/bench</code>, along with a text table of the definitions side
+ * by side for each query.
+ */
+class IndexComparison extends OakSearchITBase {
+
+    /** The index definitions of the tests */
+    static final String DEFAULT_INDEX_DEFS = "01_QueryNodeType/indexDef.json,"
+            + "02_QueryProperties/indexDef.json,03_Ordering/indexDef.json,04_NullProperties/indexDef.json";
+
+    /** The name of the index, or the traversal, in the plan */
+    private static final Pattern PLAN_INDEX = Pattern.compile("/\\*\\s*([\\w:-]+)");
+
+    private static final Logger log = LoggerFactory.getLogger(IndexComparison.class);
+
+    private static BenchmarkSuite suite;
+    private static List<String> indexDefs;
+    private static int clients;
+    private static long countLimit;
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        OakSearchITBase.setup();
+        suite = new BenchmarkSuite();
+        indexDefs = Arrays.stream(System.getProperty("bench.indexDefs", DEFAULT_INDEX_DEFS).split(","))
+                .map(String::trim).collect(Collectors.toList());
+        clients = Integer.getInteger("bench.comparisonClients", 1);
+        countLimit = Long.getLong("bench.countLimit", 10000);
+    }
+
+    @Test
+    void canCompareIndexDefinitions() throws Exception {
+        Map<String, Object> settings = new LinkedHashMap<>(suite.getSettings());
+        settings.put("clients", clients);
+        settings.put("countLimit", countLimit);
+        settings.put("indexDefs", indexDefs);
+        BenchmarkReport report = new BenchmarkReport("index-comparison", settings);
+        HttpLoadDriver driver = new HttpLoadDriver(adminAuthor.getUrl(), "admin", "admin", suite);
+
+        for (String indexDef : indexDefs) {
+            long start = System.nanoTime();
+            updateIndex(indexDef);
+            long reindexMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            JsonNode status = getIndexStatus();
+            log.info("Reindexed {} in {}ms to {} documents of {} bytes", indexDef, reindexMs,
+                    status.path("docCount").asLong(), status.path("size").asLong());
+
+            for (BenchmarkSuite.Query query : suite.getQueries().values()) {
+                Map<String, Object> result = driver.run(report, query, clients);
+                result.put("indexDef", indexDef);
+                result.put("reindexMs", reindexMs);
+                result.put("indexSize", status.path("size").asLong());
+                result.put("indexDocCount", status.path("docCount").asLong());
+
+                TestQueryResult single = runQuery(adminAuthor, query.getQuery(), query.getLimit());
+                result.put("plan", single.getPlan());
+                result.put("planIndex", getPlanIndex(single.getPlan()));
+                result.put("rowsRead", single.getRowsRead());
+
+                TestQueryResult count = runQuery(adminAuthor, query.getQuery(), countLimit,
+                        List.of(new BasicNameValuePair("mode", "count")));
+                result.put("count", count.getCount());
+                result.put("exact", count.isExact());
+                result.put("caughtException", StringUtils.defaultIfEmpty(single.getCaughtException(),
+                        count.getCaughtException()));
+            }
+        }
+        assertEquals(indexDefs.size() * suite.getQueries().size(), report.getResults().size());
+
+        markCorrect(report.getResults());
+        File file = report.write(suite.getOutput());
+        File table = new File(file.getParentFile(), file.getName().replaceAll("\\.json$", ".txt"));
+        Files.writeString(table.toPath(), toTable(report.getResults()), StandardCharsets.UTF_8);
+        log.info("Wrote index comparison to {} and {}:\n{}", file.getAbsolutePath(), table.getAbsolutePath(),
+                toTable(report.getResults()));
+    }
+
+    /**
+     * @param plan the plan of a query
+     * @return the index in the plan, e.g. <code>lucene:testContentLucene</code>
+     *         or <code>traverse</code>, or null if there is no plan
+     */
+    static String getPlanIndex(String plan) {
+        if (plan == null) {
+            return null;
+        }
+        Matcher matcher = PLAN_INDEX.matcher(plan);
+        return matcher.find() ? matcher.group(1) : plan;
+    }
+
+    /**
+     * Marks each result as correct if its query didn't fail and counted the
+     * same results as most of the definitions whose query didn't fail.
+     */
+    private static void markCorrect(List<Map<String, Object>> results) {
+        Map<Object, List<Map<String, Object>>> byQuery = results.stream()
+                .collect(Collectors.groupingBy(r -> r.get("query"), LinkedHashMap::new, Collectors.toList()));
+        for (List<Map<String, Object>> queryResults : byQuery.values()) {
+            Object consensus = queryResults.stream().filter(IndexComparison::succeeded)
+                    .collect(Collectors.groupingBy(r -> r.get("count"), Collectors.counting())).entrySet().stream()
+                    .max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(null);
+            for (Map<String, Object> result : queryResults) {
+                result.put("expectedCount", consensus);
+                result.put("correct", succeeded(result) && Objects.equals(consensus, result.get("count")));
+            }
+        }
+    }
+
+    private static boolean succeeded(Map<String, Object> result) {
+        return StringUtils.isEmpty((String) result.get("caughtException"))
+                && ((Number) result.get("errors")).longValue() == 0;
+    }
+
+    /**
+     * Formats the results as a table for each query, with a row for each index
+     * definition.
+     */
+    private static String toTable(List<Map<String, Object>> results) {
+        StringBuilder table = new StringBuilder();
+        Map<Object, List<Map<String, Object>>> byQuery = results.stream()
+                .collect(Collectors.groupingBy(r -> r.get("query"), LinkedHashMap::new, Collectors.toList()));
+        String format = "%-36s %10s %12s %-28s %10s %10s %10s %10s %10s %8s%n";
+        for (Map.Entry<Object, List<Map<String, Object>>> query : byQuery.entrySet()) {
+            table.append(query.getKey()).append(System.lineSeparator());
+            table.append(String.format(format, "indexDef", "reindexMs", "indexSize", "planIndex", "rowsRead",
+                    "p50Ms", "p90Ms", "p99Ms", "count", "correct"));
+            Function<Object, String> millis = v -> v == null ? "-" : String.format("%.2f", (Double) v);
+            for (Map<String, Object> result : query.getValue()) {
+                table.append(String.format(format, result.get("indexDef"), result.get("reindexMs"),
+                        result.get("indexSize"), result.get("planIndex"), result.get("rowsRead"),
+                        millis.apply(result.get("p50Ms")), millis.apply(result.get("p90Ms")),
+                        millis.apply(result.get("p99Ms")), result.get("count"), result.get("correct")));
+            }
+            table.append(System.lineSeparator());
+        }
+        return table.toString();
+    }
+}
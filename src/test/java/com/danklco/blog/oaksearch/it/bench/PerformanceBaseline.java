@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The recorded performance of a query scenario, a query of the suite run with
+ * an index definition, which the {@link PerformanceGate} verifies each run
+ * against. The latency and rows read are only comparable when measured in the
+ * same environment, as AEM and the embedded repository run against different
+ * datasets.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PerformanceBaseline {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private String indexDef;
+    private String name;
+    private String query;
+    private long limit;
+    private String environment;
+    private Double p95Ms;
+    private Long rowsRead;
+    private String planIndex;
+    private String plan;
+    private String caughtException;
+    private String recorded;
+
+    /**
+     * @param file the baseline file
+     * @return the baseline read from the file
+     * @throws IOException the file could not be read
+     */
+    public static PerformanceBaseline read(File file) throws IOException {
+        return objectMapper.readValue(file, PerformanceBaseline.class);
+    }
+
+    /**
+     * @param directory the directory of the baselines
+     * @return the file the baseline is written to, named for the index
+     *         definition and query
+     */
+    public File getFile(File directory) {
+        String scenario = indexDef.replaceAll("/indexDef\\.json$", "").replaceAll("[^\\w.-]", "_") + "." + name;
+        return new File(directory, scenario + ".json");
+    }
+
+    /**
+     * Writes the baseline to its file in the directory.
+     * 
+     * @param directory the directory of the baselines
+     * @return the file written
+     * @throws IOException the file could not be written
+     */
+    public File write(File directory) throws IOException {
+        File file = getFile(directory);
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(file, this);
+        return file;
+    }
+
+    /**
+     * @return the query of the suite to run
+     */
+    public BenchmarkSuite.Query toQuery() {
+        BenchmarkSuite.Query q = new BenchmarkSuite.Query();
+        q.setName(name);
+        q.setQuery(query);
+        q.setLimit(limit);
+        return q;
+    }
+
+    /**
+     * @return the index definition installed, from the test classpath
+     */
+    public String getIndexDef() {
+        return indexDef;
+    }
+
+    /**
+     * @param indexDef the index definition installed, from the test classpath
+     */
+    public void setIndexDef(String indexDef) {
+        this.indexDef = indexDef;
+    }
+
+    /**
+     * @return the name of the query in the suite
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name the name of the query in the suite
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the JCR-SQL2 statement
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @param query the JCR-SQL2 statement
+     */
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    /**
+     * @return the limit of the query
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit the limit of the query
+     */
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return where the baseline was measured, <code>embedded</code> or
+     *         <code>aem</code>
+     */
+    public String getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * @param environment where the baseline was measured
+     */
+    public void setEnvironment(String environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * @return the 95th percentile latency in milliseconds, or null to not
+     *         check the latency
+     */
+    public Double getP95Ms() {
+        return p95Ms;
+    }
+
+    /**
+     * @param p95Ms the 95th percentile latency in milliseconds
+     */
+    public void setP95Ms(Double p95Ms) {
+        this.p95Ms = p95Ms;
+    }
+
+    /**
+     * @return the rows read by the query, or null to not check the rows read
+     */
+    public Long getRowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * @param rowsRead the rows read by the query
+     */
+    public void setRowsRead(Long rowsRead) {
+        this.rowsRead = rowsRead;
+    }
+
+    /**
+     * @return the index in the plan, e.g. <code>lucene:testContentLucene</code>
+     *         or <code>traverse</code>
+     */
+    public String getPlanIndex() {
+        return planIndex;
+    }
+
+    /**
+     * @param planIndex the index in the plan
+     */
+    public void setPlanIndex(String planIndex) {
+        this.planIndex = planIndex;
+    }
+
+    /**
+     * @return the full plan, for reference when the index changes
+     */
+    public String getPlan() {
+        return plan;
+    }
+
+    /**
+     * @param plan the full plan
+     */
+    public void setPlan(String plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * @return the exception of the query when the baseline was recorded, if it
+     *         failed
+     */
+    public String getCaughtException() {
+        return caughtException;
+    }
+
+    /**
+     * @param caughtException the exception of the query
+     */
+    public void setCaughtException(String caughtException) {
+        this.caughtException = caughtException;
+    }
+
+    /**
+     * @return when the baseline was recorded
+     */
+    public String getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * @param recorded when the baseline was recorded
+     */
+    public void setRecorded(String recorded) {
+        this.recorded = recorded;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.bench;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.it.tests.OakSearchITBase;
+import com.danklco.blog.oaksearch.it.tests.TestQueryResult;
+
+/**
+ * Fails when a query scenario regresses against its baseline in
+ * <code>src/test/resources/baselines</code>, so a change to an index
+ * definition or the query servlet can't quietly make a query slower while the
+ * tests stay green:
+ * 
+ * <pre>
+ * mvn clean verify -Prun-it,perf-gate,embedded
+ * </pre>
+ * 
+ * Each baseline's index definition is installed and its query re-measured
+ * with a single client. The scenario fails if the query fails, if the plan
+ * uses a different index, or, when the baseline was measured in the same
+ * environment, if the p95 latency or rows read exceed the baseline by more
+ * than the tolerance. A baseline without a latency or rows read isn't checked
+ * for it.
+ * <p>
+ * To accept a change in performance, the baselines are regenerated for each
+ * query of the suite with each index definition by:
+ * 
+ * <pre>
+ * mvn clean verify -Prun-it,perf-baseline,embedded
+ * </pre>
+ */
+class PerformanceGate extends OakSearchITBase {
+
+    private static final Logger log = LoggerFactory.getLogger(PerformanceGate.class);
+
+    private static BenchmarkSuite suite;
+    private static File baselines;
+    private static String environment;
+    private static double latencyTolerance;
+    private static double latencySlackMs;
+    private static double rowsReadTolerance;
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        OakSearchITBase.setup();
+        suite = new BenchmarkSuite();
+        baselines = new File(System.getProperty("bench.baselines", "src/test/resources/baselines"));
+        environment = getEmbeddedOak() != null ? "embedded" : "aem";
+        latencyTolerance = Double.parseDouble(System.getProperty("bench.latencyTolerance", "1.0"));
+        latencySlackMs = Double.parseDouble(System.getProperty("bench.latencySlackMs", "10"));
+        rowsReadTolerance = Double.parseDouble(System.getProperty("bench.rowsReadTolerance", "0.1"));
+    }
+
+    @Test
+    void canVerifyBaselines() throws Exception {
+        if (Boolean.getBoolean("bench.updateBaselines")) {
+            updateBaselines();
+            return;
+        }
+        File[] files = baselines.listFiles((dir, name) -> name.endsWith(".json"));
+        assertTrue(files != null && files.length > 0,
+                "No baselines in " + baselines + ", record them with -Pperf-baseline");
+        Arrays.sort(files);
+        Map<String, List<PerformanceBaseline>> byIndexDef = new LinkedHashMap<>();
+        for (File file : files) {
+            PerformanceBaseline baseline = PerformanceBaseline.read(file);
+            byIndexDef.computeIfAbsent(baseline.getIndexDef(), k -> new ArrayList<>()).add(baseline);
+        }
+
+        Map<String, Object> settings = getSettings();
+        BenchmarkReport report = new BenchmarkReport("perf-gate", settings);
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, List<PerformanceBaseline>> indexDef : byIndexDef.entrySet()) {
+            updateIndex(indexDef.getKey());
+            for (PerformanceBaseline baseline : indexDef.getValue()) {
+                Map<String, Object> result = measure(report, baseline.getIndexDef(), baseline.toQuery());
+                List<String> found = verify(baseline, result);
+                result.put("baseline", baseline.getFile(baselines).getName());
+                result.put("regressions", found);
+                found.forEach(r -> regressions.add(baseline.getFile(baselines).getName() + ": " + r));
+            }
+        }
+        File file = report.write(suite.getOutput());
+        log.info("Wrote performance gate report to {}", file.getAbsolutePath());
+        assertTrue(regressions.isEmpty(), "Performance regressions against the baselines in " + baselines
+                + ":\n" + String.join("\n", regressions));
+    }
+
+    /**
+     * Compares a result with its baseline.
+     * 
+     * @return a description of each regression, empty if there are none
+     */
+    private static List<String> verify(PerformanceBaseline baseline, Map<String, Object> result) {
+        List<String> regressions = new ArrayList<>();
+        String caughtException = (String) result.get("caughtException");
+        if (StringUtils.isNotEmpty(caughtException) && StringUtils.isEmpty(baseline.getCaughtException())) {
+            regressions.add("query failed: " + caughtException);
+        }
+        if (!Objects.equals(baseline.getPlanIndex(), result.get("planIndex"))) {
+            regressions.add("plan changed index from " + baseline.getPlanIndex() + " to " + result.get("planIndex")
+                    + ", plan: " + result.get("plan"));
+        }
+        if (!environment.equals(baseline.getEnvironment())) {
+            log.info("Not comparing the latency and rows read of {} as it was recorded in {}",
+                    baseline.getFile(baselines).getName(), baseline.getEnvironment());
+            return regressions;
+        }
+        Double p95Ms = (Double) result.get("p95Ms");
+        if (baseline.getP95Ms() != null && p95Ms != null) {
+            double allowed = baseline.getP95Ms() * (1 + latencyTolerance) + latencySlackMs;
+            if (p95Ms > allowed) {
+                regressions.add(String.format("p95 latency of %.2fms exceeds the baseline of %.2fms, %.2fms allowed",
+                        p95Ms, baseline.getP95Ms(), allowed));
+            }
+        }
+        long rowsRead = (Long) result.get("rowsRead");
+        if (baseline.getRowsRead() != null && rowsRead > baseline.getRowsRead() * (1 + rowsReadTolerance)) {
+            regressions.add(String.format("read %d rows, the baseline read %d", rowsRead, baseline.getRowsRead()));
+        }
+        return regressions;
+    }
+
+    /**
+     * Replaces the baselines with the measurements of each query of the suite
+     * with each index definition.
+     */
+    private void updateBaselines() throws Exception {
+        if (!baselines.isDirectory() && !baselines.mkdirs()) {
+            throw new IOException("Failed to create directory: " + baselines);
+        }
+        File[] existing = baselines.listFiles((dir, name) -> name.endsWith(".json"));
+        for (File file : existing) {
+            assertTrue(file.delete(), "Failed to delete " + file);
+        }
+        List<String> indexDefs = Arrays
+                .stream(System.getProperty("bench.indexDefs", IndexComparison.DEFAULT_INDEX_DEFS).split(","))
+                .map(String::trim).collect(Collectors.toList());
+        BenchmarkReport report = new BenchmarkReport("perf-baseline", getSettings());
+        String recorded = Instant.now().toString();
+        for (String indexDef : indexDefs) {
+            updateIndex(indexDef);
+            for (BenchmarkSuite.Query query : suite.getQueries().values()) {
+                Map<String, Object> result = measure(report, indexDef, query);
+                PerformanceBaseline baseline = new PerformanceBaseline();
+                baseline.setIndexDef(indexDef);
+                baseline.setName(query.getName());
+                baseline.setQuery(query.getQuery());
+                baseline.setLimit(query.getLimit());
+                baseline.setEnvironment(environment);
+                baseline.setP95Ms((Double) result.get("p95Ms"));
+                baseline.setRowsRead((Long) result.get("rowsRead"));
+                baseline.setPlanIndex((String) result.get("planIndex"));
+                baseline.setPlan((String) result.get("plan"));
+                baseline.setCaughtException(StringUtils.defaultIfEmpty((String) result.get("caughtException"), null));
+                baseline.setRecorded(recorded);
+                log.info("Wrote baseline {}", baseline.write(baselines).getAbsolutePath());
+            }
+        }
+        assertFalse(report.getResults().isEmpty());
+    }
+
+    /**
+     * Measures the latency of a query with a single client and adds the plan,
+     * the index it used, the rows read and any exception of a single run.
+     */
+    private Map<String, Object> measure(BenchmarkReport report, String indexDef, BenchmarkSuite.Query query)
+            throws Exception {
+        Map<String, Object> result = new HttpLoadDriver(adminAuthor.getUrl(), "admin", "admin", suite)
+                .run(report, query, 1);
+        result.put("indexDef", indexDef);
+        TestQueryResult single = runQuery(adminAuthor, query.getQuery(), query.getLimit());
+        result.put("plan", single.getPlan());
+        result.put("planIndex", IndexComparison.getPlanIndex(single.getPlan()));
+        result.put("rowsRead", single.getRowsRead());
+        result.put("caughtException", single.getCaughtException());
+        return result;
+    }
+
+    private static Map<String, Object> getSettings() {
+        Map<String, Object> settings = new LinkedHashMap<>(suite.getSettings());
+        settings.put("clients", 1);
+        settings.put("environment", environment);
+        settings.put("latencyTolerance", latencyTolerance);
+        settings.put("latencySlackMs", latencySlackMs);
+        settings.put("rowsReadTolerance", rowsReadTolerance);
+        return settings;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.bench;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.openjdk.jmh.util.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.it.tests.OakSearchITBase;
+import com.danklco.blog.oaksearch.it.tests.TestQueryResult;
+
+/**
+ * Benchmarks the query suite rather than asserting on a single cold run. Each
+ * query is run at each number of concurrent clients with warmup and measured
+ * iterations, and the latency percentiles, throughput and allocation rate are
+ * written as JSON to <code>target/bench</code>:
+ * 
+ * <pre>
+ * mvn clean verify -Prun-it,bench,embedded
+ * </pre>
+ * 
+ * The in-process benchmark uses JMH to run the query runner directly and so
+ * requires the embedded repository, while the HTTP benchmark drives load
+ * against the query servlet of either AEM or the embedded repository. To
+ * benchmark with an index definition, set <code>bench.indexDef</code> to its
+ * path in the classpath, e.g. <code>03_Ordering/indexDef.json</code>. See
+ * {@link BenchmarkSuite} for the other settings.
+ */
+class QueryBench extends OakSearchITBase {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryBench.class);
+
+    private static BenchmarkSuite suite;
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        OakSearchITBase.setup();
+        String indexDef = System.getProperty("bench.indexDef");
+        if (indexDef != null) {
+            updateIndex(indexDef);
+        }
+        suite = new BenchmarkSuite();
+    }
+
+    @Test
+    void canBenchmarkInProcess() throws Exception {
+        assumeTrue(getEmbeddedOak() != null, "The in-process benchmark requires the embedded profile");
+        QueryRunnerBenchmark.init(getEmbeddedOak(), suite);
+
+        BenchmarkReport report = new BenchmarkReport("in-process", suite.getSettings());
+        for (int clients : suite.getClients()) {
+            Options options = new OptionsBuilder()
+                    .include(QueryRunnerBenchmark.class.getName())
+                    .param("query", suite.getQueries().keySet().toArray(new String[0]))
+                    .threads(clients)
+                    // forking would lose the embedded repository
+                    .forks(0)
+                    .warmupIterations(suite.getWarmupIterations())
+                    .warmupTime(TimeValue.seconds(suite.getIterationSeconds()))
+                    .measurementIterations(suite.getIterations())
+                    .measurementTime(TimeValue.seconds(suite.getIterationSeconds()))
+                    .addProfiler(GCProfiler.class)
+                    .shouldFailOnError(true)
+                    .build();
+            Collection<RunResult> results = new Runner(options).run();
+            for (RunResult result : results) {
+                Statistics statistics = result.getPrimaryResult().getStatistics();
+                double throughput = clients * 1e9 / statistics.getMean();
+                report.add(result.getParams().getParam("query"), clients, statistics.getN(),
+                        statistics.getPercentile(50), statistics.getPercentile(90), statistics.getPercentile(95),
+                        statistics.getPercentile(99), statistics.getMax(), throughput, getAllocatedBytes(result));
+            }
+        }
+        write(report);
+    }
+
+    @Test
+    void canBenchmarkOverHttp() throws Exception {
+        BenchmarkReport report = new HttpLoadDriver(adminAuthor.getUrl(), "admin", "admin", suite).run();
+        write(report);
+    }
+
+    /**
+     * JMH reports the normalized allocation of the GC profiler as a secondary
+     * result, whose name is prefixed differently between versions
+     */
+    private static double getAllocatedBytes(RunResult result) {
+        for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+            if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+                return secondary.getValue().getScore();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the plan and any exception of a single run of each query to the
+     * results, so a regression to a traversal or failing query is visible
+     * alongside the latencies, then writes the report.
+     */
+    private void write(BenchmarkReport report) throws Exception {
+        assertEquals(suite.getQueries().size() * suite.getClients().size(), report.getResults().size());
+        Map<String, TestQueryResult> singles = new HashMap<>();
+        for (BenchmarkSuite.Query query : suite.getQueries().values()) {
+            singles.put(query.getName(), runQuery(adminAuthor, query.getQuery(), query.getLimit()));
+        }
+        for (Map<String, Object> result : report.getResults()) {
+            TestQueryResult single = singles.get(result.get("query"));
+            result.put("plan", single.getPlan());
+            result.put("rowsRead", single.getRowsRead());
+            result.put("caughtException", single.getCaughtException());
+        }
+        File file = report.write(suite.getOutput());
+        log.info("Wrote benchmark report to {}", file.getAbsolutePath());
+    }
+}
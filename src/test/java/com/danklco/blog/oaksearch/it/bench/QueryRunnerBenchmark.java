@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.danklco.blog.oaksearch.core.query.QueryRequest;
+import com.danklco.blog.oaksearch.core.query.QueryRunner;
+import com.danklco.blog.oaksearch.core.query.QueryRunner.PreparedQuery;
+import com.danklco.blog.oaksearch.it.embedded.EmbeddedOak;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Benchmarks preparing and executing a query with the {@link QueryRunner} of
+ * the embedded repository, as the query servlet does, without HTTP. The result
+ * is serialized to a discarding stream so serialization is still measured. The
+ * result cache is bypassed so each operation executes the query.
+ * <p>
+ * JMH runs this in the JVM of the IT's rather than forking, so it can use the
+ * embedded repository set by {@link QueryBench}.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryRunnerBenchmark {
+
+    private static volatile EmbeddedOak oak;
+    private static volatile BenchmarkSuite suite;
+
+    /**
+     * @param oak   the embedded repository to query
+     * @param suite the suite of queries
+     */
+    static void init(EmbeddedOak oak, BenchmarkSuite suite) {
+        QueryRunnerBenchmark.oak = oak;
+        QueryRunnerBenchmark.suite = suite;
+    }
+
+    /**
+     * The query being benchmarked, shared by the clients
+     */
+    @State(Scope.Benchmark)
+    public static class QueryState {
+
+        @Param("byType")
+        public String query;
+
+        QueryRunner queryRunner;
+        BenchmarkSuite.Query benchQuery;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            queryRunner = oak.getComponent(QueryRunner.class);
+            benchQuery = suite.getQueries().get(query);
+        }
+    }
+
+    /**
+     * The session of each client
+     */
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        ResourceResolver resolver;
+        Session session;
+
+        @Setup(Level.Trial)
+        public void setup() throws LoginException {
+            resolver = oak.getResourceResolver(EmbeddedOak.ADMIN, EmbeddedOak.ADMIN);
+            session = resolver.adaptTo(Session.class);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            resolver.close();
+        }
+    }
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    @Benchmark
+    public void execute(QueryState state, ClientState client) throws IOException, RepositoryException {
+        QueryRequest request = new QueryRequest(state.benchQuery.getQuery(), state.benchQuery.getLimit());
+        request.setUseResultCache(false);
+        PreparedQuery prepared = state.queryRunner.prepare(client.session, request);
+        try (JsonGenerator json = jsonFactory.createGenerator(OutputStream.nullOutputStream())) {
+            state.queryRunner.execute(prepared, json);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.embedded;
+
+import java.io.IOException;
+
+/**
+ * The size and document count operations of Oak's
+ * <code>LuceneIndexMBean</code>, which read the same way over JMX.
+ */
+public interface EmbeddedLuceneIndexStatsMBean {
+
+    /**
+     * @param indexPath the path of the index definition
+     * @return the size of the index in bytes or null if the index isn't open
+     * @throws IOException an exception occurs reading the index
+     */
+    String getSize(String indexPath) throws IOException;
+
+    /**
+     * @param indexPath the path of the index definition
+     * @return the number of documents in the index or null if the index isn't
+     *         open
+     */
+    String getDocCount(String indexPath);
+}
@@ -0,0 +1,544 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.embedded;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.Credentials;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.jcr.Jcr;
+import org.apache.jackrabbit.oak.plugins.index.lucene.IndexTracker;
+import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexProvider;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeStore;
+import org.apache.jackrabbit.oak.query.QueryEngineSettings;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
+import org.apache.sling.api.adapter.SlingAdaptable;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.sling.NodeTypeMode;
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.core.content.ChurnJob;
+import com.danklco.blog.oaksearch.core.content.ContentGenerationJob;
+import com.danklco.blog.oaksearch.core.query.PlanAnalyzer;
+import com.danklco.blog.oaksearch.core.query.PlanCache;
+import com.danklco.blog.oaksearch.core.query.QueryExecutor;
+import com.danklco.blog.oaksearch.core.query.QueryRunner;
+import com.danklco.blog.oaksearch.core.query.QueryStatsRecorder;
+import com.danklco.blog.oaksearch.core.query.ResultCache;
+import com.danklco.blog.oaksearch.core.servlets.BatchQueryServlet;
+import com.danklco.blog.oaksearch.core.servlets.ChurnServlet;
+import com.danklco.blog.oaksearch.core.servlets.EnsureContentServlet;
+import com.danklco.blog.oaksearch.core.servlets.IndexStatusServlet;
+import com.danklco.blog.oaksearch.core.servlets.QueryServlet;
+import com.danklco.blog.oaksearch.core.servlets.QueryStatsServlet;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * An in-memory Oak repository with the Lucene index provider, fronted by the
+ * Sling resource resolver and the components and servlets of the bundle, so
+ * the queries run through the same code as on AEM without an AEM instance.
+ * <p>
+ * As the bundle plugin doesn't write the component descriptors to the build
+ * output, the components are wired the way Declarative Services would: each
+ * field is set to the registered component of its type and the activate
+ * method is called with the defaults of its configuration.
+ */
+public class EmbeddedOak implements AutoCloseable {
+
+    /** The user and password of the repository's administrator */
+    public static final String ADMIN = "admin";
+
+    /** The async indexing lane of the test indexes */
+    private static final String ASYNC_LANE = "async";
+
+    /** How often the async indexing lane runs in seconds */
+    private static final long ASYNC_DELAY_SECONDS = 1;
+
+    /** The query limits of AEM, so traversing queries fail the same way */
+    private static final long LIMIT_READS = 100000;
+    private static final long LIMIT_IN_MEMORY = 500000;
+
+    /** The seed of the approximate counts used to estimate the cost of queries */
+    private static final int COUNTER_SEED = 1;
+
+    private static final String NODE_COUNTER = "/oak:index/counter";
+
+    private static final Pattern CND = Pattern.compile("<<===(.*?)===>>", Pattern.DOTALL);
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedOak.class);
+
+    private final Repository repository;
+    private final BundleContext bundleContext;
+    private final ResourceResolverFactory resolverFactory;
+    private final List<Object> components = new ArrayList<>();
+    private final Session observationSession;
+    private final ObjectName luceneIndexMBean;
+
+    /**
+     * Creates the repository, registers the node types of
+     * <code>repoinit.json</code> and activates the components.
+     * 
+     * @throws RepositoryException an exception occurs setting up the repository
+     * @throws IOException         an exception occurs reading repoinit.json
+     */
+    public EmbeddedOak() throws RepositoryException, IOException {
+        long start = System.currentTimeMillis();
+        seedApproximateCounter();
+        IndexTracker indexTracker = new IndexTracker();
+        LuceneIndexProvider indexProvider = new LuceneIndexProvider(indexTracker);
+        QueryEngineSettings settings = new QueryEngineSettings();
+        settings.setLimitReads(LIMIT_READS);
+        settings.setLimitInMemory(LIMIT_IN_MEMORY);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        repository = new Jcr(new Oak(new MemoryNodeStore()).with(mbeanServer))
+                .with((QueryIndexProvider) indexProvider)
+                .with((Observer) indexProvider)
+                .with(new LuceneIndexEditorProvider())
+                .with(settings)
+                .withAsyncIndexing(ASYNC_LANE, ASYNC_DELAY_SECONDS)
+                .createRepository();
+
+        luceneIndexMBean = registerLuceneIndexStats(mbeanServer, indexTracker);
+
+        Session admin = login();
+        try {
+            // the node counter hashes paths with the seed of its definition,
+            // which is otherwise random
+            admin.getNode(NODE_COUNTER).setProperty("seed", (long) COUNTER_SEED);
+            admin.save();
+            registerNodeTypes(admin);
+        } finally {
+            admin.logout();
+        }
+
+        bundleContext = MockOsgi.newBundleContext();
+        resolverFactory = newResourceResolverFactory(new EmbeddedSlingRepository(), bundleContext);
+        SlingAdaptable.setAdapterManager(EmbeddedOak::adapt);
+
+        activate(new QueryStatsRecorder());
+        activate(new PlanCache());
+        activate(new ResultCache());
+        activate(new PlanAnalyzer());
+        activate(new QueryExecutor());
+        activate(new QueryRunner());
+        activate(new ContentGenerationJob());
+        activate(new ChurnJob());
+        activate(new QueryServlet());
+        activate(new BatchQueryServlet());
+        activate(new EnsureContentServlet());
+        activate(new ChurnServlet());
+        activate(new QueryStatsServlet());
+        activate(new IndexStatusServlet());
+
+        observationSession = login();
+        observe(getComponent(PlanCache.class), "/oak:index");
+        observe(getComponent(ResultCache.class), "/tests");
+        log.info("Started embedded Oak in {}ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @param <T>  the type of the component
+     * @param type the type of the component
+     * @return the activated component of the type
+     * @throws IllegalArgumentException no component of the type is registered
+     */
+    public <T> T getComponent(Class<T> type) {
+        return components.stream().filter(type::isInstance).map(type::cast).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No component of type " + type));
+    }
+
+    /**
+     * Reactivates the component with a configuration, like OSGi does when the
+     * configuration changes, the attributes which are not set keep their
+     * defaults.
+     * 
+     * @param type       the type of the component
+     * @param properties the values of the configuration by attribute method
+     *                   name, or an empty map to restore the defaults
+     */
+    public void configure(Class<?> type, Map<String, Object> properties) {
+        Object component = getComponent(type);
+        invoke(component, "deactivate", properties);
+        invoke(component, "activate", properties);
+    }
+
+    /**
+     * Authenticates the user the same way the Sling authentication would.
+     * 
+     * @param user     the user
+     * @param password the password
+     * @return the resource resolver of the user
+     * @throws LoginException the credentials are invalid
+     */
+    public ResourceResolver getResourceResolver(String user, String password) throws LoginException {
+        return resolverFactory.getResourceResolver(Map.of(ResourceResolverFactory.USER, user,
+                ResourceResolverFactory.PASSWORD, password.toCharArray()));
+    }
+
+    @Override
+    public void close() {
+        observationSession.logout();
+        List<Object> reversed = new ArrayList<>(components);
+        Collections.reverse(reversed);
+        for (Object component : reversed) {
+            invoke(component, "deactivate", Map.of());
+        }
+        MockOsgi.shutdown(bundleContext);
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(luceneIndexMBean);
+        } catch (JMException e) {
+            log.warn("Failed to unregister {}", luceneIndexMBean, e);
+        }
+        if (repository instanceof JackrabbitRepository) {
+            ((JackrabbitRepository) repository).shutdown();
+        }
+    }
+
+    private Session login() throws RepositoryException {
+        return repository.login(new SimpleCredentials(ADMIN, ADMIN.toCharArray()));
+    }
+
+    /**
+     * Registers the statistics of the Lucene indexes, which on AEM are
+     * registered by the index provider, so the index status servlet can report
+     * the index size.
+     */
+    private static ObjectName registerLuceneIndexStats(MBeanServer mbeanServer, IndexTracker indexTracker)
+            throws IOException {
+        try {
+            ObjectName name = new ObjectName(EmbeddedLuceneIndexStats.OBJECT_NAME);
+            mbeanServer.registerMBean(new EmbeddedLuceneIndexStats(indexTracker), name);
+            return name;
+        } catch (JMException e) {
+            throw new IOException("Failed to register the Lucene index statistics", e);
+        }
+    }
+
+    /**
+     * Registers the node types from the <code>register nodetypes</code>
+     * statements of repoinit.json, which is the only part of the RepoInit the
+     * queries depend on. The service user is not needed as every service login
+     * uses the administrator.
+     */
+    private static void registerNodeTypes(Session session) throws IOException, RepositoryException {
+        JsonNode repoinit;
+        try (InputStream is = EmbeddedOak.class.getClassLoader().getResourceAsStream("repoinit.json")) {
+            repoinit = new ObjectMapper().readTree(is);
+        }
+        for (JsonNode script : repoinit.path("scripts")) {
+            Matcher matcher = CND.matcher(script.asText());
+            while (matcher.find()) {
+                try {
+                    CndImporter.registerNodeTypes(new StringReader(matcher.group(1)), session);
+                } catch (org.apache.jackrabbit.commons.cnd.ParseException e) {
+                    throw new IOException("Failed to parse node types in repoinit.json", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The property indexes keep an approximate count of their entries to
+     * estimate the cost of a query, which is sampled with a random number
+     * generator. Seeding it as Oak's own tests do, along with the node counter,
+     * gives the same estimates and so the same plans each run, otherwise a
+     * query whose plans cost about the same may switch index between runs.
+     */
+    private static void seedApproximateCounter() throws RepositoryException {
+        try {
+            Method setSeed = Class.forName("org.apache.jackrabbit.oak.plugins.index.counter.ApproximateCounter")
+                    .getDeclaredMethod("setSeed", int.class);
+            setSeed.setAccessible(true);
+            setSeed.invoke(null, COUNTER_SEED);
+        } catch (ReflectiveOperationException e) {
+            throw new RepositoryException("Failed to seed the approximate counter", e);
+        }
+    }
+
+    /**
+     * The initializer of the JCR resource provider and resource resolver factory
+     * is not public, but it's the only way to run them outside of an OSGi
+     * framework. The repository is registered first as the initializer would
+     * otherwise look for its component descriptor.
+     */
+    private static ResourceResolverFactory newResourceResolverFactory(SlingRepository slingRepository,
+            BundleContext bundleContext) throws RepositoryException {
+        bundleContext.registerService(SlingRepository.class, slingRepository, null);
+        try {
+            Class<?> initializer = Class
+                    .forName("org.apache.sling.testing.mock.sling.ResourceResolverFactoryInitializer");
+            Method setUp = initializer.getMethod("setUp", SlingRepository.class, BundleContext.class,
+                    NodeTypeMode.class);
+            setUp.setAccessible(true);
+            return (ResourceResolverFactory) setUp.invoke(null, slingRepository, bundleContext,
+                    NodeTypeMode.NODETYPES_REQUIRED);
+        } catch (InvocationTargetException e) {
+            throw new RepositoryException("Failed to initialize the resource resolver factory", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new RepositoryException("Failed to initialize the resource resolver factory", e);
+        }
+    }
+
+    /**
+     * Adapts the resource resolvers to the Jackrabbit user manager, as the
+     * adapter factory in AEM does.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T adapt(Object adaptable, Class<T> type) {
+        if (adaptable instanceof ResourceResolver && UserManager.class.equals(type)) {
+            try {
+                Session session = ((ResourceResolver) adaptable).adaptTo(Session.class);
+                return (T) ((JackrabbitSession) session).getUserManager();
+            } catch (RepositoryException e) {
+                log.warn("Failed to get user manager", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets each field to the registered component of its type and calls the
+     * activate method, with a configuration returning the default of each
+     * attribute.
+     */
+    private void activate(Object component) {
+        for (Class<?> type = component.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+                Object reference = field.getType().equals(ResourceResolverFactory.class) ? resolverFactory
+                        : components.stream().filter(field.getType()::isInstance).findFirst().orElse(null);
+                if (reference != null) {
+                    try {
+                        field.setAccessible(true);
+                        field.set(component, reference);
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException("Failed to set " + field, e);
+                    }
+                }
+            }
+        }
+        invoke(component, "activate", Map.of());
+        components.add(component);
+    }
+
+    private static void invoke(Object component, String name, Map<String, Object> properties) {
+        for (Method method : component.getClass().getDeclaredMethods()) {
+            if (!method.getName().equals(name) || method.getParameterCount() > 1) {
+                continue;
+            }
+            try {
+                method.setAccessible(true);
+                if (method.getParameterCount() == 0) {
+                    method.invoke(component);
+                } else {
+                    method.invoke(component, configuration(method.getParameterTypes()[0], properties));
+                }
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Failed to " + name + " " + component.getClass(), e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Failed to " + name + " " + component.getClass(), e);
+            }
+            return;
+        }
+    }
+
+    private static Object configuration(Class<?> config, Map<String, Object> properties) {
+        if (!config.isAnnotation()) {
+            throw new IllegalArgumentException("Unsupported activate parameter " + config);
+        }
+        return Proxy.newProxyInstance(config.getClassLoader(), new Class<?>[] { config },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "annotationType":
+                            return config;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "@" + config.getName();
+                        default:
+                            return properties.containsKey(method.getName()) ? properties.get(method.getName())
+                                    : method.getDefaultValue();
+                    }
+                });
+    }
+
+    /**
+     * Sends the changes under the path to the listener, as the resource
+     * resolver factory would for the <code>resource.paths</code> of the
+     * listener.
+     */
+    private void observe(ResourceChangeListener listener, String path) throws RepositoryException {
+        EventListener eventListener = (EventIterator events) -> {
+            List<ResourceChange> changes = new ArrayList<>();
+            while (events.hasNext()) {
+                try {
+                    changes.add(toResourceChange(events.nextEvent()));
+                } catch (RepositoryException e) {
+                    log.warn("Failed to read event", e);
+                }
+            }
+            if (!changes.isEmpty()) {
+                listener.onChange(changes);
+            }
+        };
+        int types = Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+                | Event.PROPERTY_REMOVED;
+        observationSession.getWorkspace().getObservationManager().addEventListener(eventListener, types, path,
+                true, null, null, false);
+    }
+
+    private static ResourceChange toResourceChange(Event event) throws RepositoryException {
+        String path = event.getPath();
+        switch (event.getType()) {
+            case Event.NODE_ADDED:
+                return new ResourceChange(ChangeType.ADDED, path, false);
+            case Event.NODE_REMOVED:
+                return new ResourceChange(ChangeType.REMOVED, path, false);
+            default:
+                return new ResourceChange(ChangeType.CHANGED, path.substring(0, Math.max(1, path.lastIndexOf('/'))),
+                        false);
+        }
+    }
+
+    /**
+     * Exposes the repository to the JCR resource provider, logging services in
+     * as the administrator as the embedded repository has no service users.
+     */
+    private class EmbeddedSlingRepository implements SlingRepository {
+
+        @Override
+        public String getDefaultWorkspace() {
+            return null;
+        }
+
+        @Override
+        public Session loginAdministrative(String workspace) throws RepositoryException {
+            return repository.login(new SimpleCredentials(ADMIN, ADMIN.toCharArray()), workspace);
+        }
+
+        @Override
+        public Session loginService(String subServiceName, String workspace) throws RepositoryException {
+            return loginAdministrative(workspace);
+        }
+
+        @Override
+        public Session impersonateFromService(String subServiceName, Credentials credentials, String workspace)
+                throws RepositoryException {
+            Session service = loginService(subServiceName, workspace);
+            try {
+                return service.impersonate(credentials);
+            } finally {
+                service.logout();
+            }
+        }
+
+        @Override
+        public String[] getDescriptorKeys() {
+            return repository.getDescriptorKeys();
+        }
+
+        @Override
+        public boolean isStandardDescriptor(String key) {
+            return repository.isStandardDescriptor(key);
+        }
+
+        @Override
+        public boolean isSingleValueDescriptor(String key) {
+            return repository.isSingleValueDescriptor(key);
+        }
+
+        @Override
+        public Value getDescriptorValue(String key) {
+            return repository.getDescriptorValue(key);
+        }
+
+        @Override
+        public Value[] getDescriptorValues(String key) {
+            return repository.getDescriptorValues(key);
+        }
+
+        @Override
+        public String getDescriptor(String key) {
+            return repository.getDescriptor(key);
+        }
+
+        @Override
+        public Session login(Credentials credentials, String workspace) throws RepositoryException {
+            return repository.login(credentials, workspace);
+        }
+
+        @Override
+        public Session login(Credentials credentials) throws RepositoryException {
+            return repository.login(credentials);
+        }
+
+        @Override
+        public Session login(String workspace) throws RepositoryException {
+            return repository.login(workspace);
+        }
+
+        @Override
+        public Session login() throws RepositoryException {
+            return repository.login();
+        }
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.embedded;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.servlethelpers.MockRequestPathInfo;
+import org.apache.sling.servlethelpers.MockSlingHttpServletRequest;
+import org.apache.sling.servlethelpers.MockSlingHttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.danklco.blog.oaksearch.core.servlets.BatchQueryServlet;
+import com.danklco.blog.oaksearch.core.servlets.ChurnServlet;
+import com.danklco.blog.oaksearch.core.servlets.EnsureContentServlet;
+import com.danklco.blog.oaksearch.core.servlets.IndexStatusServlet;
+import com.danklco.blog.oaksearch.core.servlets.QueryServlet;
+import com.danklco.blog.oaksearch.core.servlets.QueryStatsServlet;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the embedded repository over HTTP in the shape the IT's expect from
+ * AEM: the servlets of the bundle are dispatched to by path, selector and
+ * extension and the subset of the Sling GET and POST servlets the IT's use is
+ * implemented on top of JCR, so the IT's run unchanged against either.
+ */
+public class EmbeddedServer implements AutoCloseable {
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedServer.class);
+
+    private final EmbeddedOak oak;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Servlet> pathServlets = new HashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     * 
+     * @param oak the embedded repository to serve
+     * @throws IOException the server could not be started
+     */
+    public EmbeddedServer(EmbeddedOak oak) throws IOException {
+        this.oak = oak;
+        pathServlets.put("/bin/oak-search/ensurecontent", oak.getComponent(EnsureContentServlet.class));
+        pathServlets.put("/bin/oak-search/churn", oak.getComponent(ChurnServlet.class));
+        pathServlets.put("/bin/oak-search/querystats", oak.getComponent(QueryStatsServlet.class));
+        pathServlets.put("/bin/oak-search/indexstatus", oak.getComponent(IndexStatusServlet.class));
+
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        log.info("Serving embedded Oak at {}", getUri());
+    }
+
+    /**
+     * @return the base URI of the server
+     */
+    public URI getUri() {
+        return URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            ResourceResolver resolver = authenticate(exchange);
+            if (resolver == null) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"Embedded Oak\"");
+                send(exchange, 401, "text/plain", "Unauthorized".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            try (resolver) {
+                dispatch(exchange, resolver);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to handle {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            send(exchange, 500, "text/plain", String.valueOf(e).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private ResourceResolver authenticate(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Basic ")) {
+            return null;
+        }
+        String[] credentials = new String(Base64.getDecoder().decode(authorization.substring(6)),
+                StandardCharsets.UTF_8).split(":", 2);
+        try {
+            return oak.getResourceResolver(credentials[0], credentials.length > 1 ? credentials[1] : "");
+        } catch (LoginException e) {
+            log.debug("Failed to authenticate {}", credentials[0], e);
+            return null;
+        }
+    }
+
+    private void dispatch(HttpExchange exchange, ResourceResolver resolver)
+            throws IOException, ServletException, RepositoryException {
+        String method = exchange.getRequestMethod();
+        String uriPath = exchange.getRequestURI().getPath();
+        byte[] body;
+        try (InputStream is = exchange.getRequestBody()) {
+            body = IOUtils.toByteArray(is);
+        }
+        String contentType = StringUtils.defaultString(exchange.getRequestHeaders().getFirst("Content-Type"));
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        parseParameters(exchange.getRequestURI().getRawQuery(), parameters);
+        if (contentType.startsWith(FORM_CONTENT_TYPE)) {
+            parseParameters(new String(body, StandardCharsets.UTF_8), parameters);
+        }
+
+        Servlet servlet = pathServlets.get(uriPath);
+        if (servlet != null) {
+            service(exchange, resolver, servlet, uriPath, null, null, parameters, body, contentType);
+            return;
+        }
+
+        int dot = uriPath.indexOf('.', uriPath.lastIndexOf('/'));
+        String path = dot > 0 ? uriPath.substring(0, dot) : uriPath;
+        String[] suffix = dot > 0 ? uriPath.substring(dot + 1).split("\\.") : new String[0];
+        String extension = suffix.length > 0 ? suffix[suffix.length - 1] : null;
+        String selectors = suffix.length > 1 ? String.join(".", List.of(suffix).subList(0, suffix.length - 1))
+                : null;
+
+        if ("query".equals(selectors) && "GET".equals(method)) {
+            service(exchange, resolver, oak.getComponent(QueryServlet.class), path, selectors, extension,
+                    parameters, body, contentType);
+        } else if ("batch".equals(selectors) && "json".equals(extension) && "POST".equals(method)) {
+            service(exchange, resolver, oak.getComponent(BatchQueryServlet.class), path, selectors, extension,
+                    parameters, body, contentType);
+        } else if ("json".equals(extension) && "GET".equals(method)) {
+            getJson(exchange, resolver.adaptTo(Session.class), path, selectors);
+        } else if ("POST".equals(method)) {
+            post(exchange, resolver.adaptTo(Session.class), path, parameters);
+        } else {
+            send(exchange, 405, "text/plain", new byte[0]);
+        }
+    }
+
+    private void service(HttpExchange exchange, ResourceResolver resolver, Servlet servlet, String path,
+            String selectors, String extension, Map<String, List<String>> parameters, byte[] body,
+            String contentType) throws IOException, ServletException {
+        MockSlingHttpServletRequest request = new EmbeddedRequest(resolver);
+        request.setMethod(exchange.getRequestMethod());
+        request.setResource(resolver.getResource(path));
+        MockRequestPathInfo pathInfo = (MockRequestPathInfo) request.getRequestPathInfo();
+        pathInfo.setResourcePath(path);
+        pathInfo.setSelectorString(selectors);
+        pathInfo.setExtension(extension);
+        Map<String, Object> parameterMap = new LinkedHashMap<>();
+        parameters.forEach((k, v) -> parameterMap.put(k, v.toArray(new String[0])));
+        request.setParameterMap(parameterMap);
+        exchange.getRequestHeaders().forEach((k, v) -> v.forEach(value -> request.addHeader(k, value)));
+        request.setContentType(contentType);
+        request.setContent(body);
+
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+        servlet.service(request, response);
+        byte[] output = response.getOutput();
+        if (output.length == 0 && response.getStatusMessage() != null) {
+            output = response.getStatusMessage().getBytes(StandardCharsets.UTF_8);
+        }
+        for (String name : response.getHeaderNames()) {
+            exchange.getResponseHeaders().put(name, new ArrayList<>(response.getHeaders(name)));
+        }
+        send(exchange, response.getStatus(), response.getContentType(), output);
+    }
+
+    /**
+     * Renders the node and its descendants to the depth of the selector like
+     * the Sling GET servlet.
+     */
+    private void getJson(HttpExchange exchange, Session session, String path, String selectors)
+            throws IOException, RepositoryException {
+        if (!session.nodeExists(path)) {
+            send(exchange, 404, "text/plain", new byte[0]);
+            return;
+        }
+        int depth = 0;
+        if ("infinity".equals(selectors)) {
+            depth = Integer.MAX_VALUE;
+        } else if (StringUtils.isNumeric(selectors)) {
+            depth = Integer.parseInt(selectors);
+        }
+        ObjectNode json = objectMapper.createObjectNode();
+        toJson(session.getNode(path), depth, json);
+        send(exchange, 200, "application/json", objectMapper.writeValueAsBytes(json));
+    }
+
+    private void toJson(Node node, int depth, ObjectNode json) throws RepositoryException {
+        for (PropertyIterator properties = node.getProperties(); properties.hasNext();) {
+            Property property = properties.nextProperty();
+            if (property.getType() == PropertyType.BINARY) {
+                continue;
+            }
+            if (property.isMultiple()) {
+                ArrayNode array = json.putArray(property.getName());
+                for (Value value : property.getValues()) {
+                    array.add(objectMapper.valueToTree(toObject(value)).deepCopy());
+                }
+            } else {
+                json.set(property.getName(), objectMapper.valueToTree(toObject(property.getValue())));
+            }
+        }
+        if (depth > 0) {
+            for (NodeIterator children = node.getNodes(); children.hasNext();) {
+                Node child = children.nextNode();
+                toJson(child, depth - 1, json.putObject(child.getName()));
+            }
+        }
+    }
+
+    private static Object toObject(Value value) throws RepositoryException {
+        switch (value.getType()) {
+            case PropertyType.BOOLEAN:
+                return value.getBoolean();
+            case PropertyType.LONG:
+                return value.getLong();
+            case PropertyType.DOUBLE:
+                return value.getDouble();
+            default:
+                return value.getString();
+        }
+    }
+
+    /**
+     * Handles the delete and import operations and property updates like the
+     * Sling POST servlet.
+     */
+    private void post(HttpExchange exchange, Session session, String path, Map<String, List<String>> parameters)
+            throws IOException, RepositoryException {
+        String operation = getFirst(parameters, ":operation");
+        int status = 200;
+        if ("delete".equals(operation)) {
+            if (!session.nodeExists(path)) {
+                send(exchange, 404, "text/plain", new byte[0]);
+                return;
+            }
+            session.removeItem(path);
+        } else if ("import".equals(operation)) {
+            if (!"json".equals(getFirst(parameters, ":contentType"))) {
+                send(exchange, 400, "text/plain", "Only JSON imports are supported".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            JsonNode content = objectMapper.readTree(getFirst(parameters, ":content"));
+            importNode(JcrUtils.getOrCreateByPath(path, "nt:unstructured", session),
+                    getFirst(parameters, ":name"), content);
+            status = 201;
+        } else if (operation == null) {
+            if (!session.nodeExists(path)) {
+                status = 201;
+            }
+            Node node = JcrUtils.getOrCreateByPath(path, "nt:unstructured", session);
+            ValueFactory valueFactory = session.getValueFactory();
+            for (Entry<String, List<String>> parameter : parameters.entrySet()) {
+                String name = parameter.getKey();
+                if (name.startsWith(":") || name.contains("@")) {
+                    continue;
+                }
+                int type = PropertyType.valueFromName(
+                        StringUtils.defaultIfBlank(getFirst(parameters, name + "@TypeHint"), "String")
+                                .replace("[]", ""));
+                List<String> values = parameter.getValue();
+                if (values.size() == 1) {
+                    node.setProperty(name, valueFactory.createValue(values.get(0), type));
+                } else {
+                    List<Value> jcrValues = new ArrayList<>();
+                    for (String value : values) {
+                        jcrValues.add(valueFactory.createValue(value, type));
+                    }
+                    node.setProperty(name, jcrValues.toArray(new Value[0]));
+                }
+            }
+        } else {
+            send(exchange, 400, "text/plain", ("Unsupported operation " + operation).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        session.save();
+        send(exchange, status, "text/plain", new byte[0]);
+    }
+
+    private void importNode(Node parent, String name, JsonNode content) throws RepositoryException {
+        Node node = parent.addNode(name, content.path("jcr:primaryType").asText("nt:unstructured"));
+        ValueFactory valueFactory = parent.getSession().getValueFactory();
+        for (Iterator<Entry<String, JsonNode>> fields = content.fields(); fields.hasNext();) {
+            Entry<String, JsonNode> field = fields.next();
+            JsonNode value = field.getValue();
+            if ("jcr:primaryType".equals(field.getKey())) {
+                continue;
+            } else if (value.isObject()) {
+                importNode(node, field.getKey(), value);
+            } else if (value.isArray()) {
+                List<Value> values = new ArrayList<>();
+                for (JsonNode item : value) {
+                    values.add(toValue(valueFactory, item));
+                }
+                node.setProperty(field.getKey(), values.toArray(new Value[0]));
+            } else {
+                node.setProperty(field.getKey(), toValue(valueFactory, value));
+            }
+        }
+    }
+
+    private static Value toValue(ValueFactory valueFactory, JsonNode value) {
+        if (value.isBoolean()) {
+            return valueFactory.createValue(value.booleanValue());
+        } else if (value.isIntegralNumber()) {
+            return valueFactory.createValue(value.longValue());
+        } else if (value.isNumber()) {
+            return valueFactory.createValue(value.doubleValue());
+        }
+        return valueFactory.createValue(value.asText());
+    }
+
+    private static String getFirst(Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static void parseParameters(String encoded, Map<String, List<String>> parameters) {
+        if (StringUtils.isBlank(encoded)) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            String[] kv = pair.split("=", 2);
+            parameters.computeIfAbsent(URLDecoder.decode(kv[0], StandardCharsets.UTF_8), k -> new ArrayList<>())
+                    .add(kv.length > 1 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8) : "");
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    /**
+     * The request of the servlets, which is serviced on the server's thread as
+     * the mock request doesn't support async requests.
+     */
+    private static class EmbeddedRequest extends MockSlingHttpServletRequest {
+
+        EmbeddedRequest(ResourceResolver resolver) {
+            super(resolver);
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return false;
+        }
+    }
+}
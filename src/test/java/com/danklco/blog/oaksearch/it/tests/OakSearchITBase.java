@@ -17,16 +17,25 @@ package com.danklco.blog.oaksearch.it.tests;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import javax.jcr.RepositoryException;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.sling.testing.clients.ClientException;
@@ -37,8 +46,12 @@ import org.apache.sling.testing.clients.util.HttpUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.danklco.blog.oaksearch.core.content.DatasetSpec;
+import com.danklco.blog.oaksearch.it.embedded.EmbeddedOak;
+import com.danklco.blog.oaksearch.it.embedded.EmbeddedServer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 
 /**
  * Base test for the IT's
@@ -47,38 +60,245 @@ public abstract class OakSearchITBase {
 
     private static final String INDEX_PATH = "/oak:index/testContentLucene";
 
+    /** The async indexing lane of the test index if it doesn't set one */
+    private static final String DEFAULT_LANE = "async";
+
+    /** The shortest and longest intervals between checks of the reindex */
+    private static final long MIN_POLL_MS = 100;
+    private static final long MAX_POLL_MS = 5000;
+
+    /** How often the progress of the reindex is logged */
+    private static final long PROGRESS_LOG_MS = 10000;
+
+    private static final long REINDEX_TIMEOUT_NANOS = TimeUnit.DAYS.toNanos(1);
+
+    private static final String SERVICE_USER_MAPPING_CONFIG = "/apps/system/config/org.apache.sling.serviceusermapping.impl.ServiceUserMapperImpl.amended~oak-search.cfg.json";
+
+    /**
+     * Set to true to run the IT's against an embedded in-memory repository
+     * instead of AEM
+     */
+    private static final String EMBEDDED_PROPERTY = "oak.search.embedded";
+
+    /** The smaller dataset generated in the embedded repository */
+    private static final String EMBEDDED_DATASET = "src/test/resources/embedded/dataset.json";
+
     private static final Logger log = LoggerFactory.getLogger(OakSearchITBase.class);
 
+    private static EmbeddedOak embeddedOak;
+    private static EmbeddedServer embeddedServer;
+
     protected static SlingClient adminAuthor;
     protected static SlingClient limitedAccess;
 
-    protected static void setup() throws ClientException, InterruptedException, UnsupportedEncodingException {
-        adminAuthor = new SlingClient(URI.create("http://localhost:4502"), "admin", "admin");
-        limitedAccess = new SlingClient(URI.create("http://localhost:4502"), "test-limited-access-user",
-                "test-limited-access-user");
+    protected static void setup() throws ClientException, InterruptedException, IOException {
+        boolean embedded = Boolean.getBoolean(EMBEDDED_PROPERTY);
+        URI uri = embedded ? startEmbedded() : URI.create("http://localhost:4502");
+        adminAuthor = new SlingClient(uri, "admin", "admin");
+        limitedAccess = new SlingClient(uri, "test-limited-access-user", "test-limited-access-user");
 
-        if (!adminAuthor.exists(
-                "/apps/system/config/org.apache.sling.jcr.repoinit.RepositoryInitializer~oak-search.cfg.json")) {
+        if (!embedded && (!adminAuthor.exists(
+                "/apps/system/config/org.apache.sling.jcr.repoinit.RepositoryInitializer~oak-search.cfg.json")
+                || !adminAuthor.exists(SERVICE_USER_MAPPING_CONFIG))) {
             log.info("Creating RepoInit Configuration...");
             adminAuthor.upload(new File("src/test/resources/repoinit.json"), "application/json",
                     "/apps/system/config/org.apache.sling.jcr.repoinit.RepositoryInitializer~oak-search.cfg.json", true,
                     200, 201);
+            adminAuthor.upload(new File("src/test/resources/serviceusermapping.json"), "application/json",
+                    SERVICE_USER_MAPPING_CONFIG, true, 200, 201);
             TimeUnit.SECONDS.sleep(10);
         }
 
-        if (!adminAuthor.exists("/tests/it-9")) {
+        JsonNode status = getContentStatus();
+        if (!"complete".equals(status.path("state").asText())) {
             log.info("Creating test content, this can take a few minutes...");
-            adminAuthor.doPost("/bin/oak-search/ensurecontent", new StringEntity(""), List.of(), 200);
+            HttpEntity spec = embedded ? new FileEntity(new File(EMBEDDED_DATASET), ContentType.APPLICATION_JSON)
+                    : new StringEntity("");
+            adminAuthor.doPost("/bin/oak-search/ensurecontent", spec, List.of(), 200, 202);
+            status = awaitContent();
             log.info("Test content created!");
         } else {
             log.info("Test content already exists!");
         }
+        // content generated before checkpoints were recorded has no node count
+        long expectedNodes = getDatasetSpec().getExpectedNodes();
+        if (status.has("nodes") && status.path("nodes").asLong() != expectedNodes) {
+            throw new ClientException("Test content has " + status.path("nodes").asLong()
+                    + " nodes, but the dataset spec expects " + expectedNodes);
+        }
+        awaitIndexed(status.path("completedAt").asLong(-1));
+    }
+
+    /**
+     * Starts the embedded in-memory repository, once for all of the IT's run in
+     * the JVM, and stops it when the JVM exits.
+     * 
+     * @return the URI of the embedded repository
+     * @throws ClientException the embedded repository could not be started
+     */
+    private static synchronized URI startEmbedded() throws ClientException {
+        if (embeddedServer == null) {
+            try {
+                EmbeddedOak oak = new EmbeddedOak();
+                EmbeddedServer server = new EmbeddedServer(oak);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    server.close();
+                    oak.close();
+                }));
+                embeddedOak = oak;
+                embeddedServer = server;
+            } catch (IOException | RepositoryException e) {
+                throw new ClientException("Failed to start the embedded repository", e);
+            }
+        }
+        return embeddedServer.getUri();
+    }
+
+    /**
+     * @return the embedded repository, or null if the IT's are run against AEM
+     */
+    protected static EmbeddedOak getEmbeddedOak() {
+        return embeddedOak;
+    }
+
+    /**
+     * @return the dataset spec the test content is generated from
+     * @throws IOException the embedded dataset spec could not be read
+     */
+    protected static DatasetSpec getDatasetSpec() throws IOException {
+        return Boolean.getBoolean(EMBEDDED_PROPERTY)
+                ? new ObjectMapper().readValue(new File(EMBEDDED_DATASET), DatasetSpec.class)
+                : DatasetSpec.createDefault();
+    }
+
+    /**
+     * @return the status of the test content generation from
+     *         <code>/bin/oak-search/ensurecontent</code>
+     */
+    protected static JsonNode getContentStatus() throws ClientException {
+        try {
+            return new ObjectMapper().readTree(
+                    adminAuthor.doGet("/bin/oak-search/ensurecontent", 200).getContent());
+        } catch (IOException e) {
+            throw new ClientException("Failed to parse content generation status", e);
+        }
+    }
+
+    /**
+     * @return the status of the test index from
+     *         <code>/bin/oak-search/indexstatus</code>, including its size and
+     *         the status of the async indexing lanes
+     */
+    protected static JsonNode getIndexStatus() throws ClientException {
+        return getIndexStatus(INDEX_PATH);
+    }
+
+    /**
+     * @param indexPath the path of the index definition
+     * @return the status of the index from
+     *         <code>/bin/oak-search/indexstatus</code>, including its size and
+     *         the status of the async indexing lanes
+     */
+    protected static JsonNode getIndexStatus(String indexPath) throws ClientException {
+        try {
+            return new ObjectMapper().readTree(adminAuthor.doGet("/bin/oak-search/indexstatus",
+                    List.of(new BasicNameValuePair("path", indexPath)), Collections.emptyList(), 200)
+                    .getContent());
+        } catch (IOException e) {
+            throw new ClientException("Failed to parse index status", e);
+        }
+    }
+
+    /**
+     * Waits for the content generation running in the background to complete,
+     * logging its progress.
+     * 
+     * @return the status of the completed generation
+     */
+    private static JsonNode awaitContent() throws ClientException, InterruptedException {
+        while (true) {
+            JsonNode status = getContentStatus();
+            String state = status.path("state").asText();
+            if ("complete".equals(state)) {
+                return status;
+            } else if (!"running".equals(state)) {
+                throw new ClientException("Content generation " + state + ": " + status.path("error").asText());
+            }
+            log.info("Created {} of {} nodes at {} nodes/s, {}s remaining", status.path("nodes").asLong(),
+                    status.path("expectedNodes").asLong(), status.path("nodesPerSecond").asLong(),
+                    status.path("etaSeconds").asLong());
+            TimeUnit.SECONDS.sleep(10);
+        }
+    }
+
+    /**
+     * Waits for the async lane of the test index to index the content committed
+     * until the generation completed. A lane's last indexed time only moves when
+     * a run indexes changes, so a run which started after the generation
+     * completed and is done without changes counts as well.
+     * 
+     * @param completedAt when the generation completed in milliseconds since the
+     *                    epoch, or -1 if unknown
+     */
+    private static void awaitIndexed(long completedAt) throws ClientException, InterruptedException {
+        JsonNode status = getIndexStatus();
+        String lane = getLane(status);
+        JsonNode laneStatus = status.path("lanes").path(lane);
+        if (completedAt < 0 || laneStatus.isMissingNode()) {
+            log.info("Cannot tell whether lane {} indexed the test content, not waiting", lane);
+            return;
+        }
+        long deadline = System.nanoTime() + REINDEX_TIMEOUT_NANOS;
+        while (getIndexedTo(laneStatus) < completedAt) {
+            if (System.nanoTime() > deadline) {
+                throw new ClientException("Lane " + lane + " did not index the test content within "
+                        + TimeUnit.NANOSECONDS.toSeconds(REINDEX_TIMEOUT_NANOS) + " seconds: " + laneStatus);
+            }
+            TimeUnit.MILLISECONDS.sleep(MIN_POLL_MS);
+            laneStatus = getIndexStatus().path("lanes").path(lane);
+        }
+        log.info("Lane {} indexed the test content", lane);
+    }
+
+    /**
+     * @param index the index definition or status
+     * @return the first async lane of the index, which a definition can set as a
+     *         string or an array of lanes
+     */
+    private static String getLane(JsonNode index) {
+        JsonNode async = index.path("async");
+        return (async.isArray() ? async.path(0) : async).asText(DEFAULT_LANE);
+    }
+
+    private static long getIndexedTo(JsonNode laneStatus) {
+        long indexedTo = parseTime(laneStatus.path("lastIndexedTime").asText());
+        long start = parseTime(laneStatus.path("start").asText());
+        if ("done".equals(laneStatus.path("status").asText())
+                && parseTime(laneStatus.path("done").asText()) >= start) {
+            indexedTo = Math.max(indexedTo, start);
+        }
+        return indexedTo;
+    }
+
+    private static long parseTime(String time) {
+        try {
+            return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1L;
+        }
     }
 
     protected TestQueryResult runQuery(SlingClient client, String query, long limit)
             throws ClientException, IOException {
-        SlingHttpResponse response = client.doGet("/tests/it-9.query.json",
-                List.of(new BasicNameValuePair("query", query), new BasicNameValuePair("limit", String.valueOf(limit))),
+        return runQuery(client, query, limit, Collections.emptyList());
+    }
+
+    protected TestQueryResult runQuery(SlingClient client, String query, long limit,
+            List<NameValuePair> additionalParameters) throws ClientException, IOException {
+        List<NameValuePair> parameters = new ArrayList<>(List.of(new BasicNameValuePair("query", query),
+                new BasicNameValuePair("limit", String.valueOf(limit))));
+        parameters.addAll(additionalParameters);
+        SlingHttpResponse response = client.doGet("/tests/it-9.query.json", parameters,
                 Collections.emptyList(), 200);
         ObjectMapper objectMapper = new ObjectMapper();
 
@@ -86,6 +306,55 @@ public abstract class OakSearchITBase {
         return objectMapper.readValue(response.getContent(), TestQueryResult.class);
     }
 
+    /**
+     * Executes the query, retrieving the result in the format of the extension.
+     * 
+     * @param client    the client to execute the query as
+     * @param query     the query to execute
+     * @param limit     the limit for the query
+     * @param extension the format to retrieve the result in, one of json,
+     *                  ndjson, smile or cbor
+     * @return the query result
+     * @throws ClientException an exception occurs communicating to AEM
+     * @throws IOException     an exception occurs parsing the response
+     */
+    protected TestQueryResult runQuery(SlingClient client, String query, long limit, String extension)
+            throws ClientException, IOException {
+        List<NameValuePair> parameters = List.of(new BasicNameValuePair("query", query),
+                new BasicNameValuePair("limit", String.valueOf(limit)));
+        SlingHttpResponse response = client.doStreamGet("/tests/it-9.query." + extension, parameters,
+                Collections.emptyList(), 200);
+        byte[] content;
+        try (InputStream is = response.getEntity().getContent()) {
+            content = IOUtils.toByteArray(is);
+        }
+        log.info("Retrieved {} result of {} bytes", extension, content.length);
+        return TestQueryResultReader.read(content, extension);
+    }
+
+    /**
+     * Executes the queries concurrently in a single request.
+     * 
+     * @param client  the client to execute the queries as
+     * @param queries the queries to execute
+     * @param limit   the limit for each query
+     * @return the batch result, with the results in the order of the queries
+     * @throws ClientException an exception occurs communicating to AEM
+     * @throws IOException     an exception occurs parsing the response
+     */
+    protected TestBatchResult runQueries(SlingClient client, List<String> queries, long limit)
+            throws ClientException, IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ArrayNode body = objectMapper.createArrayNode();
+        queries.forEach(q -> body.addObject().put("query", q).put("limit", limit));
+        SlingHttpResponse response = client.doPost("/tests/it-9.batch.json",
+                new StringEntity(objectMapper.writeValueAsString(body), ContentType.APPLICATION_JSON),
+                Collections.emptyList(), 200);
+
+        log.info("Retrieved batch result: \n{}", response.getContent());
+        return objectMapper.readValue(response.getContent(), TestBatchResult.class);
+    }
+
     /**
      * Upserts an index into Oak and forces it to reindex.
      * 
@@ -95,43 +364,123 @@ public abstract class OakSearchITBase {
      * @throws InterruptedException the process is interrupted
      */
     protected static void updateIndex(String definitionFile) throws ClientException, IOException, InterruptedException {
+        updateIndex(definitionFile, INDEX_PATH);
+    }
+
+    /**
+     * Upserts an index other than the test index into Oak and forces it to
+     * reindex.
+     * 
+     * @param definitionFile the definition file in the classpath to upsert
+     * @param indexPath      the path of the index under /oak:index
+     * @throws ClientException      an exception occurs communicating to AEM
+     * @throws IOException          an exception occurs reading the file
+     * @throws InterruptedException the process is interrupted
+     */
+    protected static void updateIndex(String definitionFile, String indexPath)
+            throws ClientException, IOException, InterruptedException {
 
         String definition = IOUtils.toString(OakSearchITBase.class.getClassLoader().getResourceAsStream(definitionFile),
                 StandardCharsets.UTF_8);
 
-        if (adminAuthor.exists(INDEX_PATH)) {
-            log.info("Removing old index at: {}", INDEX_PATH);
-            adminAuthor.deletePath(INDEX_PATH, 201, 200);
+        // read the lane before the definition is posted, so a run of the lane
+        // which starts in between is not mistaken for the reindex having run
+        JsonNode before = getIndexStatus(indexPath);
+        String lane = getLane(new ObjectMapper().readTree(definition));
+        JsonNode laneBefore = before.path("lanes").path(lane);
+
+        long expectedDocs = -1;
+        if (before.path("exists").asBoolean()) {
+            expectedDocs = before.path("docCount").asLong(-1);
+            log.info("Removing old index at: {}", indexPath);
+            adminAuthor.deletePath(indexPath, 201, 200);
+        }
+        if (expectedDocs < 0 && INDEX_PATH.equals(indexPath)) {
+            expectedDocs = getContentStatus().path("nodes").asLong(-1);
         }
 
-        log.info("Setting index definition {} to: \n{}", INDEX_PATH, definition);
+        log.info("Setting index definition {} to: \n{}", indexPath, definition);
         HttpEntity entity = FormEntityBuilder.create()
                 .addParameter(":operation", "import")
                 .addParameter(":contentType", "json")
-                .addParameter(":name", "testContentLucene")
+                .addParameter(":name", indexPath.substring(indexPath.lastIndexOf('/') + 1))
                 .addParameter(":content", definition)
                 .build();
         adminAuthor.doPost("/oak:index", entity, HttpUtils.getExpectedStatus(200, 201));
 
         log.info("Index updated, waiting for reindexing to complete...");
-        setReindex(false);
-        setReindex(true);
+        setReindex(indexPath, false);
+        setReindex(indexPath, true);
+        awaitReindex(indexPath, lane, laneBefore, expectedDocs);
+    }
 
-        boolean reindex = true;
-        for (int i = 0; i < 86400 && reindex; i++) {
-            if (i > 0 && i % 60 == 0) {
-                log.info("Still waiting for reindexing to complete after {} seconds...", i);
+    /**
+     * Waits for the async indexer to reindex the index, which it signals
+     * by clearing the index's reindex flag at the end of a run of its lane that
+     * advances the lane's last indexed time past the time read before the
+     * definition was posted. The status
+     * is checked frequently at first and then less often as the reindex goes
+     * on, or as it nears its estimated end, logging the documents indexed per
+     * second and the remaining time.
+     * 
+     * @param indexPath    the path of the index
+     * @param lane         the async lane indexing the index
+     * @param laneBefore   the status of the lane before the definition was
+     *                     posted, missing without the index statistics MBean
+     * @param expectedDocs the estimated number of documents, or -1 if unknown
+     */
+    private static void awaitReindex(String indexPath, String lane, JsonNode laneBefore, long expectedDocs)
+            throws ClientException, InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + REINDEX_TIMEOUT_NANOS;
+        long lastLog = start;
+        long sleepMs = MIN_POLL_MS;
+        JsonNode status = getIndexStatus(indexPath);
+        // without the index statistics MBean only the reindex flag is known
+        boolean laneKnown = !laneBefore.isMissingNode();
+        String lastIndexedTime = laneBefore.path("lastIndexedTime").asText();
+        while (true) {
+            JsonNode laneStatus = status.path("lanes").path(lane);
+            long elapsedNanos = Math.max(1L, System.nanoTime() - start);
+            if (!status.path("reindex").asBoolean(true) && (!laneKnown
+                    || (!"running".equals(laneStatus.path("status").asText())
+                            && !lastIndexedTime.equals(laneStatus.path("lastIndexedTime").asText())))) {
+                long docs = status.path("docCount").asLong(-1);
+                log.info("Reindexing complete! Indexed {} documents in {}ms at {} documents/s", docs,
+                        TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                        docs * TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new ClientException("Reindexing did not complete within "
+                        + TimeUnit.NANOSECONDS.toSeconds(REINDEX_TIMEOUT_NANOS) + " seconds: " + status);
             }
-            TimeUnit.SECONDS.sleep(1);
-            JsonNode index = adminAuthor.doGetJson(INDEX_PATH, 1, 200);
-            reindex = index.get("reindex").asBoolean();
+
+            long docs = laneStatus.path("updates").asLong();
+            long rate = docs * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+            long etaMs = rate > 0 && expectedDocs > 0 ? Math.max(0L, expectedDocs - docs) * 1000 / rate : -1L;
+            if (System.nanoTime() - lastLog > TimeUnit.MILLISECONDS.toNanos(PROGRESS_LOG_MS)) {
+                lastLog = System.nanoTime();
+                log.info("Indexed {} of {} documents at {} documents/s, {}s remaining, lane {} is {}", docs,
+                        expectedDocs, rate, etaMs / 1000, lane, laneStatus.path("status").asText());
+                if (laneStatus.path("failing").asBoolean()) {
+                    log.warn("Lane {} is failing: {}", lane, laneStatus.path("latestError").asText());
+                }
+            }
+
+            // check again halfway to the estimated end, backing off while it
+            // is unknown or past, e.g. while the indexed documents are merged
+            sleepMs = etaMs > 0 ? etaMs / 2 : sleepMs * 2;
+            sleepMs = Math.max(MIN_POLL_MS, Math.min(MAX_POLL_MS, sleepMs));
+            TimeUnit.MILLISECONDS.sleep(sleepMs);
+            status = getIndexStatus(indexPath);
         }
-        log.info("Reindexing complete!");
     }
 
-    private static void setReindex(boolean reindex) throws UnsupportedEncodingException, ClientException {
+    private static void setReindex(String indexPath, boolean reindex)
+            throws UnsupportedEncodingException, ClientException {
         adminAuthor
-                .doPost(INDEX_PATH,
+                .doPost(indexPath,
                         new UrlEncodedFormEntity(List.of(new BasicNameValuePair("reindex", String.valueOf(reindex)),
                                 new BasicNameValuePair("reindex@TypeHint", "Boolean"))),
                         Collections.emptyList(), 200, 201);
@@ -16,14 +16,39 @@
 package com.danklco.blog.oaksearch.it.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.sling.testing.clients.SlingHttpResponse;
+import org.apache.sling.testing.clients.util.FormEntityBuilder;
+import org.apache.sling.testing.clients.util.HttpUtils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import com.danklco.blog.oaksearch.core.query.QueryExecutor;
+import com.danklco.blog.oaksearch.core.query.ResultCache;
+import com.danklco.blog.oaksearch.it.embedded.EmbeddedOak;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 /**
  * This test demonstrates that you cannot just rely on node types to ensure that
  * queries will be performant
@@ -41,6 +66,12 @@ class OakSearchTest_01_QueryNodeType extends OakSearchITBase {
         TestQueryResult result = super.runQuery(adminAuthor, "SELECT * FROM [test:content] AS s", 100);
         assertEquals("", result.getCaughtException());
         assertEquals(100, result.getResults().size());
+
+        // Each phase of the query is timed in nanoseconds, so even fast queries
+        // report how long they spent executing and iterating
+        assertTrue(result.getTimings().getExecuteNanos() > 0);
+        assertTrue(result.getTimings().getIterationNanos() > 0);
+        assertTrue(result.getTimings().getTotalNanos() >= result.getTimings().getExecuteNanos());
     }
 
     // In fact I can even query against certain values and get back results
@@ -51,11 +82,13 @@ class OakSearchTest_01_QueryNodeType extends OakSearchITBase {
         assertEquals("", result.getCaughtException());
         assertEquals(100, result.getResults().size());
         int succeeded = 0;
+        List<String> queries = new ArrayList<>();
         for (int i = 1; i < 10; i++) {
-            result = super.runQuery(adminAuthor,
-                    "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests]) AND [test:iteration]=" + i,
-                    100);
-            if (StringUtils.isBlank(result.getCaughtException())) {
+            queries.add("SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests]) AND [test:iteration]=" + i);
+        }
+        // run the queries concurrently in a single request
+        for (TestQueryResult batchResult : super.runQueries(adminAuthor, queries, 100).getResults()) {
+            if (StringUtils.isBlank(batchResult.getCaughtException())) {
                 succeeded++;
             }
         }
@@ -97,6 +130,236 @@ class OakSearchTest_01_QueryNodeType extends OakSearchITBase {
                         + iteration + " TO " + iteration
                         + "] where (isdescendantnode([s], [/tests])) and ([s].[test:iteration] = " + iteration + ") */",
                 result.getPlan());
+
+        // With the index in place, the plan analyzer no longer finds any problems
+        // with the plan
+        assertTrue(result.getPlanFindings().isEmpty());
+    }
+
+    // Rather than concatenating the item into the query, the same statement can
+    // be executed with different values bound to its variables. As the statement
+    // is the same for every item, it is only explained once and the plan is
+    // reused for the other items. Bind variables cannot be used in paths, so the
+    // statement is restricted to a single iteration to keep it from traversing
+    // the whole tree
+    @Test
+    void canReuseStatementWithBindVariables() throws Exception {
+        String statement = "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests/it-1]) AND [test:item]=$item";
+        for (int i = 1; i < 10; i++) {
+            TestQueryResult result = super.runQuery(adminAuthor, statement, 100,
+                    List.of(new BasicNameValuePair("bind.item", String.valueOf(i))));
+            assertEquals("", result.getCaughtException());
+            assertFalse(result.getResults().isEmpty());
+            if (i > 1) {
+                assertTrue(result.isPlanCached());
+            }
+        }
+    }
+
+    // Every execution is recorded, and executions of the same query with
+    // different literals are grouped into one shape with the literals replaced.
+    // As the samples show the literals and who ran the query, only administrators
+    // can read the statistics
+    @Test
+    void canGroupQueryStatsByShape() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            TestQueryResult result = super.runQuery(adminAuthor,
+                    "SELECT * FROM [test:content] AS stats WHERE ISDESCENDANTNODE([/tests/it-1]) AND [test:item]=" + i
+                            + " AND [test:name]='oak-search'",
+                    100);
+            assertEquals("", result.getCaughtException());
+        }
+        JsonNode stats = new ObjectMapper().readTree(adminAuthor.doGet("/bin/oak-search/querystats",
+                List.of(new BasicNameValuePair("slowest", "5")), List.of(), 200).getContent());
+        String shape = "SELECT * FROM [test:content] AS stats WHERE ISDESCENDANTNODE([/tests/it-1]) AND [test:item]=? AND [test:name]=?";
+        JsonNode grouped = null;
+        for (JsonNode candidate : stats.path("shapes")) {
+            if (shape.equals(candidate.path("shape").asText())) {
+                grouped = candidate;
+            }
+        }
+        assertNotNull(grouped, "No shape " + shape + " in " + stats);
+        assertEquals(5, grouped.path("count").asInt());
+
+        long[] totals = new long[5];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = grouped.path("slowest").path(i).path("totalNanos").asLong();
+        }
+        Arrays.sort(totals);
+        assertEquals(totals[2], grouped.path("p50Nanos").asLong());
+        assertEquals(totals[4], grouped.path("p95Nanos").asLong());
+        assertEquals(totals[4], grouped.path("p99Nanos").asLong());
+        assertEquals(totals[4], grouped.path("maxNanos").asLong());
+
+        limitedAccess.doGet("/bin/oak-search/querystats", 403);
+    }
+
+    // With the result cache enabled, the results of a query restricted to a path
+    // are returned from the cache until a change is observed under that path.
+    // Only a path restriction every result must match confines the results, so
+    // the same restrictions combined with OR are never cached
+    @Test
+    void canCacheResultsUntilChanged() throws Exception {
+        assumeTrue(getEmbeddedOak() != null, "Enabling the result cache requires the embedded profile");
+        getEmbeddedOak().configure(ResultCache.class, Map.of("enabled", true));
+        String query = "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests/it-1]) AND [test:item]=1";
+        String path = "/tests/it-1/item-1/cache-test";
+        try {
+            TestQueryResult cached = awaitResult(query, TestQueryResult::isResultCached);
+            assertFalse(cached.getResults().contains(path));
+
+            adminAuthor.doPost("/tests/it-1/item-1", FormEntityBuilder.create()
+                    .addParameter(":operation", "import")
+                    .addParameter(":contentType", "json")
+                    .addParameter(":name", "cache-test")
+                    .addParameter(":content", "{\"jcr:primaryType\": \"test:content\", \"test:item\": 1}")
+                    .build(), HttpUtils.getExpectedStatus(200, 201));
+            TestQueryResult changed = awaitResult(query, r -> r.getResults().contains(path));
+            assertFalse(changed.isResultCached());
+            assertTrue(awaitResult(query, TestQueryResult::isResultCached).getResults().contains(path));
+
+            String union = "SELECT * FROM [test:content] AS s WHERE (ISDESCENDANTNODE([/tests/it-1]) OR ISDESCENDANTNODE([/tests/it-2])) AND [test:item]=1";
+            assertEquals("", super.runQuery(adminAuthor, union, 100).getCaughtException());
+            assertFalse(super.runQuery(adminAuthor, union, 100).isResultCached());
+        } finally {
+            if (adminAuthor.exists(path)) {
+                adminAuthor.deletePath(path, 200);
+            }
+            getEmbeddedOak().configure(ResultCache.class, Map.of());
+        }
+    }
+
+    /**
+     * Runs the query until the result matches, as changes are observed and
+     * indexed asynchronously.
+     */
+    // A single principal can only have a few queries running or queued, so one
+    // client cannot use up the query pool. Once it is at the limit, its queries
+    // and batches are rejected with a 429 telling it when to retry, while other
+    // principals can still query
+    @Test
+    void rejectsQueriesOverThePrincipalLimit() throws Exception {
+        assumeTrue(getEmbeddedOak() != null, "Configuring the query executor requires the embedded profile");
+        getEmbeddedOak().configure(QueryExecutor.class, Map.of("maxPerPrincipal", 2, "retryAfterSeconds", 5));
+        QueryExecutor executor = getEmbeddedOak().getComponent(QueryExecutor.class);
+        CountDownLatch running = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        String query = "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests/it-1]) AND [test:item]=1";
+        List<NameValuePair> parameters = List.of(new BasicNameValuePair("query", query),
+                new BasicNameValuePair("limit", "100"));
+        try {
+            for (int i = 0; i < 2; i++) {
+                executor.execute(EmbeddedOak.ADMIN, () -> {
+                    running.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            assertTrue(running.await(30, TimeUnit.SECONDS));
+
+            SlingHttpResponse rejected = adminAuthor.doGet("/tests/it-9.query.json", parameters,
+                    Collections.emptyList(), 429);
+            assertEquals("5", rejected.getFirstHeader("Retry-After").getValue());
+
+            SlingHttpResponse rejectedBatch = adminAuthor.doPost("/tests/it-9.batch.json",
+                    new StringEntity("[{\"query\": \"" + query + "\", \"limit\": 100}]", ContentType.APPLICATION_JSON),
+                    Collections.emptyList(), 429);
+            assertEquals("5", rejectedBatch.getFirstHeader("Retry-After").getValue());
+
+            assertEquals("", super.runQuery(limitedAccess, query, 100).getCaughtException());
+
+            release.countDown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (adminAuthor.doGet("/tests/it-9.query.json", parameters, Collections.emptyList(), 200, 429)
+                    .getStatusLine().getStatusCode() == 429) {
+                assertTrue(System.nanoTime() < deadline, "Queries were still rejected after 30s");
+                TimeUnit.MILLISECONDS.sleep(200);
+            }
+        } finally {
+            release.countDown();
+            getEmbeddedOak().configure(QueryExecutor.class, Map.of());
+        }
+    }
+
+    private TestQueryResult awaitResult(String query, Predicate<TestQueryResult> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            TestQueryResult result = super.runQuery(adminAuthor, query, 100);
+            assertEquals("", result.getCaughtException());
+            if (condition.test(result)) {
+                return result;
+            }
+            assertTrue(System.nanoTime() < deadline, "Result did not match within 30s");
+            TimeUnit.MILLISECONDS.sleep(200);
+        }
+    }
+
+    // Rather than letting an expensive query run until it completes, a deadline
+    // can be set with timeoutMs. Once the deadline passes the query stops reading
+    // results and returns what it read so far, flagged as truncated
+    @Test
+    void canStopQueryAtDeadline() throws Exception {
+        // explain the query first so the deadline is spent iterating the results
+        String query = "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests])";
+        super.runQuery(adminAuthor, query, 1);
+        TestQueryResult result = super.runQuery(adminAuthor, query, 10000000,
+                List.of(new BasicNameValuePair("timeoutMs", "500")));
+        assertEquals("", result.getCaughtException());
+        assertTrue(result.isTruncated());
+        assertEquals(500, result.getTimeoutMs());
+        assertEquals(result.getResults().size(), result.getRowsRead());
+        assertTrue(result.getRowsRead() > 0);
+        assertTrue(result.getRowsRead() < 10000000);
+    }
+
+    // The results can also be retrieved as newline delimited JSON or in the
+    // binary Smile and CBOR formats, which are cheaper to produce and parse for
+    // large result sets, but contain the same results
+    @ParameterizedTest
+    @ValueSource(strings = { "ndjson", "smile", "cbor" })
+    void canRetrieveResultsInOtherFormats(String extension) throws Exception {
+        String query = "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests/it-9])";
+        TestQueryResult json = super.runQuery(adminAuthor, query, 1000, "json");
+        TestQueryResult result = super.runQuery(adminAuthor, query, 1000, extension);
+        assertEquals("", result.getCaughtException());
+        assertEquals(json.getResults(), result.getResults());
+        assertEquals(json.getPlan(), result.getPlan());
+    }
+
+    // To find out how many nodes match, rather than retrieving every path the
+    // query can count the rows without loading the nodes. With a limit, the
+    // count is capped and no longer exact once more rows match than the limit
+    @Test
+    void canCountWithoutRetrievingResults() throws Exception {
+        String query = "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests/it-1])";
+        TestQueryResult results = super.runQuery(adminAuthor, query, 100000);
+        TestQueryResult count = super.runQuery(adminAuthor, query, 100000,
+                List.of(new BasicNameValuePair("mode", "count")));
+        assertEquals("", count.getCaughtException());
+        assertEquals(results.getResults().size(), count.getCount());
+        assertTrue(count.isExact());
+        assertEquals(0, count.getNodeLoads());
+
+        TestQueryResult capped = super.runQuery(adminAuthor, query, 100,
+                List.of(new BasicNameValuePair("mode", "count")));
+        assertEquals(100, capped.getCount());
+        assertFalse(capped.isExact());
+
+        // a limit of exactly the number of matches still counts every row
+        TestQueryResult atLimit = super.runQuery(adminAuthor, query, results.getResults().size(),
+                List.of(new BasicNameValuePair("mode", "count")));
+        assertEquals(results.getResults().size(), atLimit.getCount());
+        assertTrue(atLimit.isExact());
+
+        // the estimate does not iterate the results at all
+        TestQueryResult estimate = super.runQuery(adminAuthor, query, 100000,
+                List.of(new BasicNameValuePair("mode", "estimate")));
+        assertEquals("", estimate.getCaughtException());
+        assertFalse(estimate.isExact());
+        assertEquals(0, estimate.getRowReads());
     }
 
 }
@@ -16,15 +16,25 @@
 package com.danklco.blog.oaksearch.it.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.sling.testing.clients.ClientException;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 /**
  * This test demonstrates that even if you index _some_ properties queries can
  * still be slow / fail with traversal
@@ -81,4 +91,56 @@ class OakSearchTest_02_QueryProperties extends OakSearchITBase {
                         + item + ") */",
                 result.getPlan());
     }
+
+    // Loading every node just to get its path is wasteful when the values needed
+    // can be read from the rows. Requesting columns iterates the rows instead and
+    // never loads the nodes
+    @Test
+    void canReadColumnsWithoutLoadingNodes() throws ClientException, IOException {
+        TestQueryResult result = super.runQuery(adminAuthor,
+                "SELECT [jcr:path], [test:item] FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests]) AND [test:iteration]=9",
+                100, List.of(new BasicNameValuePair("columns", "jcr:path,test:item")));
+        assertEquals("", result.getCaughtException());
+        assertEquals(100, result.getRows().size());
+        assertEquals(100, result.getRowReads());
+        assertEquals(0, result.getNodeLoads());
+        assertTrue(result.getRows().get(0).containsKey("test:item"));
+    }
+
+    // The indexes here are async, so a committed change is not visible in query
+    // results until the indexer has caught up. Running a write load while
+    // querying shows how long that takes and what the writes cost the queries.
+    // The run creates its own index of the probed values, so this doesn't
+    // depend on the definition loaded above
+    @Test
+    void canMeasureIndexLagUnderChurn() throws ClientException, IOException, InterruptedException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        String spec = "{\"rates\": [5], \"stepSeconds\": 10, \"threads\": 1, \"initialNodes\": 100, \"updateRatio\": 0.7, \"maxLagMs\": 30000}";
+        adminAuthor.doPost("/bin/oak-search/churn", new StringEntity(spec, ContentType.APPLICATION_JSON),
+                Collections.emptyList(), 202);
+
+        JsonNode status = null;
+        for (int i = 0; i < 300; i++) {
+            TimeUnit.SECONDS.sleep(1);
+            status = objectMapper.readTree(adminAuthor.doGet("/bin/oak-search/churn", 200).getContent());
+            if (!"running".equals(status.path("state").asText())) {
+                break;
+            }
+        }
+        assertEquals("complete", status.path("state").asText(), status.toString());
+        JsonNode step = status.path("steps").get(0);
+        assertTrue(step.path("writes").asLong() > 0);
+        assertEquals(0, step.path("errors").asLong());
+
+        // every add and update is probed, the async lane makes them visible
+        // well within the maximum lag
+        JsonNode lag = step.path("indexLag");
+        assertEquals(step.path("adds").asLong() + step.path("updates").asLong(), lag.path("probes").asLong());
+        assertEquals(lag.path("probes").asLong(), lag.path("visible").asLong() + lag.path("timedOut").asLong());
+        assertTrue(lag.path("visible").asLong() > 0);
+
+        JsonNode query = step.path("query");
+        assertEquals(0, query.path("errors").asLong());
+        assertTrue(query.path("executions").asLong() > 0);
+    }
 }
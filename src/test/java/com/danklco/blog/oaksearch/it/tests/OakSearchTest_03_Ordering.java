@@ -1,28 +1,48 @@
 package com.danklco.blog.oaksearch.it.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.sling.testing.clients.ClientException;
+import org.apache.sling.testing.clients.util.FormEntityBuilder;
+import org.apache.sling.testing.clients.util.HttpUtils;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 /**
  * This test demonstrates that even if you index all the properties, that you
  * still need to consider ordering
  */
 class OakSearchTest_03_Ordering extends OakSearchITBase {
 
+    private static final String PAGING_PATH = "/tests/paging";
+
+    private static final String PAGING_INDEX_PATH = "/oak:index/testPagingLucene";
+
+    private static final int PAGING_NODES = 300;
+
+    private static final int PAGE_SIZE = 50;
+
     @BeforeAll
     static void beforeAll() throws Exception {
         OakSearchITBase.setup();
+        createPagingContent();
     }
 
     // In OakSearchTest_01_QueryNodeType, we ran this query and it worked
@@ -74,6 +94,103 @@ class OakSearchTest_03_Ordering extends OakSearchITBase {
                 result.getPlan());
     }
 
+    // With ordering in place, results can be paged through with a cursor. Rather
+    // than re-running the query with a larger limit and dropping the previous
+    // pages, each page seeks from the ORDER BY values of the previous page's last
+    // row, so every page costs about the same as the first. Paging needs the
+    // ordered properties to be declared with their type in the index, otherwise
+    // the index orders numbers as strings, so the paging tests use their own
+    // content and 03_Ordering/pagingIndexDef.json. The first 120 nodes share
+    // test:rank 1, more than fit on a page, and every two nodes share test:seq,
+    // so pages continue within ties ordered by path. The last 20 nodes have no
+    // test:rank, so they come first ascending and last descending
+    @ParameterizedTest
+    @ValueSource(strings = { "ASC", "DESC" })
+    void canPageWithCursor(String direction) throws ClientException, IOException {
+        String query = "SELECT * FROM [nt:unstructured] AS s WHERE ISDESCENDANTNODE([" + PAGING_PATH
+                + "]) ORDER BY [test:rank] " + direction + ", [test:seq]";
+        Comparator<Long> rank = Comparator.nullsFirst(Comparator.<Long>naturalOrder());
+        List<String> expected = IntStream.range(0, PAGING_NODES).boxed()
+                .sorted(Comparator.comparing(OakSearchTest_03_Ordering::getPagingRank,
+                        "DESC".equals(direction) ? rank.reversed() : rank)
+                        .thenComparing(i -> i / 2)
+                        .thenComparing(OakSearchTest_03_Ordering::getPagingPath))
+                .map(OakSearchTest_03_Ordering::getPagingPath)
+                .collect(Collectors.toList());
+
+        List<String> paged = new ArrayList<>();
+        String cursor = "";
+        while (cursor != null) {
+            TestQueryResult page = super.runQuery(adminAuthor, query, PAGE_SIZE,
+                    List.of(new BasicNameValuePair("cursor", cursor)));
+            assertEquals("", page.getCaughtException());
+            assertTrue(page.getPlan().contains(PAGING_INDEX_PATH), page.getPlan());
+            // only the rows sharing every ORDER BY value with the previous page's
+            // last row are read again
+            assertTrue(page.getSkippedRows() <= 2, "Skipped " + page.getSkippedRows() + " rows");
+            paged.addAll(page.getResults());
+            cursor = page.getNextCursor();
+        }
+        assertEquals(expected, paged);
+    }
+
+    // Ordered only by test:rank, the 120 nodes sharing test:rank 1 cannot be
+    // split into pages without reading the whole group on every page, so the
+    // query is rejected once the group is reached rather than getting slower with
+    // every page
+    @ParameterizedTest
+    @ValueSource(strings = { "ASC", "DESC" })
+    void cannotPageThroughLargeTies(String direction) throws ClientException, IOException {
+        String query = "SELECT * FROM [nt:unstructured] AS s WHERE ISDESCENDANTNODE([" + PAGING_PATH
+                + "]) ORDER BY [test:rank] " + direction;
+        String cursor = "";
+        TestQueryResult page;
+        do {
+            page = super.runQuery(adminAuthor, query, PAGE_SIZE, List.of(new BasicNameValuePair("cursor", cursor)));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        assertTrue(page.getCaughtException().contains("rows share the same ORDER BY values"),
+                page.getCaughtException());
+    }
+
+    /**
+     * Imports the content for the paging tests and indexes it with ordered Long
+     * properties.
+     */
+    private static void createPagingContent() throws ClientException, IOException, InterruptedException {
+        if (!adminAuthor.exists(PAGING_PATH)) {
+            ObjectNode content = new ObjectMapper().createObjectNode();
+            content.put("jcr:primaryType", "nt:unstructured");
+            for (int i = 0; i < PAGING_NODES; i++) {
+                ObjectNode node = content.putObject(getPagingPath(i).substring(PAGING_PATH.length() + 1));
+                node.put("jcr:primaryType", "nt:unstructured");
+                node.put("test:seq", i / 2);
+                if (getPagingRank(i) != null) {
+                    node.put("test:rank", getPagingRank(i));
+                }
+            }
+            adminAuthor.doPost("/tests", FormEntityBuilder.create()
+                    .addParameter(":operation", "import")
+                    .addParameter(":contentType", "json")
+                    .addParameter(":name", PAGING_PATH.substring(PAGING_PATH.lastIndexOf('/') + 1))
+                    .addParameter(":content", content.toString())
+                    .build(), HttpUtils.getExpectedStatus(200, 201));
+        }
+        updateIndex("03_Ordering/pagingIndexDef.json", PAGING_INDEX_PATH);
+    }
+
+    private static String getPagingPath(int i) {
+        // the nodes are not created in the order of their paths
+        return String.format("%s/n-%03d", PAGING_PATH, i * 7 % PAGING_NODES);
+    }
+
+    private static Long getPagingRank(int i) {
+        if (i < 120) {
+            return 1L;
+        }
+        return i < PAGING_NODES - 20 ? 2L + i % 60 : null;
+    }
+
     static Stream<Arguments> generateScenarios() {
         List<String> properties = List.of("test:child", "test:item", "test:name");
         List<Arguments> scenarios = new ArrayList<>();
@@ -16,9 +16,13 @@
 package com.danklco.blog.oaksearch.it.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.sling.testing.clients.ClientException;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -59,4 +63,23 @@ class OakSearchTest_05_Permissions extends OakSearchITBase {
         // String path = "/tests/it-9";
 
     }
+
+    // Every row Oak reads from the index is checked against the user's
+    // permissions before it is returned, so a user who can only read a small
+    // part of the content pays for reading the rows they cannot see. Comparing
+    // the rows read from the index with the rows which passed access control
+    // puts a number on that cost
+    @Test
+    void canMeasureRowsFilteredByAccessControl() throws ClientException, IOException {
+        TestQueryResult result = super.runQuery(limitedAccess,
+                "SELECT * FROM [test:content] AS s WHERE ISDESCENDANTNODE([/tests]) AND [test:item]=9", 100,
+                List.of(new BasicNameValuePair("accessControl", "true")));
+        Map<String, Object> accessControl = result.getAccessControl();
+        assertEquals(null, accessControl.get("caughtException"));
+        assertEquals(result.getResults().size(), ((Number) accessControl.get("accessibleRows")).intValue());
+        long indexRows = ((Number) accessControl.get("indexRows")).longValue();
+        assertTrue(indexRows >= result.getResults().size());
+        assertEquals(indexRows - result.getResults().size(),
+                ((Number) accessControl.get("filteredRows")).longValue());
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.tests;
+
+import java.util.List;
+
+public class TestBatchResult {
+
+    private long wallNanos;
+    private int threads;
+    private List<TestQueryResult> results;
+
+    /**
+     * @return the wall time for the whole batch
+     */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * @param wallNanos the wall time for the whole batch
+     */
+    public void setWallNanos(long wallNanos) {
+        this.wallNanos = wallNanos;
+    }
+
+    /**
+     * @return the number of threads the batch was executed with
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads the number of threads the batch was executed with
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return the results in the order of the queries
+     */
+    public List<TestQueryResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @param results the results in the order of the queries
+     */
+    public void setResults(List<TestQueryResult> results) {
+        this.results = results;
+    }
+
+}
@@ -16,16 +16,35 @@
 package com.danklco.blog.oaksearch.it.tests;
 
 import java.util.List;
+import java.util.Map;
 
 public class TestQueryResult {
 
     private String query;
     private long limit;
+    private Long cappedLimit;
+    private List<Map<String, String>> planFindings;
     private String plan;
+    private boolean planCached;
+    private boolean resultCached;
     private long executionDuration;
     private long iterationDuration;
     private List<String> results;
+    private List<Map<String, Object>> rows;
+    private long nodeLoads;
+    private long rowReads;
+    private long timeoutMs;
+    private boolean truncated;
+    private long rowsRead;
+    private Long count;
+    private boolean exact;
+    private String mode;
+    private String nextCursor;
+    private long skippedRows;
+    private Map<String, Object> accessControl;
     private String caughtException;
+    private TestQueryTimings timings;
+    private long allocatedBytes;
 
     /**
      * @return the query
@@ -55,6 +74,34 @@ public class TestQueryResult {
         this.limit = limit;
     }
 
+    /**
+     * @return the limit applied by the plan analyzer or null if not capped
+     */
+    public Long getCappedLimit() {
+        return cappedLimit;
+    }
+
+    /**
+     * @param cappedLimit the limit applied by the plan analyzer
+     */
+    public void setCappedLimit(Long cappedLimit) {
+        this.cappedLimit = cappedLimit;
+    }
+
+    /**
+     * @return the problems the plan analyzer found with the plan
+     */
+    public List<Map<String, String>> getPlanFindings() {
+        return planFindings;
+    }
+
+    /**
+     * @param planFindings the problems the plan analyzer found with the plan
+     */
+    public void setPlanFindings(List<Map<String, String>> planFindings) {
+        this.planFindings = planFindings;
+    }
+
     /**
      * @return the plan
      */
@@ -69,6 +116,35 @@ public class TestQueryResult {
         this.plan = plan;
     }
 
+    /**
+     * @return whether the plan was retrieved from the plan cache
+     */
+    public boolean isPlanCached() {
+        return planCached;
+    }
+
+    /**
+     * @param planCached whether the plan was retrieved from the plan cache
+     */
+    public void setPlanCached(boolean planCached) {
+        this.planCached = planCached;
+    }
+
+    /**
+     * @return whether the results were retrieved from the result cache
+     */
+    public boolean isResultCached() {
+        return resultCached;
+    }
+
+    /**
+     * @param resultCached whether the results were retrieved from the result
+     *                     cache
+     */
+    public void setResultCached(boolean resultCached) {
+        this.resultCached = resultCached;
+    }
+
     /**
      * @return the executionDuration
      */
@@ -125,4 +201,205 @@ public class TestQueryResult {
         this.caughtException = caughtException;
     }
 
+    /**
+     * @return the per-phase timings
+     */
+    public TestQueryTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * @param timings the per-phase timings
+     */
+    public void setTimings(TestQueryTimings timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * @return the bytes allocated by the request thread or -1 if not supported
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @param allocatedBytes the bytes allocated by the request thread
+     */
+    public void setAllocatedBytes(long allocatedBytes) {
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /**
+     * @return the rows read when columns were requested
+     */
+    public List<Map<String, Object>> getRows() {
+        return rows;
+    }
+
+    /**
+     * @param rows the rows read when columns were requested
+     */
+    public void setRows(List<Map<String, Object>> rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * @return the number of nodes loaded
+     */
+    public long getNodeLoads() {
+        return nodeLoads;
+    }
+
+    /**
+     * @param nodeLoads the number of nodes loaded
+     */
+    public void setNodeLoads(long nodeLoads) {
+        this.nodeLoads = nodeLoads;
+    }
+
+    /**
+     * @return the number of rows read without loading nodes
+     */
+    public long getRowReads() {
+        return rowReads;
+    }
+
+    /**
+     * @param rowReads the number of rows read without loading nodes
+     */
+    public void setRowReads(long rowReads) {
+        this.rowReads = rowReads;
+    }
+
+    /**
+     * @return the time in milliseconds after which the query stops reading results
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * @param timeoutMs the time in milliseconds after which the query stops
+     *                  reading results
+     */
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return true if the query stopped reading results at its deadline
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @param truncated true if the query stopped reading results at its deadline
+     */
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    /**
+     * @return the number of results read before the query completed or was
+     *         truncated
+     */
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * @param rowsRead the number of results read before the query completed or
+     *                 was truncated
+     */
+    public void setRowsRead(long rowsRead) {
+        this.rowsRead = rowsRead;
+    }
+
+    /**
+     * @return the count of the results in the count or estimate modes
+     */
+    public Long getCount() {
+        return count;
+    }
+
+    /**
+     * @param count the count of the results in the count or estimate modes
+     */
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    /**
+     * @return true if the count is exact rather than estimated or capped
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * @param exact true if the count is exact rather than estimated or capped
+     */
+    public void setExact(boolean exact) {
+        this.exact = exact;
+    }
+
+    /**
+     * @return the mode the query was counted in, count or estimate
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mode the mode the query was counted in, count or estimate
+     */
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return the cursor for the next page or null if there are no more pages
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @param nextCursor the cursor for the next page
+     */
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return the number of rows skipped to get past the previous page
+     */
+    public long getSkippedRows() {
+        return skippedRows;
+    }
+
+    /**
+     * @param skippedRows the number of rows skipped to get past the previous page
+     */
+    public void setSkippedRows(long skippedRows) {
+        this.skippedRows = skippedRows;
+    }
+
+    /**
+     * @return the rows read from the index compared with the rows which passed
+     *         access control, if requested
+     */
+    public Map<String, Object> getAccessControl() {
+        return accessControl;
+    }
+
+    /**
+     * @param accessControl the rows read from the index compared with the rows
+     *                      which passed access control
+     */
+    public void setAccessControl(Map<String, Object> accessControl) {
+        this.accessControl = accessControl;
+    }
+
 }
@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Reads a query result in any of the formats supported by the query servlet:
+ * json, ndjson, smile or cbor.
+ */
+public class TestQueryResultReader {
+
+    private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+    private static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    private static final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+
+    private TestQueryResultReader() {
+        // static utility
+    }
+
+    /**
+     * @param content   the response body
+     * @param extension the extension the query was requested with
+     * @return the parsed query result
+     * @throws IOException an exception occurs parsing the response
+     */
+    public static TestQueryResult read(byte[] content, String extension) throws IOException {
+        switch (extension) {
+            case "json":
+                return jsonMapper.readValue(content, TestQueryResult.class);
+            case "ndjson":
+                return readLines(content);
+            case "smile":
+                return smileMapper.readValue(content, TestQueryResult.class);
+            case "cbor":
+                return cborMapper.readValue(content, TestQueryResult.class);
+            default:
+                throw new IllegalArgumentException("Unsupported extension: " + extension);
+        }
+    }
+
+    /**
+     * Line delimited results start with an object containing the query, followed
+     * by each result and end with an object containing the remaining fields, so
+     * the lines are merged back into a single result.
+     */
+    private static TestQueryResult readLines(byte[] content) throws IOException {
+        List<JsonNode> lines = new ArrayList<>();
+        try (MappingIterator<JsonNode> it = jsonMapper.readerFor(JsonNode.class).readValues(content)) {
+            while (it.hasNext()) {
+                lines.add(it.next());
+            }
+        }
+        if (lines.size() < 2) {
+            throw new IOException("Expected at least 2 lines, got " + lines.size());
+        }
+        ObjectNode merged = (ObjectNode) lines.get(0);
+        ArrayNode results = merged.putArray("results");
+        ArrayNode rows = merged.putArray("rows");
+        for (JsonNode line : lines.subList(1, lines.size() - 1)) {
+            if (line.isObject()) {
+                rows.add(line);
+            } else {
+                results.add(line);
+            }
+        }
+        merged.setAll((ObjectNode) lines.get(lines.size() - 1));
+        return jsonMapper.treeToValue(merged, TestQueryResult.class);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2022 - Dan Klco
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.danklco.blog.oaksearch.it.tests;
+
+/**
+ * The per-phase timings of a query in nanoseconds
+ */
+public class TestQueryTimings {
+
+    private long parseNanos;
+    private long explainNanos;
+    private long executeNanos;
+    private long firstRowNanos;
+    private long iterationNanos;
+    private long serializationNanos;
+    private long totalNanos;
+
+    /**
+     * @return the time spent creating the query
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @param parseNanos the time spent creating the query
+     */
+    public void setParseNanos(long parseNanos) {
+        this.parseNanos = parseNanos;
+    }
+
+    /**
+     * @return the time spent explaining the query
+     */
+    public long getExplainNanos() {
+        return explainNanos;
+    }
+
+    /**
+     * @param explainNanos the time spent explaining the query
+     */
+    public void setExplainNanos(long explainNanos) {
+        this.explainNanos = explainNanos;
+    }
+
+    /**
+     * @return the time spent executing the query
+     */
+    public long getExecuteNanos() {
+        return executeNanos;
+    }
+
+    /**
+     * @param executeNanos the time spent executing the query
+     */
+    public void setExecuteNanos(long executeNanos) {
+        this.executeNanos = executeNanos;
+    }
+
+    /**
+     * @return the time from the start of execution until the first row was read
+     */
+    public long getFirstRowNanos() {
+        return firstRowNanos;
+    }
+
+    /**
+     * @param firstRowNanos the time from the start of execution until the first row was read
+     */
+    public void setFirstRowNanos(long firstRowNanos) {
+        this.firstRowNanos = firstRowNanos;
+    }
+
+    /**
+     * @return the time spent reading the rows
+     */
+    public long getIterationNanos() {
+        return iterationNanos;
+    }
+
+    /**
+     * @param iterationNanos the time spent reading the rows
+     */
+    public void setIterationNanos(long iterationNanos) {
+        this.iterationNanos = iterationNanos;
+    }
+
+    /**
+     * @return the time spent writing the response
+     */
+    public long getSerializationNanos() {
+        return serializationNanos;
+    }
+
+    /**
+     * @param serializationNanos the time spent writing the response
+     */
+    public void setSerializationNanos(long serializationNanos) {
+        this.serializationNanos = serializationNanos;
+    }
+
+    /**
+     * @return the total time spent handling the request
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @param totalNanos the total time spent handling the request
+     */
+    public void setTotalNanos(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+}